@@ -8,6 +8,9 @@
 plugins {
     // Apply the application plugin to add support for building a CLI application in Java.
     application
+
+    // Adds the jmh source set and the jmh task for the benchmarks in src/jmh.
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 repositories {
@@ -35,7 +38,7 @@ dependencies {
 // Apply a specific Java toolchain to ease working on different environments.
 java {
     toolchain {
-        languageVersion.set(JavaLanguageVersion.of(17))
+        languageVersion.set(JavaLanguageVersion.of(21))
     }
 }
 
@@ -44,6 +47,15 @@ application {
     mainClass.set("com.tagadvance.filededuplicator.Main")
 }
 
+jmh {
+    jmhVersion.set("1.37")
+    // Machine-readable results to compare between revisions.
+    resultFormat.set("JSON")
+    resultsFile.set(layout.buildDirectory.file("results/jmh/results.json"))
+    // Runs the benchmarks matching a regular expression, e.g. -Pbenchmarks=HashBenchmark
+    (findProperty("benchmarks") as String?)?.let { includes.add(it) }
+}
+
 tasks.named<Test>("test") {
     // Use JUnit Platform for unit tests.
     useJUnitPlatform()
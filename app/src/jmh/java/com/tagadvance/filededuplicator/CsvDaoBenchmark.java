@@ -0,0 +1,138 @@
+package com.tagadvance.filededuplicator;
+
+import com.google.common.hash.HashCode;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks writing and reading a catalogue of {@code rows} hashed files with {@link CsvDao}.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class CsvDaoBenchmark {
+
+	/**
+	 * A new, empty catalogue for every invocation.
+	 */
+	@State(Scope.Benchmark)
+	public static class EmptyStore {
+
+		@Param({"1000000"})
+		public int rows;
+
+		List<PathMeta> metas;
+		Path file;
+		CsvDao csvDao;
+
+		@Setup(Level.Trial)
+		public void setUpTrial() {
+			metas = createMetas(rows);
+		}
+
+		@Setup(Level.Invocation)
+		public void setUpInvocation() throws IOException {
+			file = Files.createTempFile("csv-dao-benchmark", ".csv");
+			csvDao = new CsvDao(file.toFile());
+		}
+
+		@TearDown(Level.Invocation)
+		public void tearDownInvocation() throws IOException {
+			csvDao.close();
+			Files.deleteIfExists(file);
+		}
+
+	}
+
+	/**
+	 * A catalogue of {@code rows} rows that is written once.
+	 */
+	@State(Scope.Benchmark)
+	public static class PopulatedStore {
+
+		@Param({"1000000"})
+		public int rows;
+
+		Path file;
+		CsvDao csvDao;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			file = Files.createTempFile("csv-dao-benchmark", ".csv");
+			csvDao = new CsvDao(file.toFile());
+			csvDao.insertAll(createMetas(rows));
+			csvDao.flush();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			csvDao.close();
+			Files.deleteIfExists(file);
+		}
+
+	}
+
+	@Benchmark
+	public void insert(final EmptyStore store) {
+		store.metas.forEach(store.csvDao::insert);
+		store.csvDao.flush();
+	}
+
+	@Benchmark
+	public void insertAll(final EmptyStore store) {
+		store.csvDao.insertAll(store.metas);
+		store.csvDao.flush();
+	}
+
+	@Benchmark
+	public List<PathMeta> selectAll(final PopulatedStore store) {
+		return store.csvDao.selectAll();
+	}
+
+	@Benchmark
+	public void selectAllChunked(final PopulatedStore store, final Blackhole blackhole) {
+		store.csvDao.selectAll(blackhole::consume);
+	}
+
+	/**
+	 * @return metas spread over a thousand directories with realistic sizes and digests
+	 */
+	private static List<PathMeta> createMetas(final int count) {
+		final var random = new Random(count);
+		final var algorithm = HashAlgorithm.MURMUR3_128.algorithm();
+
+		return IntStream.range(0, count).mapToObj(i -> {
+			final var path = Paths.get("/data/photos", "album-" + i % 1000, "IMG_" + i + ".jpg");
+			final var partialHash = HashCode.fromLong(random.nextLong());
+			final var hash = new byte[16];
+			random.nextBytes(hash);
+
+			return new PathMeta(path, 1024 + random.nextInt(16 * 1024 * 1024),
+				1_600_000_000_000L + random.nextInt(Integer.MAX_VALUE), "(dev=fe00,ino=" + i + ")",
+				partialHash, algorithm, HashCode.fromBytes(hash));
+		}).toList();
+	}
+
+}
@@ -0,0 +1,80 @@
+package com.tagadvance.filededuplicator;
+
+import com.google.common.hash.HashCode;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link Hash#calculateHash(Path, HashEngine)} by algorithm, read buffer size and file
+ * size. The file is read from the page cache after the first iteration, so this measures the
+ * digest and the copy into the buffer rather than the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HashBenchmark {
+
+	private static final long MAPPED_THRESHOLD = 64L * 1024 * 1024;
+
+	@Param({"MURMUR3_128", "BLAKE3", "MD5", "SHA256", "SHA512"})
+	public HashAlgorithm algorithm;
+
+	/**
+	 * The read buffer size in KiB.
+	 */
+	@Param({"64", "1024"})
+	public int bufferSize;
+
+	/**
+	 * The file size in MiB; files of at least 64 MiB are memory-mapped instead of read.
+	 */
+	@Param({"4", "128"})
+	public int fileSize;
+
+	private Path file;
+	private Hash hash;
+
+	@Setup
+	public void setUp() throws IOException {
+		file = Files.createTempFile("hash-benchmark", ".bin");
+		final var random = new Random(fileSize);
+		final var chunk = new byte[1024 * 1024];
+		try (final var out = Files.newOutputStream(file)) {
+			for (var i = 0; i < fileSize; i++) {
+				random.nextBytes(chunk);
+				out.write(chunk);
+			}
+		}
+
+		hash = new Hash(new ByteBufferPool(bufferSize * 1024, 1), MAPPED_THRESHOLD);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(file);
+	}
+
+	@Benchmark
+	public HashCode calculateHash() throws IOException {
+		return hash.calculateHash(file, algorithm);
+	}
+
+}
@@ -0,0 +1,118 @@
+package com.tagadvance.filededuplicator;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks {@link PathFilter} on a realistic mix of paths and patterns. Matching one regular
+ * expression per pattern is measured as a baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PathFilterBenchmark {
+
+	private static final int PATHS = 10_000;
+
+	private static final List<String> INCLUSIONS = List.of(
+		"\\.(bmp|gif|jpg|jpeg|png|heic|tiff)$", "\\.(mp4|mov|avi|mkv)$", "\\.(cr2|nef|arw|dng)$",
+		"/Pictures/", "/DCIM/");
+
+	private static final List<String> EXCLUSIONS = List.of("^/proc", "^/sys", "^/dev", "/boot",
+		"node_modules/", "/\\.git/", "/\\.cache/", "/\\.Trash-\\d+/", "\\.(tmp|part|crdownload)$",
+		"/thumbnails?/");
+
+	private static final List<String> DIRECTORIES = List.of("/home/user/Pictures/2019/summer",
+		"/home/user/Downloads", "/home/user/src/app/node_modules/lodash",
+		"/home/user/.cache/mozilla",
+		"/mnt/backup/2018/DCIM/100CANON", "/mnt/backup/projects/site/.git/objects",
+		"/srv/media/movies", "/home/user/Documents/scans", "/home/user/.local/share/thumbnails");
+
+	private static final List<String> FILE_NAMES = List.of("IMG_%d.jpg", "DSC%d.NEF", "clip-%d.mp4",
+		"report-%d.pdf", "index-%d.js", "%d.pack", "draft-%d.docx", "photo-%d.png.part",
+		"thumb-%d.png", "notes-%d.txt");
+
+	private PathFilter pathFilter;
+	private List<Pattern> inclusions;
+	private List<Pattern> exclusions;
+	private List<Path> paths;
+
+	@Setup
+	public void setUp() {
+		pathFilter = new PathFilter(INCLUSIONS, EXCLUSIONS);
+		inclusions = INCLUSIONS.stream()
+			.map(regex -> Pattern.compile(regex, Pattern.CASE_INSENSITIVE))
+			.toList();
+		exclusions = EXCLUSIONS.stream().map(Pattern::compile).toList();
+
+		final var random = new Random(PATHS);
+		paths = IntStream.range(0, PATHS)
+			.mapToObj(i -> Paths.get(DIRECTORIES.get(random.nextInt(DIRECTORIES.size())),
+				String.format(FILE_NAMES.get(random.nextInt(FILE_NAMES.size())), i)))
+			.toList();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PATHS)
+	public void isIncluded(final Blackhole blackhole) {
+		for (final var path : paths) {
+			blackhole.consume(pathFilter.isIncluded(path));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PATHS)
+	public void isExcluded(final Blackhole blackhole) {
+		for (final var path : paths) {
+			blackhole.consume(pathFilter.isExcluded(path));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PATHS)
+	public void accepts(final Blackhole blackhole) {
+		for (final var path : paths) {
+			blackhole.consume(pathFilter.accepts(path));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PATHS)
+	public void acceptsWithOnePatternPerRegex(final Blackhole blackhole) {
+		for (final var path : paths) {
+			final var value = path.toString();
+			blackhole.consume(
+				inclusions.stream().anyMatch(pattern -> pattern.matcher(value).find())
+					&& exclusions.stream().noneMatch(pattern -> pattern.matcher(value).find()));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PATHS)
+	public void isExcludedDirectory(final Blackhole blackhole) {
+		for (final var path : paths) {
+			blackhole.consume(pathFilter.isExcludedDirectory(path.getParent()));
+		}
+	}
+
+}
@@ -0,0 +1,129 @@
+package com.tagadvance.filededuplicator;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks a dry run over a generated tree in which {@code duplicateRatio} of the files are
+ * copies of another file. Every invocation starts from an empty catalogue, so the tree is walked,
+ * fingerprinted and hashed in full. The tree is read from the page cache after the first
+ * invocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ScanBenchmark {
+
+	@Param({"10000"})
+	public int files;
+
+	@Param({"0.0", "0.25", "0.5"})
+	public double duplicateRatio;
+
+	/**
+	 * The approximate file size in KiB.
+	 */
+	@Param({"16"})
+	public int fileSize;
+
+	private Path directory;
+	private Configuration configuration;
+	private MetaStore metaStore;
+	private ScanEngine scanEngine;
+	private FileDeduplicator fileDeduplicator;
+
+	@Setup(Level.Trial)
+	public void setUpTrial() throws IOException {
+		directory = Files.createTempDirectory("scan-benchmark");
+		final var root = directory.resolve("root");
+		final var random = new Random(files);
+		for (var i = 0; i < files; i++) {
+			// a duplicate is generated from the seed of an earlier file
+			final var seed = i > 0 && random.nextDouble() < duplicateRatio ? random.nextInt(i) : i;
+			final var file = root.resolve("d" + i % 100).resolve("e" + i % 7).resolve(i + ".jpg");
+			Files.createDirectories(file.getParent());
+			Files.write(file, createContents(seed));
+		}
+
+		final var yaml = String.join("\n", "dryRun: true",
+			"deduplication: '" + directory.resolve("deduplication") + "'", "safeDelete: true",
+			"trash: '" + directory.resolve("trash") + "'", "replaceWithSymlink: true", "roots:",
+			"  - '" + root + "'", "inclusions:", "  - '\\.jpg$'", "exclusions:", "  - '/\\.cache/'",
+			"incremental: false");
+		configuration = Configuration.parseInputStream(
+			new ByteArrayInputStream(yaml.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private byte[] createContents(final int seed) {
+		final var random = new Random(seed);
+		// sizes vary, so only some files that are not duplicates share a size
+		final var contents = new byte[fileSize * 1024 + random.nextInt(1024)];
+		random.nextBytes(contents);
+
+		return contents;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDownTrial() throws IOException {
+		try (final Stream<Path> paths = Files.walk(directory)) {
+			for (final var path : paths.sorted(Comparator.reverseOrder()).toList()) {
+				Files.delete(path);
+			}
+		}
+	}
+
+	@Setup(Level.Invocation)
+	public void setUpInvocation() throws IOException {
+		Files.deleteIfExists(directory.resolve("catalogue.csv"));
+		Files.deleteIfExists(directory.resolve("checkpoint"));
+
+		metaStore = new BatchingMetaStore(new CsvDao(directory.resolve("catalogue.csv").toFile()),
+			configuration.batchSize(), configuration.commitInterval(), TimeUnit.MILLISECONDS);
+		final var hash = new Hash(new ByteBufferPool(configuration.bufferSize() * 1024,
+			configuration.bufferPoolSize()), configuration.mappedHashThreshold() * 1024L * 1024L);
+		scanEngine = new ScanEngine(configuration.walkerThreads(), configuration.hasherThreads());
+		final var pathFilter = new PathFilter(configuration.inclusions(),
+			configuration.exclusions());
+		final var deviceScheduler = new DeviceScheduler(configuration.rotationalReaders(),
+			configuration.solidStateReaders());
+		fileDeduplicator = new FileDeduplicator(configuration, metaStore, hash, pathFilter,
+			scanEngine, deviceScheduler, new Checkpoint(directory.resolve("checkpoint")),
+			new ScanMetrics(),
+			new SymlinkAction(configuration, new ActionJournal(directory.resolve("journal"))));
+	}
+
+	@TearDown(Level.Invocation)
+	public void tearDownInvocation() {
+		scanEngine.close();
+		metaStore.close();
+	}
+
+	@Benchmark
+	public void run() {
+		fileDeduplicator.run();
+	}
+
+}
@@ -0,0 +1,132 @@
+package com.tagadvance.filededuplicator;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Striped;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Processes duplicate groups on a pool of threads. Groups are independent of each other except
+ * where they touch the same directory, so every group holds a lock on each directory that contains
+ * one of its files while it is processed. Locks are striped and taken in stripe order, which keeps
+ * the number of locks fixed and rules out deadlocks; groups that share a stripe but not a directory
+ * are merely serialized.
+ * <p>
+ * At most a few groups per thread are queued, so grouping never runs far ahead of processing.
+ * Instead of logging every operation, progress is logged once every {@link #LOG_INTERVAL} groups.
+ */
+public final class ActionExecutor implements AutoCloseable {
+
+	private static final Logger logger = LoggerFactory.getLogger(ActionExecutor.class);
+
+	static final int LOG_INTERVAL = 10_000;
+
+	private static final int STRIPES = 1024;
+	private static final int QUEUED_GROUPS_PER_THREAD = 4;
+
+	private final ExecutorService executor;
+	private final Semaphore permits;
+	private final Striped<Lock> directoryLocks = Striped.lock(STRIPES);
+	private final AtomicLong groups = new AtomicLong();
+	private final LongAdder files = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+
+	/**
+	 * @param threads the number of groups processed at once
+	 */
+	public ActionExecutor(final int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be positive");
+		}
+
+		this.executor = Executors.newFixedThreadPool(threads);
+		this.permits = new Semaphore(threads * (1 + QUEUED_GROUPS_PER_THREAD));
+	}
+
+	/**
+	 * Queues a group, blocking while too many groups are queued already.
+	 *
+	 * @param group  the duplicates
+	 * @param action processes the group while the directories that contain it are locked
+	 * @throws InterruptedException if interrupted while waiting for room in the queue
+	 */
+	public void submit(final List<PathMeta> group, final Consumer<List<PathMeta>> action)
+		throws InterruptedException {
+		requireNonNull(group, "group must not be null");
+		requireNonNull(action, "action must not be null");
+
+		permits.acquire();
+		try {
+			executor.execute(() -> {
+				try {
+					process(group, action);
+				} finally {
+					permits.release();
+				}
+			});
+		} catch (final RuntimeException e) {
+			permits.release();
+
+			throw e;
+		}
+	}
+
+	private void process(final List<PathMeta> group, final Consumer<List<PathMeta>> action) {
+		final var directories = group.stream()
+			.map(PathMeta::path)
+			.map(Path::toAbsolutePath)
+			.map(Path::getParent)
+			.filter(Objects::nonNull)
+			.distinct()
+			.toList();
+		// bulkGet orders the locks by stripe, so every thread takes them in the same order
+		final var locks = ImmutableList.copyOf(directoryLocks.bulkGet(directories));
+		locks.forEach(Lock::lock);
+		try {
+			action.accept(group);
+		} catch (final RuntimeException e) {
+			failures.increment();
+			logger.error(String.format("Failed to process duplicates of %s",
+				group.get(0).path()), e);
+		} finally {
+			for (final var lock : locks.reverse()) {
+				lock.unlock();
+			}
+		}
+
+		files.add(group.size());
+		if (groups.incrementAndGet() % LOG_INTERVAL == 0) {
+			logProgress("Processed");
+		}
+	}
+
+	private void logProgress(final String verb) {
+		logger.info("{} {} duplicate groups of {} files; {} failed", verb, groups.get(),
+			files.sum(), failures.sum());
+	}
+
+	/**
+	 * Waits for every queued group to be processed.
+	 */
+	@Override
+	public void close() {
+		executor.close();
+
+		if (groups.get() > 0) {
+			logProgress("Finished processing");
+		}
+	}
+
+}
@@ -0,0 +1,320 @@
+package com.tagadvance.filededuplicator;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only record of the file system operations performed by the dedup actions. Every
+ * operation is written and flushed before it is performed and marked done or failed afterwards, so
+ * after a crash the journal tells which operations were applied and which may have been cut
+ * short. {@link #replay(Path)} finishes the operations that were cut short and
+ * {@link #undo(Path)} reverts a run.
+ * <p>
+ * The journal is created by the first operation of a run and replaces the journal of the previous
+ * run; dry runs leave it alone.
+ */
+public final class ActionJournal implements AutoCloseable {
+
+	private static final Logger logger = LoggerFactory.getLogger(ActionJournal.class);
+
+	private static final CSVFormat csvFormat = CSVFormat.DEFAULT.builder().build();
+
+	public enum Operation {
+		/**
+		 * Moves {@code source} to {@code target} and, if {@code link} is set, creates a symbolic
+		 * link at {@code source} that points at {@code link}. The link is created by a separate
+		 * {@link #SYMLINK} operation, but the two are replayed as one.
+		 */
+		MOVE,
+		/**
+		 * Creates a symbolic link at {@code source} that points at {@code target}.
+		 */
+		SYMLINK,
+		/**
+		 * Deletes {@code source}; {@code target}, if any, is a file with the same contents.
+		 */
+		DELETE,
+		/**
+		 * Replaces {@code source} with a hard link to, or a clone of, {@code target}.
+		 */
+		LINK
+	}
+
+	public enum State {
+		STARTED, DONE, FAILED
+	}
+
+	/**
+	 * @param sequence  the position of the operation in the journal
+	 * @param operation the operation
+	 * @param source    the path that was changed
+	 * @param target    the other path involved, if any
+	 * @param link      for a {@link Operation#MOVE move}, where the link that replaces
+	 *                  {@code source} points, if any
+	 * @param state     whether the operation is known to have completed
+	 */
+	public record Entry(long sequence, Operation operation, Path source, Path target, Path link,
+		State state) {
+
+	}
+
+	private final Path file;
+	private CSVPrinter printer;
+	private long sequence;
+
+	/**
+	 * @param file the journal file
+	 */
+	public ActionJournal(final Path file) {
+		this.file = requireNonNull(file, "file must not be null");
+	}
+
+	/**
+	 * Writes and flushes an operation that is about to be performed.
+	 *
+	 * @return the sequence number to pass to {@link #end(long, boolean)}
+	 * @throws UncheckedIOException if the journal could not be written; the operation must not be
+	 *                              performed
+	 */
+	public long begin(final Operation operation, final Path source, final Path target) {
+		return begin(operation, source, target, null);
+	}
+
+	/**
+	 * Writes and flushes a move that is about to be performed and that is to be followed by a
+	 * symbolic link at {@code source} to {@code link}, so that the two are replayed as one.
+	 *
+	 * @see #begin(Operation, Path, Path)
+	 */
+	public long beginMove(final Path source, final Path target, final Path link) {
+		return begin(Operation.MOVE, source, target, link);
+	}
+
+	private synchronized long begin(final Operation operation, final Path source,
+		final Path target, final Path link) {
+		requireNonNull(operation, "operation must not be null");
+		requireNonNull(source, "source must not be null");
+
+		try {
+			if (printer == null) {
+				printer = new CSVPrinter(Files.newBufferedWriter(file, StandardCharsets.UTF_8),
+					csvFormat);
+			}
+			final var id = ++sequence;
+			printer.printRecord(id, State.STARTED, operation, source,
+				target == null ? "" : target, link == null ? "" : link);
+			printer.flush();
+
+			return id;
+		} catch (final IOException e) {
+			throw new UncheckedIOException(String.format("Failed to write to %s", file), e);
+		}
+	}
+
+	/**
+	 * Records the outcome of an operation. Outcomes are buffered until the next operation begins
+	 * or the journal is closed.
+	 */
+	public synchronized void end(final long id, final boolean succeeded) {
+		try {
+			printer.printRecord(id, succeeded ? State.DONE : State.FAILED);
+		} catch (final IOException e) {
+			logger.error(String.format("Failed to write to %s", file), e);
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		if (printer == null) {
+			return;
+		}
+
+		try {
+			printer.flush();
+			printer.close();
+		} catch (final IOException e) {
+			logger.error(String.format("Failed to close %s", file), e);
+		} finally {
+			printer = null;
+		}
+	}
+
+	/**
+	 * @param file a journal file
+	 * @return the operations in the order they were begun, each with its latest state
+	 * @throws IOException if the journal could not be read
+	 */
+	public static List<Entry> read(final Path file) throws IOException {
+		final var entries = new LinkedHashMap<Long, Entry>();
+		try (final var in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			for (final var record : csvFormat.parse(in)) {
+				final var id = Long.parseLong(record.get(0));
+				final var state = State.valueOf(record.get(1));
+				if (state == State.STARTED) {
+					// journals written before links were recorded have no link column
+					final var link = record.size() > 5 ? record.get(5) : "";
+					entries.put(id, new Entry(id, Operation.valueOf(record.get(2)),
+						Paths.get(record.get(3)), toPath(record.get(4)), toPath(link), state));
+				} else {
+					entries.computeIfPresent(id,
+						(key, entry) -> new Entry(id, entry.operation(), entry.source(),
+							entry.target(), entry.link(), state));
+				}
+			}
+		}
+
+		return new ArrayList<>(entries.values());
+	}
+
+	private static Path toPath(final String path) {
+		return path.isEmpty() ? null : Paths.get(path);
+	}
+
+	/**
+	 * Performs, in order, every operation that was begun but not marked done or failed, unless
+	 * the file system shows that it was already applied. A move that is to be followed by a link
+	 * is completed with its link, even if the move itself was marked done, so that a file is never
+	 * left moved away without the link that replaces it.
+	 *
+	 * @return the number of operations performed
+	 */
+	public static int replay(final Path file) throws IOException {
+		var replayed = 0;
+		for (final var entry : read(file)) {
+			final var completable = entry.state() == State.STARTED
+				|| entry.state() == State.DONE && entry.link() != null;
+			if (completable && replay(entry)) {
+				replayed++;
+			}
+		}
+
+		return replayed;
+	}
+
+	/**
+	 * Reverts, in reverse order, every operation that was applied. Deleted files are restored by
+	 * copying the file with the same contents, and links are left as they are.
+	 *
+	 * @return the number of operations reverted
+	 */
+	public static int undo(final Path file) throws IOException {
+		final var entries = read(file);
+		var undone = 0;
+		for (final var entry : entries.reversed()) {
+			if (entry.state() != State.FAILED && undo(entry)) {
+				undone++;
+			}
+		}
+
+		return undone;
+	}
+
+	private static boolean replay(final Entry entry) throws IOException {
+		final var source = entry.source();
+		final var target = entry.target();
+		switch (entry.operation()) {
+			case MOVE -> {
+				var replayed = false;
+				if (entry.state() == State.STARTED
+					&& Files.exists(source, LinkOption.NOFOLLOW_LINKS)
+					&& !Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+					Files.move(source, target);
+					logger.info("Moved {} to {}", source, target);
+					replayed = true;
+				}
+				final var link = entry.link();
+				if (link != null && !Files.exists(source, LinkOption.NOFOLLOW_LINKS)
+					&& Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+					Files.createSymbolicLink(source, link);
+					logger.info("Created symbolic link {} to {}", source, link);
+					replayed = true;
+				}
+
+				return replayed;
+			}
+			case SYMLINK -> {
+				if (!Files.exists(source, LinkOption.NOFOLLOW_LINKS)) {
+					Files.createSymbolicLink(source, target);
+					logger.info("Created symbolic link {} to {}", source, target);
+
+					return true;
+				}
+			}
+			case DELETE -> {
+				if (Files.deleteIfExists(source)) {
+					logger.info("Deleted {}", source);
+
+					return true;
+				}
+			}
+			case LINK -> {
+				// the link is renamed over the duplicate, so it either happened or it did not
+				final var temporary = source.resolveSibling(
+					"." + source.getFileName() + ".deduplication");
+				Files.deleteIfExists(temporary);
+			}
+		}
+
+		return false;
+	}
+
+	private static boolean undo(final Entry entry) throws IOException {
+		final var source = entry.source();
+		final var target = entry.target();
+		switch (entry.operation()) {
+			case MOVE -> {
+				// a link created by a replay was not journaled on its own
+				final var link = entry.link();
+				if (link != null && Files.isSymbolicLink(source)
+					&& Files.readSymbolicLink(source).equals(link)) {
+					Files.delete(source);
+				}
+				if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)
+					&& !Files.exists(source, LinkOption.NOFOLLOW_LINKS)) {
+					Files.move(target, source);
+					logger.info("Moved {} back to {}", target, source);
+
+					return true;
+				}
+			}
+			case SYMLINK -> {
+				if (Files.isSymbolicLink(source) && Files.readSymbolicLink(source)
+					.equals(target)) {
+					Files.delete(source);
+					logger.info("Deleted symbolic link {}", source);
+
+					return true;
+				}
+			}
+			case DELETE -> {
+				if (target != null && !Files.exists(source, LinkOption.NOFOLLOW_LINKS)
+					&& Files.isRegularFile(target)) {
+					Files.copy(target, source, StandardCopyOption.COPY_ATTRIBUTES);
+					logger.info("Restored {} from {}", source, target);
+
+					return true;
+				}
+				logger.warn("{} was deleted and cannot be restored", source);
+			}
+			case LINK -> logger.info("{} is a link to {} and is left as is", source, target);
+		}
+
+		return false;
+	}
+
+}
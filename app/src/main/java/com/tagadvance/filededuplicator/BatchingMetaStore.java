@@ -0,0 +1,253 @@
+package com.tagadvance.filededuplicator;
+
+import static java.util.Objects.requireNonNull;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decouples the threads that insert metas from the store that persists them. Inserts append to a
+ * lock-free queue; a single writer thread drains the queue in batches of up to {@code batchSize}
+ * metas, or whatever arrived within {@code commitInterval}, and
+ * {@link MetaStore#sync() syncs} the delegate after every batch. Inserting threads wait while a
+ * whole batch is still unwritten, so a crash loses at most one batch of metas whose insert
+ * returned.
+ * <p>
+ * A batch that cannot be written is not retried. Every later {@link #flush()} and {@link #sync()}
+ * then fails, so that nothing relies on the lost metas being stored. Queries flush first, so they
+ * observe every meta inserted before them.
+ */
+public final class BatchingMetaStore implements MetaStore {
+
+	private static final Logger logger = LoggerFactory.getLogger(BatchingMetaStore.class);
+
+	private final MetaStore delegate;
+	private final int batchSize;
+	private final long commitIntervalNanos;
+	private final Queue<PathMeta> queue = new ConcurrentLinkedQueue<>();
+	private final AtomicLong inserted = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong flushTarget = new AtomicLong();
+	private final Object commitMonitor = new Object();
+	private final Thread writer;
+	private volatile boolean closed;
+	private volatile RuntimeException failure;
+
+	/**
+	 * @param delegate       the store to write to; it is closed with this store
+	 * @param batchSize      the maximum number of metas written and synced at once
+	 * @param commitInterval the maximum time that an inserted meta waits before it is written
+	 * @param unit           the unit of {@code commitInterval}
+	 */
+	public BatchingMetaStore(final MetaStore delegate, final int batchSize,
+		final long commitInterval, final TimeUnit unit) {
+		this.delegate = requireNonNull(delegate, "delegate must not be null");
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("batchSize must be positive");
+		}
+		if (commitInterval < 1) {
+			throw new IllegalArgumentException("commitInterval must be positive");
+		}
+
+		this.batchSize = batchSize;
+		this.commitIntervalNanos = unit.toNanos(commitInterval);
+		this.writer = new Thread(this::write, "meta-store-writer");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	@Override
+	public void insert(final PathMeta pathMeta) {
+		requireNonNull(pathMeta, "pathMeta must not be null");
+		if (closed) {
+			throw new IllegalStateException("The store is closed");
+		}
+
+		// counted before it is queued, so flush never returns before a completed insert is written
+		final var count = inserted.incrementAndGet();
+		queue.offer(pathMeta);
+		if (count - committed() >= batchSize) {
+			LockSupport.unpark(writer);
+		}
+		while (inserted.get() - committed() > batchSize && !closed) {
+			LockSupport.unpark(writer);
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+		}
+	}
+
+	/**
+	 * @return the number of inserted metas that have not been written yet
+	 */
+	public long pending() {
+		return inserted.get() - committed();
+	}
+
+	/**
+	 * @return the number of inserted metas that were written or dropped
+	 */
+	private long committed() {
+		return written.get() + dropped.get();
+	}
+
+	/**
+	 * Waits until every meta inserted before this call has been written and synced.
+	 *
+	 * @throws IllegalStateException if a batch could not be written
+	 */
+	@Override
+	public void flush() {
+		final var target = inserted.get();
+		flushTarget.accumulateAndGet(target, Math::max);
+		synchronized (commitMonitor) {
+			while (committed() < target && writer.isAlive()) {
+				LockSupport.unpark(writer);
+				try {
+					commitMonitor.wait(TimeUnit.NANOSECONDS.toMillis(commitIntervalNanos) + 1);
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+
+					return;
+				}
+			}
+		}
+
+		final var cause = failure;
+		if (cause != null) {
+			throw new IllegalStateException(String.format("%d rows could not be written",
+				dropped.get()), cause);
+		}
+	}
+
+	@Override
+	public void sync() {
+		flush();
+	}
+
+	@Override
+	public List<PathMeta> selectAll() {
+		flush();
+
+		return delegate.selectAll();
+	}
+
+	@Override
+	public void selectAll(final Consumer<PathMeta> action) {
+		flush();
+
+		delegate.selectAll(action);
+	}
+
+	@Override
+	public void compact() {
+		flush();
+
+		delegate.compact();
+	}
+
+	@Override
+	public long estimateSize() {
+		flush();
+
+		return delegate.estimateSize();
+	}
+
+	@Override
+	public boolean mightHaveDuplicates(final ContentHash contentHash) {
+		flush();
+
+		return delegate.mightHaveDuplicates(contentHash);
+	}
+
+	@Override
+	public Optional<PathMeta> selectByPath(final Path path) {
+		flush();
+
+		return delegate.selectByPath(path);
+	}
+
+	@Override
+	public List<PathMeta> selectByHash(final ContentHash contentHash) {
+		flush();
+
+		return delegate.selectByHash(contentHash);
+	}
+
+	@Override
+	public List<PathMeta> selectUnder(final Path directory) {
+		flush();
+
+		return delegate.selectUnder(directory);
+	}
+
+	/**
+	 * Writes every queued meta before closing the delegate.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		LockSupport.unpark(writer);
+		try {
+			writer.join();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		delegate.close();
+	}
+
+	private void write() {
+		final var batch = new ArrayList<PathMeta>(batchSize);
+		var deadline = System.nanoTime() + commitIntervalNanos;
+		while (true) {
+			final var closing = closed;
+			PathMeta meta;
+			while (batch.size() < batchSize && (meta = queue.poll()) != null) {
+				batch.add(meta);
+			}
+
+			final var now = System.nanoTime();
+			final var flushRequested = !batch.isEmpty() && flushTarget.get() > committed();
+			if (batch.size() == batchSize || now - deadline >= 0 || closing || flushRequested) {
+				commit(batch);
+				deadline = now + commitIntervalNanos;
+				if (closing && queue.isEmpty()) {
+					return;
+				}
+			} else {
+				LockSupport.parkNanos(deadline - now);
+			}
+		}
+	}
+
+	private void commit(final List<PathMeta> batch) {
+		if (!batch.isEmpty()) {
+			try {
+				delegate.insertAll(batch);
+				delegate.sync();
+				written.addAndGet(batch.size());
+			} catch (final RuntimeException e) {
+				logger.error(String.format("Failed to write %d rows!", batch.size()), e);
+				if (failure == null) {
+					failure = e;
+				}
+				dropped.addAndGet(batch.size());
+			}
+			batch.clear();
+		}
+
+		synchronized (commitMonitor) {
+			commitMonitor.notifyAll();
+		}
+	}
+
+}
@@ -0,0 +1,220 @@
+package com.tagadvance.filededuplicator;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A single-threaded implementation of the BLAKE3 hash function with the default 256-bit output.
+ *
+ * @see <a href="https://github.com/BLAKE3-team/BLAKE3-specs">BLAKE3 specification</a>
+ */
+public final class Blake3 implements HashEngine.Digester {
+
+	private static final int OUT_LEN = 32;
+	private static final int BLOCK_LEN = 64;
+	private static final int CHUNK_LEN = 1024;
+
+	private static final int CHUNK_START = 1;
+	private static final int CHUNK_END = 1 << 1;
+	private static final int PARENT = 1 << 2;
+	private static final int ROOT = 1 << 3;
+
+	private static final int[] IV = {0x6A09E667, 0xBB67AE85, 0x3C6EF372, 0xA54FF53A, 0x510E527F,
+		0x9B05688C, 0x1F83D9AB, 0x5BE0CD19};
+	private static final int[] MSG_PERMUTATION = {2, 6, 3, 10, 7, 0, 4, 13, 1, 11, 12, 5, 9, 14,
+		15, 8};
+
+	private final int[][] cvStack = new int[54][];
+	private int cvStackLength;
+	private ChunkState chunkState = new ChunkState(IV, 0);
+	private final byte[] transfer = new byte[4 * CHUNK_LEN];
+
+	@Override
+	public void update(final byte[] bytes, final int offset, final int length) {
+		var position = offset;
+		final var end = offset + length;
+		while (position < end) {
+			if (chunkState.length() == CHUNK_LEN) {
+				final var chunkCv = chunkState.output().chainingValue();
+				final var totalChunks = chunkState.chunkCounter + 1;
+				addChunkChainingValue(chunkCv, totalChunks);
+				chunkState = new ChunkState(IV, totalChunks);
+			}
+
+			final var take = Math.min(CHUNK_LEN - chunkState.length(), end - position);
+			chunkState.update(bytes, position, take);
+			position += take;
+		}
+	}
+
+	@Override
+	public void update(final ByteBuffer buffer) {
+		while (buffer.hasRemaining()) {
+			final var length = Math.min(transfer.length, buffer.remaining());
+			buffer.get(transfer, 0, length);
+			update(transfer, 0, length);
+		}
+	}
+
+	@Override
+	public byte[] digest() {
+		var output = chunkState.output();
+		for (var i = cvStackLength - 1; i >= 0; i--) {
+			output = parentOutput(cvStack[i], output.chainingValue());
+		}
+
+		final var words = compress(output.inputCv, output.blockWords, 0, output.blockLength,
+			output.flags | ROOT);
+		final var digest = new byte[OUT_LEN];
+		for (var i = 0; i < OUT_LEN / 4; i++) {
+			final var word = words[i];
+			digest[i * 4] = (byte) word;
+			digest[i * 4 + 1] = (byte) (word >>> 8);
+			digest[i * 4 + 2] = (byte) (word >>> 16);
+			digest[i * 4 + 3] = (byte) (word >>> 24);
+		}
+
+		return digest;
+	}
+
+	private void addChunkChainingValue(final int[] chunkCv, final long chunks) {
+		var cv = chunkCv;
+		var totalChunks = chunks;
+		while ((totalChunks & 1) == 0) {
+			cv = parentOutput(cvStack[--cvStackLength], cv).chainingValue();
+			totalChunks >>= 1;
+		}
+		cvStack[cvStackLength++] = cv;
+	}
+
+	private static Output parentOutput(final int[] leftCv, final int[] rightCv) {
+		final var blockWords = new int[16];
+		System.arraycopy(leftCv, 0, blockWords, 0, 8);
+		System.arraycopy(rightCv, 0, blockWords, 8, 8);
+
+		return new Output(IV, blockWords, 0, BLOCK_LEN, PARENT);
+	}
+
+	private static int[] compress(final int[] cv, final int[] blockWords, final long counter,
+		final int blockLength, final int flags) {
+		final var state = new int[]{cv[0], cv[1], cv[2], cv[3], cv[4], cv[5], cv[6], cv[7], IV[0],
+			IV[1], IV[2], IV[3], (int) counter, (int) (counter >>> 32), blockLength, flags};
+		var block = blockWords.clone();
+
+		for (var round = 0; round < 7; round++) {
+			round(state, block);
+			if (round < 6) {
+				block = permute(block);
+			}
+		}
+
+		for (var i = 0; i < 8; i++) {
+			state[i] ^= state[i + 8];
+			state[i + 8] ^= cv[i];
+		}
+
+		return state;
+	}
+
+	private static void round(final int[] state, final int[] m) {
+		g(state, 0, 4, 8, 12, m[0], m[1]);
+		g(state, 1, 5, 9, 13, m[2], m[3]);
+		g(state, 2, 6, 10, 14, m[4], m[5]);
+		g(state, 3, 7, 11, 15, m[6], m[7]);
+		g(state, 0, 5, 10, 15, m[8], m[9]);
+		g(state, 1, 6, 11, 12, m[10], m[11]);
+		g(state, 2, 7, 8, 13, m[12], m[13]);
+		g(state, 3, 4, 9, 14, m[14], m[15]);
+	}
+
+	private static void g(final int[] state, final int a, final int b, final int c, final int d,
+		final int mx, final int my) {
+		state[a] = state[a] + state[b] + mx;
+		state[d] = Integer.rotateRight(state[d] ^ state[a], 16);
+		state[c] = state[c] + state[d];
+		state[b] = Integer.rotateRight(state[b] ^ state[c], 12);
+		state[a] = state[a] + state[b] + my;
+		state[d] = Integer.rotateRight(state[d] ^ state[a], 8);
+		state[c] = state[c] + state[d];
+		state[b] = Integer.rotateRight(state[b] ^ state[c], 7);
+	}
+
+	private static int[] permute(final int[] block) {
+		final var permuted = new int[16];
+		for (var i = 0; i < 16; i++) {
+			permuted[i] = block[MSG_PERMUTATION[i]];
+		}
+
+		return permuted;
+	}
+
+	private record Output(int[] inputCv, int[] blockWords, long counter, int blockLength,
+						  int flags) {
+
+		int[] chainingValue() {
+			final var words = compress(inputCv, blockWords, counter, blockLength, flags);
+			final var cv = new int[8];
+			System.arraycopy(words, 0, cv, 0, 8);
+
+			return cv;
+		}
+
+	}
+
+	private static final class ChunkState {
+
+		private int[] cv;
+		private final long chunkCounter;
+		private final byte[] block = new byte[BLOCK_LEN];
+		private int blockLength;
+		private int blocksCompressed;
+
+		ChunkState(final int[] cv, final long chunkCounter) {
+			this.cv = cv;
+			this.chunkCounter = chunkCounter;
+		}
+
+		int length() {
+			return BLOCK_LEN * blocksCompressed + blockLength;
+		}
+
+		void update(final byte[] bytes, final int offset, final int length) {
+			var position = offset;
+			final var end = offset + length;
+			while (position < end) {
+				if (blockLength == BLOCK_LEN) {
+					final var words = compress(cv, blockWords(), chunkCounter, BLOCK_LEN,
+						startFlag());
+					cv = new int[8];
+					System.arraycopy(words, 0, cv, 0, 8);
+					blocksCompressed++;
+					blockLength = 0;
+				}
+
+				final var take = Math.min(BLOCK_LEN - blockLength, end - position);
+				System.arraycopy(bytes, position, block, blockLength, take);
+				blockLength += take;
+				position += take;
+			}
+		}
+
+		Output output() {
+			return new Output(cv, blockWords(), chunkCounter, blockLength,
+				startFlag() | CHUNK_END);
+		}
+
+		private int startFlag() {
+			return blocksCompressed == 0 ? CHUNK_START : 0;
+		}
+
+		private int[] blockWords() {
+			final var words = new int[16];
+			for (var i = 0; i < blockLength; i++) {
+				words[i / 4] |= (block[i] & 0xFF) << (8 * (i % 4));
+			}
+
+			return words;
+		}
+
+	}
+
+}
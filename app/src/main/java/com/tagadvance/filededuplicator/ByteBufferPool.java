@@ -0,0 +1,62 @@
+package com.tagadvance.filededuplicator;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed number of reusable direct buffers. Buffers are allocated lazily and callers block when
+ * every buffer is in use, which bounds the amount of direct memory used for reading files.
+ */
+public final class ByteBufferPool {
+
+	private final int bufferSize;
+	private final int poolSize;
+	private final BlockingQueue<ByteBuffer> buffers;
+	private final AtomicInteger allocated = new AtomicInteger();
+
+	/**
+	 * @param bufferSize the capacity of every buffer in bytes
+	 * @param poolSize   the maximum number of buffers
+	 */
+	public ByteBufferPool(final int bufferSize, final int poolSize) {
+		if (bufferSize < 1) {
+			throw new IllegalArgumentException("bufferSize must be positive");
+		}
+		if (poolSize < 1) {
+			throw new IllegalArgumentException("poolSize must be positive");
+		}
+
+		this.bufferSize = bufferSize;
+		this.poolSize = poolSize;
+		this.buffers = new ArrayBlockingQueue<>(poolSize);
+	}
+
+	public int bufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * @return a cleared buffer that must be {@link #release(ByteBuffer) released} after use
+	 * @throws InterruptedException if interrupted while waiting for a buffer
+	 */
+	public ByteBuffer acquire() throws InterruptedException {
+		final var buffer = buffers.poll();
+		if (buffer != null) {
+			return buffer;
+		}
+
+		if (allocated.getAndUpdate(count -> count < poolSize ? count + 1 : count) < poolSize) {
+			return ByteBuffer.allocateDirect(bufferSize);
+		}
+
+		return buffers.take();
+	}
+
+	public void release(final ByteBuffer buffer) {
+		buffer.clear();
+		buffers.offer(buffer);
+	}
+
+}
@@ -0,0 +1,271 @@
+package com.tagadvance.filededuplicator;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches every directory under a set of roots and reports the paths that were created, modified
+ * or deleted. Events are debounced: a path is only reported once no event arrived for it for the
+ * debounce period, so a file that is still being written is reported once, after it was written.
+ * <p>
+ * A directory that cannot be watched, typically because the inotify watch limit was reached, is
+ * reported for a rescan every rescan interval instead, as is a directory whose events overflowed.
+ * Registering an unwatched directory is retried before every rescan, in case watches were freed.
+ * <p>
+ * Instances are not thread-safe; one thread polls for changes.
+ */
+public final class ChangeWatcher implements AutoCloseable {
+
+	private static final Logger logger = LoggerFactory.getLogger(ChangeWatcher.class);
+
+	/**
+	 * @param paths       paths that were created, modified or deleted
+	 * @param directories directories whose events were lost and whose whole subtree must be
+	 *                    compared with the catalogue
+	 */
+	public record Changes(Set<Path> paths, Set<Path> directories) {
+
+		public boolean isEmpty() {
+			return paths.isEmpty() && directories.isEmpty();
+		}
+
+	}
+
+	private final PathFilter pathFilter;
+	private final long debounceNanos;
+	private final long rescanIntervalNanos;
+	private final WatchService watchService;
+	private final Map<WatchKey, Path> directories = new HashMap<>();
+	private final Set<Path> unwatched = new LinkedHashSet<>();
+	/**
+	 * The paths that changed, by the time from which they are reported.
+	 */
+	private final Map<Path, Long> pendingPaths = new LinkedHashMap<>();
+	private final Map<Path, Long> pendingDirectories = new LinkedHashMap<>();
+	private long nextRescan;
+
+	/**
+	 * @param roots          the directories to watch, including every directory under them
+	 * @param pathFilter     directories under which every path is excluded are not watched
+	 * @param debounce       the time for which a path must not change before it is reported
+	 * @param rescanInterval the time between two rescans of the directories that are not watched
+	 * @param unit           the unit of {@code debounce} and {@code rescanInterval}
+	 * @throws IOException if the watch service could not be created
+	 */
+	public ChangeWatcher(final Collection<Path> roots, final PathFilter pathFilter,
+		final long debounce, final long rescanInterval, final TimeUnit unit) throws IOException {
+		requireNonNull(roots, "roots must not be null");
+		this.pathFilter = requireNonNull(pathFilter, "pathFilter must not be null");
+		if (debounce < 0) {
+			throw new IllegalArgumentException("debounce must not be negative");
+		}
+		if (rescanInterval < 1) {
+			throw new IllegalArgumentException("rescanInterval must be positive");
+		}
+
+		this.debounceNanos = unit.toNanos(debounce);
+		this.rescanIntervalNanos = unit.toNanos(rescanInterval);
+		this.watchService = FileSystems.getDefault().newWatchService();
+		this.nextRescan = System.nanoTime() + rescanIntervalNanos;
+		for (final var root : roots) {
+			register(root.toAbsolutePath());
+		}
+		if (!unwatched.isEmpty()) {
+			logger.warn("{} directories could not be watched and are rescanned every {} s instead",
+				unwatched.size(), TimeUnit.NANOSECONDS.toSeconds(rescanIntervalNanos));
+		}
+	}
+
+	/**
+	 * @return the number of directories that are watched
+	 */
+	public int watched() {
+		return directories.size();
+	}
+
+	/**
+	 * @return the number of directories, including their subtrees, that are rescanned instead of
+	 * watched
+	 */
+	public int unwatched() {
+		return unwatched.size();
+	}
+
+	/**
+	 * Waits until at least one change has settled or {@code timeout} has elapsed.
+	 *
+	 * @return the settled changes, which are empty if none settled in time
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public Changes poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+		final var deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (true) {
+			final var now = System.nanoTime();
+			if (now - nextRescan >= 0) {
+				rescanUnwatched(now);
+			}
+
+			final var changes = settled(now);
+			if (!changes.isEmpty() || now - deadline >= 0) {
+				return changes;
+			}
+
+			var wait = Math.min(deadline, nextRescan) - now;
+			for (final var pending : List.of(pendingPaths, pendingDirectories)) {
+				for (final var due : pending.values()) {
+					wait = Math.min(wait, due - now);
+				}
+			}
+
+			final var key = watchService.poll(Math.max(0, wait), TimeUnit.NANOSECONDS);
+			if (key != null) {
+				handle(key);
+				// drain whatever else arrived, so that one poll coalesces a burst of events
+				for (var next = watchService.poll(); next != null; next = watchService.poll()) {
+					handle(next);
+				}
+			}
+		}
+	}
+
+	private void handle(final WatchKey key) {
+		final var directory = directories.get(key);
+		if (directory == null) {
+			key.cancel();
+
+			return;
+		}
+
+		final var due = System.nanoTime() + debounceNanos;
+		for (final var event : key.pollEvents()) {
+			if (event.kind() == OVERFLOW) {
+				logger.warn("Events for {} were lost; it will be rescanned", directory);
+				pendingDirectories.put(directory, due);
+				continue;
+			}
+
+			final var path = directory.resolve((Path) event.context());
+			if (event.kind() == ENTRY_CREATE
+				&& Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+				// files may have been created before the directory was registered
+				register(path);
+				pendingDirectories.put(path, due);
+			} else {
+				// a later event postpones the report, so that a path is reported once it settled
+				pendingPaths.remove(path);
+				pendingPaths.put(path, due);
+			}
+		}
+
+		if (!key.reset()) {
+			// the directory was deleted or can no longer be accessed
+			directories.remove(key);
+		}
+	}
+
+	private Changes settled(final long now) {
+		return new Changes(removeSettled(pendingPaths, now),
+			removeSettled(pendingDirectories, now));
+	}
+
+	private static Set<Path> removeSettled(final Map<Path, Long> pending, final long now) {
+		final var settled = new LinkedHashSet<Path>();
+		final var iterator = pending.entrySet().iterator();
+		while (iterator.hasNext()) {
+			final var entry = iterator.next();
+			if (now - entry.getValue() >= 0) {
+				settled.add(entry.getKey());
+				iterator.remove();
+			}
+		}
+
+		return settled;
+	}
+
+	/**
+	 * Retries registering every unwatched directory; whatever still cannot be watched is rescanned.
+	 */
+	private void rescanUnwatched(final long now) {
+		nextRescan = now + rescanIntervalNanos;
+		if (unwatched.isEmpty()) {
+			return;
+		}
+
+		final var retried = new ArrayList<>(unwatched);
+		unwatched.clear();
+		retried.forEach(this::register);
+		retried.forEach(directory -> pendingDirectories.put(directory, now));
+		logger.debug("Rescanning {} directories; {} are still not watched", retried.size(),
+			unwatched.size());
+	}
+
+	/**
+	 * Watches {@code root} and every directory under it. A directory that cannot be watched is
+	 * added to {@link #unwatched} together with its subtree.
+	 */
+	private void register(final Path root) {
+		try {
+			Files.walkFileTree(root, new SimpleFileVisitor<>() {
+
+				@Override
+				public FileVisitResult preVisitDirectory(final Path dir,
+					final BasicFileAttributes attrs) {
+					if (pathFilter.isExcludedDirectory(dir)) {
+						return FileVisitResult.SKIP_SUBTREE;
+					}
+
+					try {
+						directories.put(dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY,
+							ENTRY_DELETE), dir);
+
+						return FileVisitResult.CONTINUE;
+					} catch (final IOException e) {
+						logger.debug(String.format("Failed to watch %s", dir), e);
+						unwatched.add(dir);
+
+						return FileVisitResult.SKIP_SUBTREE;
+					}
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(final Path file, final IOException exc) {
+					return FileVisitResult.CONTINUE;
+				}
+
+			});
+		} catch (final IOException e) {
+			logger.error(String.format("Failed to watch %s!", root), e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		watchService.close();
+	}
+
+}
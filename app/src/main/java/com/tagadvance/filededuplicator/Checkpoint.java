@@ -0,0 +1,130 @@
+package com.tagadvance.filededuplicator;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+
+/**
+ * Records the directories that have been walked completely, so that an interrupted scan can
+ * resume without walking them again. A directory is walked once every file under it has been
+ * catalogued. Marking a directory forgets its subdirectories, so only the frontier of the walk is
+ * kept in memory.
+ * <p>
+ * The checkpoint is saved to a temporary file that is synced and then moved over the previous
+ * checkpoint, so a crash leaves either the previous or the new checkpoint.
+ */
+public final class Checkpoint {
+
+	private static final CSVFormat csvFormat = CSVFormat.DEFAULT.builder().build();
+
+	private final Path file;
+	/**
+	 * Walked directories by their parent; a directory without a parent is its own key.
+	 */
+	private final Map<Path, Set<Path>> walkedByParent = new ConcurrentHashMap<>();
+
+	/**
+	 * @param file the checkpoint file, which is loaded if it exists
+	 * @throws IOException if the checkpoint file could not be read
+	 */
+	public Checkpoint(final Path file) throws IOException {
+		this.file = requireNonNull(file, "file must not be null");
+
+		if (Files.exists(file)) {
+			try (final var in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+				for (final var record : csvFormat.parse(in)) {
+					markWalked(Paths.get(record.get(0)));
+				}
+			}
+		}
+	}
+
+	public boolean isEmpty() {
+		return walkedByParent.isEmpty();
+	}
+
+	/**
+	 * @param path an absolute path
+	 * @return {@code true} if {@code path} or one of its ancestors has been walked
+	 */
+	public boolean isWalked(final Path path) {
+		for (var current = path; current != null; current = current.getParent()) {
+			final var walked = walkedByParent.get(parentOf(current));
+			if (walked != null && walked.contains(current)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Every subdirectory of {@code directory} must have been walked or skipped before.
+	 *
+	 * @param directory an absolute path
+	 */
+	public void markWalked(final Path directory) {
+		walkedByParent.remove(directory);
+		walkedByParent.computeIfAbsent(parentOf(directory), key -> ConcurrentHashMap.newKeySet())
+			.add(directory);
+	}
+
+	/**
+	 * @return a snapshot of the outermost walked directories
+	 */
+	public List<Path> walked() {
+		return walkedByParent.values().stream().flatMap(Set::stream).toList();
+	}
+
+	/**
+	 * @param walked the directories to save, usually a {@link #walked() snapshot}
+	 * @throws IOException if the checkpoint could not be written
+	 */
+	public synchronized void save(final Collection<Path> walked) throws IOException {
+		final var temporary = file.resolveSibling(file.getFileName() + ".tmp");
+		final var channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+			StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try (final var printer = new CSVPrinter(Channels.newWriter(channel, StandardCharsets.UTF_8),
+			csvFormat)) {
+			for (final var directory : walked) {
+				printer.printRecord(directory.toString());
+			}
+			printer.flush();
+			channel.force(true);
+		}
+		Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE,
+			StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Forgets every walked directory, e.g. once a scan has completed.
+	 *
+	 * @throws IOException if the checkpoint file could not be deleted
+	 */
+	public synchronized void delete() throws IOException {
+		walkedByParent.clear();
+		Files.deleteIfExists(file);
+	}
+
+	private static Path parentOf(final Path path) {
+		final var parent = path.getParent();
+
+		return parent == null ? path : parent;
+	}
+
+}
@@ -8,6 +8,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.StreamSupport;
 import org.snakeyaml.engine.v2.api.Load;
 import org.snakeyaml.engine.v2.api.LoadSettings;
@@ -15,7 +16,119 @@ import org.snakeyaml.engine.v2.api.LoadSettings;
 public record Configuration(
 	boolean dryRun, Path deduplication, boolean safeDelete, Path trash,
 	boolean replaceWithSymlink, List<String> roots, List<String> inclusions,
-	List<String> exclusions) {
+	List<String> exclusions, int partialHashSize, HashAlgorithm hashAlgorithm, int bufferSize,
+	int bufferPoolSize, int mappedHashThreshold, boolean incremental, MetaStore.Type store,
+	int groupingMemoryBudget, DedupAction.Type dedupAction, int actionThreads, boolean verify,
+	boolean oneFileSystem, int walkerThreads, int hasherThreads, boolean virtualThreads,
+	int maxOpenFiles, int rotationalReaders, int solidStateReaders, int batchSize,
+	int commitInterval, int checkpointInterval, int compactionInterval, boolean watch,
+	int watchDebounce, int watchActionInterval, int watchRescanInterval, int progressInterval,
+	Path metricsFile) {
+
+	/**
+	 * @throws IllegalArgumentException if {@code verify} is disabled for a hash algorithm whose
+	 *                                  collisions can be crafted
+	 */
+	public Configuration {
+		if (!verify && !hashAlgorithm.isCollisionResistant()) {
+			throw new IllegalArgumentException(String.format(
+				"verify may only be disabled with BLAKE3, SHA256 or SHA512, not %s", hashAlgorithm));
+		}
+	}
+
+	/**
+	 * The default number of KiB hashed from the start and from the end of a file before it is
+	 * fully hashed.
+	 */
+	public static final int DEFAULT_PARTIAL_HASH_SIZE = 4;
+
+	public static final HashAlgorithm DEFAULT_HASH_ALGORITHM = HashAlgorithm.MURMUR3_128;
+
+	/**
+	 * The default capacity in KiB of every pooled read buffer.
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 1024;
+
+	public static final int DEFAULT_BUFFER_POOL_SIZE = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * The default size in MiB from which files are memory-mapped instead of read into a pooled
+	 * buffer.
+	 */
+	public static final int DEFAULT_MAPPED_HASH_THRESHOLD = 64;
+
+	public static final int DEFAULT_WALKER_THREADS = Runtime.getRuntime().availableProcessors();
+
+	public static final int DEFAULT_HASHER_THREADS = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * The default number of files read at once from a spinning disk.
+	 */
+	public static final int DEFAULT_ROTATIONAL_READERS = 1;
+
+	/**
+	 * The default number of files read at once from any other device.
+	 */
+	public static final int DEFAULT_SOLID_STATE_READERS = DEFAULT_HASHER_THREADS;
+
+	/**
+	 * The default number of files that are stat'ed, listed or hashed at once in virtual thread
+	 * mode.
+	 */
+	public static final int DEFAULT_MAX_OPEN_FILES = 256;
+
+	/**
+	 * The default number of rows that are written and synced to the catalogue at once.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+
+	/**
+	 * The default number of milliseconds that a row may wait before it is written to the
+	 * catalogue.
+	 */
+	public static final int DEFAULT_COMMIT_INTERVAL = 1000;
+
+	/**
+	 * The default number of seconds between two checkpoints of an interrupted scan.
+	 */
+	public static final int DEFAULT_CHECKPOINT_INTERVAL = 60;
+
+	/**
+	 * The default number of minutes between two compactions of the catalogue during a run; 0
+	 * disables them.
+	 */
+	public static final int DEFAULT_COMPACTION_INTERVAL = 0;
+
+	/**
+	 * The default number of milliseconds for which a watched file must not change before it is
+	 * hashed.
+	 */
+	public static final int DEFAULT_WATCH_DEBOUNCE = 2000;
+
+	/**
+	 * The default number of seconds between two rounds of dedup actions in watch mode.
+	 */
+	public static final int DEFAULT_WATCH_ACTION_INTERVAL = 60;
+
+	/**
+	 * The default number of seconds between two rescans of the directories that cannot be watched.
+	 */
+	public static final int DEFAULT_WATCH_RESCAN_INTERVAL = 300;
+
+	/**
+	 * The default number of seconds between two progress lines.
+	 */
+	public static final int DEFAULT_PROGRESS_INTERVAL = 10;
+
+	/**
+	 * The default number of MiB that duplicate grouping may buffer before it spills to disk.
+	 */
+	public static final int DEFAULT_GROUPING_MEMORY_BUDGET = 64;
+
+	/**
+	 * The default number of duplicate groups processed at once.
+	 */
+	public static final int DEFAULT_ACTION_THREADS = Runtime.getRuntime().availableProcessors();
 
 	public static Configuration parseFile(final File file) throws IOException {
 		try (final var in = new FileInputStream(file)) {
@@ -41,9 +154,65 @@ public record Configuration(
 		final var roots = (List<String>) config.get("roots");
 		final var inclusions = (List<String>) config.get("inclusions");
 		final var exclusions = (List<String>) config.get("exclusions");
+		final var partialHashSize = getOrDefault(config, "partialHashSize",
+			DEFAULT_PARTIAL_HASH_SIZE);
+		final var hashAlgorithm = HashAlgorithm.valueOf(getOrDefault(config, "hashAlgorithm",
+			DEFAULT_HASH_ALGORITHM.name()));
+		final var bufferSize = getOrDefault(config, "bufferSize", DEFAULT_BUFFER_SIZE);
+		final var bufferPoolSize = getOrDefault(config, "bufferPoolSize",
+			DEFAULT_BUFFER_POOL_SIZE);
+		final var mappedHashThreshold = getOrDefault(config, "mappedHashThreshold",
+			DEFAULT_MAPPED_HASH_THRESHOLD);
+		final var incremental = getOrDefault(config, "incremental", true);
+		final var store = MetaStore.Type.valueOf(getOrDefault(config, "store",
+			MetaStore.Type.CSV.name()));
+		final var groupingMemoryBudget = getOrDefault(config, "groupingMemoryBudget",
+			DEFAULT_GROUPING_MEMORY_BUDGET);
+		final var dedupAction = DedupAction.Type.valueOf(getOrDefault(config, "dedupAction",
+			DedupAction.Type.SYMLINK.name()));
+		final var actionThreads = getOrDefault(config, "actionThreads", DEFAULT_ACTION_THREADS);
+		final var verify = getOrDefault(config, "verify", true);
+		final var oneFileSystem = getOrDefault(config, "oneFileSystem", false);
+		final var walkerThreads = getOrDefault(config, "walkerThreads", DEFAULT_WALKER_THREADS);
+		final var hasherThreads = getOrDefault(config, "hasherThreads", DEFAULT_HASHER_THREADS);
+		final var virtualThreads = getOrDefault(config, "virtualThreads", false);
+		final var maxOpenFiles = getOrDefault(config, "maxOpenFiles", DEFAULT_MAX_OPEN_FILES);
+		final var rotationalReaders = getOrDefault(config, "rotationalReaders",
+			DEFAULT_ROTATIONAL_READERS);
+		final var solidStateReaders = getOrDefault(config, "solidStateReaders",
+			DEFAULT_SOLID_STATE_READERS);
+		final var batchSize = getOrDefault(config, "batchSize", DEFAULT_BATCH_SIZE);
+		final var commitInterval = getOrDefault(config, "commitInterval",
+			DEFAULT_COMMIT_INTERVAL);
+		final var checkpointInterval = getOrDefault(config, "checkpointInterval",
+			DEFAULT_CHECKPOINT_INTERVAL);
+		final var compactionInterval = getOrDefault(config, "compactionInterval",
+			DEFAULT_COMPACTION_INTERVAL);
+		final var watch = getOrDefault(config, "watch", false);
+		final var watchDebounce = getOrDefault(config, "watchDebounce", DEFAULT_WATCH_DEBOUNCE);
+		final var watchActionInterval = getOrDefault(config, "watchActionInterval",
+			DEFAULT_WATCH_ACTION_INTERVAL);
+		final var watchRescanInterval = getOrDefault(config, "watchRescanInterval",
+			DEFAULT_WATCH_RESCAN_INTERVAL);
+		final var progressInterval = getOrDefault(config, "progressInterval",
+			DEFAULT_PROGRESS_INTERVAL);
+		final var metricsFile = config.get("metricsFile") == null ? null
+			: Paths.get((String) config.get("metricsFile"));
 
 		return new Configuration(druRun, dedpulication, safeDelete, trash, replaceWithSymlink,
-			roots, inclusions, exclusions);
+			roots, inclusions, exclusions, partialHashSize, hashAlgorithm, bufferSize, bufferPoolSize,
+			mappedHashThreshold, incremental, store, groupingMemoryBudget, dedupAction, actionThreads,
+			verify, oneFileSystem, walkerThreads, hasherThreads, virtualThreads, maxOpenFiles,
+			rotationalReaders, solidStateReaders, batchSize, commitInterval, checkpointInterval,
+			compactionInterval, watch, watchDebounce, watchActionInterval, watchRescanInterval,
+			progressInterval, metricsFile);
+	}
+
+	private static <T> T getOrDefault(final Map<String, ?> config, final String key,
+		final T defaultValue) {
+		final var value = config.get(key);
+
+		return value == null ? defaultValue : (T) value;
 	}
 
 }
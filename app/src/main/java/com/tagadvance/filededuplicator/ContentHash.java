@@ -0,0 +1,39 @@
+package com.tagadvance.filededuplicator;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.hash.HashCode;
+import com.google.common.primitives.UnsignedBytes;
+import java.util.Comparator;
+
+/**
+ * Digests are only comparable when they were produced by the same algorithm, so a digest is
+ * always paired with its algorithm. The digest is kept as raw bytes.
+ *
+ * @param algorithm the {@link HashEngine#algorithm() algorithm} that produced {@code hash}
+ * @param hash      the digest of the contents
+ */
+public record ContentHash(String algorithm, HashCode hash) implements Comparable<ContentHash> {
+
+	private static final Comparator<byte[]> BYTES_COMPARATOR =
+		UnsignedBytes.lexicographicalComparator();
+
+	public ContentHash {
+		requireNonNull(algorithm, "algorithm must not be null");
+		requireNonNull(hash, "hash must not be null");
+	}
+
+	@Override
+	public int compareTo(final ContentHash other) {
+		final var comparison = algorithm.compareTo(other.algorithm);
+
+		return comparison != 0 ? comparison
+			: BYTES_COMPARATOR.compare(hash.asBytes(), other.hash.asBytes());
+	}
+
+	@Override
+	public String toString() {
+		return algorithm + ':' + hash;
+	}
+
+}
@@ -0,0 +1,188 @@
+package com.tagadvance.filededuplicator;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.collect.Lists;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Confirms that the files of a duplicate group are identical before anything is moved or deleted.
+ * Every file is stat'ed again, and files that changed since they were hashed are left out, since
+ * their rows are stale. The remaining files are read in lockstep, one block of each file at a
+ * time, and every file is compared with the first; a file is left out as soon as one of its blocks
+ * differs. The first file is therefore read once per group rather than once per file, and a
+ * collision costs no more than the blocks up to the first difference.
+ * <p>
+ * At most {@link #MAX_OPEN_FILES} files are open at once; larger groups are compared with the first
+ * file in batches.
+ */
+public final class ContentVerifier {
+
+	private static final Logger logger = LoggerFactory.getLogger(ContentVerifier.class);
+
+	static final int MAX_OPEN_FILES = 64;
+
+	private static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+	private final int blockSize;
+
+	public ContentVerifier() {
+		this(DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * @param blockSize the number of bytes read from every file per step
+	 */
+	public ContentVerifier(final int blockSize) {
+		if (blockSize < 1) {
+			throw new IllegalArgumentException("blockSize must be positive");
+		}
+
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * @param group files whose hashes match
+	 * @return the first file that is unchanged and readable, followed by every other unchanged
+	 * file with identical contents, in their original order; empty if fewer than two remain
+	 */
+	public List<PathMeta> verify(final List<PathMeta> group) {
+		requireNonNull(group, "group must not be null");
+
+		final var unchanged = group.stream().filter(ContentVerifier::isUnchanged).toList();
+		if (unchanged.size() < 2) {
+			return List.of();
+		}
+
+		final var reference = unchanged.get(0);
+		final var verified = new ArrayList<PathMeta>(unchanged.size());
+		verified.add(reference);
+		for (final var batch : Lists.partition(unchanged.subList(1, unchanged.size()),
+			MAX_OPEN_FILES - 1)) {
+			try {
+				verified.addAll(compare(reference, batch));
+			} catch (final IOException e) {
+				logger.warn(String.format("Failed to compare duplicates of %s", reference.path()),
+					e);
+
+				return List.of();
+			}
+		}
+
+		return verified.size() < 2 ? List.of() : verified;
+	}
+
+	private static boolean isUnchanged(final PathMeta meta) {
+		final var path = meta.path();
+		try {
+			final var attributes = Files.readAttributes(path, BasicFileAttributes.class);
+			if (attributes.isRegularFile() && meta.isUnchanged(
+				PathMeta.fromAttributes(path, attributes))) {
+				return true;
+			}
+			logger.info("{} changed since it was hashed and is skipped", path);
+		} catch (final IOException e) {
+			logger.info("{} is no longer readable and is skipped", path);
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return the files of {@code batch} whose contents are identical to {@code reference}
+	 * @throws IOException if {@code reference} could not be read
+	 */
+	private List<PathMeta> compare(final PathMeta reference, final List<PathMeta> batch)
+		throws IOException {
+		final var candidates = new ArrayList<Candidate>(batch.size());
+		try (final var referenceChannel = FileChannel.open(reference.path(),
+			StandardOpenOption.READ)) {
+			for (final var meta : batch) {
+				try {
+					candidates.add(new Candidate(meta, FileChannel.open(meta.path(),
+						StandardOpenOption.READ), ByteBuffer.allocate(blockSize)));
+				} catch (final IOException e) {
+					logger.info("{} is no longer readable and is skipped", meta.path());
+				}
+			}
+
+			final var expected = ByteBuffer.allocate(blockSize);
+			var remaining = candidates.size();
+			while (remaining > 0) {
+				final var end = fill(referenceChannel, expected);
+				for (final var candidate : candidates) {
+					if (!candidate.channel.isOpen()) {
+						continue;
+					}
+					try {
+						if (candidate.matches(expected)) {
+							continue;
+						}
+						logger.warn("Hash collision detected: {} differs from {}",
+							candidate.meta.path(), reference.path());
+					} catch (final IOException e) {
+						logger.info("{} is no longer readable and is skipped",
+							candidate.meta.path());
+					}
+					candidate.channel.close();
+					remaining--;
+				}
+				if (end) {
+					break;
+				}
+			}
+
+			return candidates.stream()
+				.filter(candidate -> candidate.channel.isOpen())
+				.map(candidate -> candidate.meta)
+				.toList();
+		} finally {
+			for (final var candidate : candidates) {
+				candidate.channel.close();
+			}
+		}
+	}
+
+	/**
+	 * Fills {@code buffer} from the current position of {@code channel}.
+	 *
+	 * @return {@code true} if the end of the file was reached
+	 */
+	private static boolean fill(final FileChannel channel, final ByteBuffer buffer)
+		throws IOException {
+		buffer.clear();
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				buffer.flip();
+
+				return true;
+			}
+		}
+		buffer.flip();
+
+		return false;
+	}
+
+	private record Candidate(PathMeta meta, FileChannel channel, ByteBuffer buffer) {
+
+		/**
+		 * Reads the next block, which must equal {@code expected}, including its length.
+		 */
+		boolean matches(final ByteBuffer expected) throws IOException {
+			fill(channel, buffer);
+
+			return buffer.equals(expected);
+		}
+
+	}
+
+}
@@ -2,102 +2,338 @@ package com.tagadvance.filededuplicator;
 
 import static java.util.Objects.requireNonNull;
 
+import com.google.common.hash.HashCode;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Collections;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
-import java.util.Spliterator;
-import java.util.Spliterators;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.stream.Collectors;
-import java.util.stream.StreamSupport;
+import java.util.function.Consumer;
 import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVRecord;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public final class CsvDao implements AutoCloseable {
+/**
+ * Stores {@link PathMeta} rows in an append-only CSV file. Columns are path, size, last modified,
+ * MD5, SHA-512, partial hash, algorithm, hash and file key. The MD5 and SHA-512 columns are only
+ * populated by rows written before the hash algorithm became configurable; such rows are read as
+ * SHA-512 rows. The newest row for a path supersedes every earlier row for the same path until the
+ * file is {@link #compact() compacted}.
+ */
+public final class CsvDao implements MetaStore {
 
 	private static final Logger logger = LoggerFactory.getLogger(CsvDao.class);
 	private static final CSVFormat csvFormat = CSVFormat.DEFAULT.builder().build();
+	private static final int SAMPLE_LENGTH = 64 * 1024;
 
 	private final ReadWriteLock ioLock = new ReentrantReadWriteLock();
+	private final Lock compactionLock = new ReentrantLock();
 	private final File file;
-	private final Writer writer;
+	private final ScanMetrics metrics;
+	private FileOutputStream out;
+	private Writer writer;
 
 	public CsvDao(final File file) throws IOException {
+		this(file, new ScanMetrics());
+	}
+
+	/**
+	 * @param file    the CSV file, which is created if it does not exist
+	 * @param metrics records the time spent waiting for the lock and writing rows
+	 * @throws IOException if the file could not be opened
+	 */
+	public CsvDao(final File file, final ScanMetrics metrics) throws IOException {
 		this.file = requireNonNull(file, "file must not be null");
+		this.metrics = requireNonNull(metrics, "metrics must not be null");
+
+		openWriter();
+	}
+
+	private void openWriter() throws IOException {
+		cutTornRow();
 
 		final var append = true;
-		this.writer = new BufferedWriter(new FileWriter(file, append));
+		this.out = new FileOutputStream(file, append);
+		this.writer = new BufferedWriter(new OutputStreamWriter(out, Charset.defaultCharset()));
+	}
+
+	/**
+	 * A last row without a line break was torn by a crash while it was appended; it is cut off, so
+	 * that the next row is not appended onto it.
+	 */
+	private void cutTornRow() throws IOException {
+		if (file.length() == 0) {
+			return;
+		}
+		try (final var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			final var last = ByteBuffer.allocate(1);
+			channel.read(last, channel.size() - 1);
+			if (last.get(0) == '\n') {
+				return;
+			}
+		}
+
+		// a quoted path may hold a line break, so only parsing finds where the torn row starts
+		cutAt(newLoader().forEach(meta -> {
+		}));
 	}
 
+	private void cutAt(final long end) throws IOException {
+		logger.warn("Cutting off a torn row at byte {} of {}", end, file);
+		try (final var channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+			channel.truncate(end);
+			channel.force(true);
+		}
+	}
+
+	private CsvLoader newLoader() {
+		final var threads = Runtime.getRuntime().availableProcessors();
+
+		return new CsvLoader(file.toPath(), Charset.defaultCharset(), threads);
+	}
+
+	@Override
 	public List<PathMeta> selectAll() {
+		final var metas = new ArrayList<PathMeta>();
+		selectAll(metas::add);
+
+		return metas;
+	}
+
+	/**
+	 * Reads the file with a {@link CsvLoader}, which parses chunks of it in parallel and does not
+	 * hold every row in memory at once. A torn last row is left out and cut off.
+	 *
+	 * @throws UncheckedIOException if the file could not be read or holds a malformed row, rather
+	 *                              than passing on only part of the catalogue
+	 */
+	@Override
+	public void selectAll(final Consumer<PathMeta> action) {
+		requireNonNull(action, "action must not be null");
+
 		ioLock.writeLock().lock();
 		try {
 			writer.flush();
 
 			ioLock.readLock().lock();
-			try (final var in = new FileReader(file)) {
-				final var records = csvFormat.parse(in);
-				final var iterator = records.iterator();
-				final var spliterator = Spliterators.spliteratorUnknownSize(iterator,
-					Spliterator.ORDERED);
-				final var parallel = false;
-				final var stream = StreamSupport.stream(spliterator, parallel);
-
-				return stream.map(CsvDao::fromCsvRecord).collect(Collectors.toList());
+			try {
+				final var end = newLoader().forEach(action);
+				if (end < file.length()) {
+					cutAt(end);
+				}
 			} finally {
 				ioLock.readLock().unlock();
 			}
 		} catch (final IOException e) {
-			logger.error("{} could not be read", file);
+			throw new UncheckedIOException(String.format("%s could not be read", file), e);
 		} finally {
 			ioLock.writeLock().unlock();
 		}
-
-		return Collections.emptyList();
 	}
 
-	private static PathMeta fromCsvRecord(final CSVRecord record) {
-		final var pathValue = record.get(0);
-		final var path = Paths.get(pathValue);
-		final var fileSizeValue = record.get(1);
-		final var fileSize = Long.parseLong(fileSizeValue);
-		final var lastModifiedValue = record.get(2);
-		final var lastModified = Long.parseLong(lastModifiedValue);
-		final var md5 = record.get(3);
-		final var sha512 = record.get(4);
+	/**
+	 * Extrapolates the number of rows from the rows in the first block of the file.
+	 */
+	@Override
+	public long estimateSize() {
+		flush();
+
+		try (final var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			final var sample = ByteBuffer.allocate((int) Math.min(channel.size(), SAMPLE_LENGTH));
+			while (sample.hasRemaining() && channel.read(sample, sample.position()) != -1) {
+				// read until the sample is full
+			}
+			var rows = 0;
+			for (var i = 0; i < sample.position(); i++) {
+				if (sample.get(i) == '\n') {
+					rows++;
+				}
+			}
 
-		return new PathMeta(path, fileSize, lastModified, md5, sha512);
+			return sample.position() == 0 ? 0
+				: Math.max(1, channel.size() * rows / sample.position());
+		} catch (final IOException e) {
+			throw new UncheckedIOException(String.format("%s could not be read", file), e);
+		}
 	}
 
+	/**
+	 * @throws UncheckedIOException if the row could not be written
+	 */
+	@Override
 	public void insert(final PathMeta pathMeta) {
-		final var path = toString(pathMeta.path());
-		final var size = pathMeta.size();
-		final var lastModified = pathMeta.lastModified();
-		final var md5 = pathMeta.md5();
-		final var sha512 = pathMeta.sha512();
-		final var record = csvFormat.format(path, size, lastModified, md5, sha512);
+		final var record = toCsvRecord(pathMeta);
 
+		final var start = System.nanoTime();
 		ioLock.writeLock().lock();
+		final var locked = System.nanoTime();
 		try {
 			writer.write(record);
 			writer.write('\n');
+			metrics.storeWritten(1, locked - start, System.nanoTime() - locked);
+		} catch (final IOException e) {
+			throw new UncheckedIOException(String.format("%s could not be written", file), e);
+		} finally {
+			ioLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Formats every row before taking the lock once for the whole batch.
+	 *
+	 * @throws UncheckedIOException if the rows could not be written
+	 */
+	@Override
+	public void insertAll(final Collection<PathMeta> metas) {
+		final var records = new StringBuilder();
+		metas.forEach(pathMeta -> records.append(toCsvRecord(pathMeta)).append('\n'));
+
+		final var start = System.nanoTime();
+		ioLock.writeLock().lock();
+		final var locked = System.nanoTime();
+		try {
+			writer.append(records);
+			metrics.storeWritten(metas.size(), locked - start, System.nanoTime() - locked);
 		} catch (final IOException e) {
-			logger.error("Insert failed!", e);
+			throw new UncheckedIOException(String.format("%s could not be written", file), e);
 		} finally {
 			ioLock.writeLock().unlock();
 		}
 	}
 
+	private static String toCsvRecord(final PathMeta pathMeta) {
+		final var path = toString(pathMeta.path());
+		final var size = pathMeta.size();
+		final var lastModified = pathMeta.lastModified();
+		final var partialHash = toString(pathMeta.partialHash());
+		final var algorithm = pathMeta.algorithm();
+		final var hash = toString(pathMeta.hash());
+		final var fileKey = pathMeta.fileKey();
+
+		return csvFormat.format(path, size, lastModified, null, null, partialHash, algorithm,
+			hash, fileKey);
+	}
+
+	/**
+	 * Rewrites the file with the newest row of every path that is still a regular file or a link to
+	 * one, which the walk catalogues as the file it points to. The rows present when compaction
+	 * starts are streamed into a {@link PathCatalogue}, which holds every path once, and rewritten
+	 * to a temporary file without holding the lock; rows inserted meanwhile are copied over before
+	 * the temporary file atomically replaces the store.
+	 */
+	@Override
+	public void compact() {
+		if (!compactionLock.tryLock()) {
+			return;
+		}
+
+		final var temporary = Paths.get(file.getPath() + ".compact");
+		try {
+			final long snapshot;
+			ioLock.writeLock().lock();
+			try {
+				writer.flush();
+				snapshot = file.length();
+			} finally {
+				ioLock.writeLock().unlock();
+			}
+
+			final var rows = new AtomicLong();
+			final var catalogue = new PathCatalogue();
+			newLoader().forEach(meta -> {
+				rows.incrementAndGet();
+				if (meta.isTombstone()) {
+					catalogue.remove(meta.path());
+				} else {
+					catalogue.put(meta);
+				}
+			}, snapshot);
+
+			final var kept = new AtomicLong();
+			try (final var temporaryOut = new FileOutputStream(temporary.toFile());
+				final var temporaryWriter = new BufferedWriter(new OutputStreamWriter(temporaryOut,
+					Charset.defaultCharset()))) {
+				try {
+					catalogue.forEach((meta, id) -> {
+						if (Files.isRegularFile(meta.path())) {
+							try {
+								temporaryWriter.write(toCsvRecord(meta));
+								temporaryWriter.write('\n');
+								kept.incrementAndGet();
+							} catch (final IOException e) {
+								throw new UncheckedIOException(e);
+							}
+						}
+					});
+				} catch (final UncheckedIOException e) {
+					throw e.getCause();
+				}
+				temporaryWriter.flush();
+				temporaryOut.getFD().sync();
+			}
+
+			ioLock.writeLock().lock();
+			try {
+				writer.flush();
+				copyTail(snapshot, temporary);
+				writer.close();
+				try {
+					Files.move(temporary, file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+				} finally {
+					openWriter();
+				}
+			} finally {
+				ioLock.writeLock().unlock();
+			}
+
+			logger.info("Compacted {} from {} to {} rows", file, rows.get(), kept.get());
+		} catch (final IOException e) {
+			logger.error(String.format("Failed to compact %s", file), e);
+			try {
+				Files.deleteIfExists(temporary);
+			} catch (final IOException suppressed) {
+				e.addSuppressed(suppressed);
+			}
+		} finally {
+			compactionLock.unlock();
+		}
+	}
+
+	/**
+	 * Appends the rows written after {@code snapshot} to {@code target} and forces it to disk.
+	 */
+	private void copyTail(final long snapshot, final Path target) throws IOException {
+		try (final var source = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			final var destination = FileChannel.open(target, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND)) {
+			final var size = source.size();
+			for (var position = snapshot; position < size; ) {
+				position += source.transferTo(position, size - position, destination);
+			}
+			destination.force(true);
+		}
+	}
+
+	@Override
 	public void flush() {
 		ioLock.writeLock().lock();
 		try {
@@ -109,6 +345,22 @@ public final class CsvDao implements AutoCloseable {
 		}
 	}
 
+	/**
+	 * @throws UncheckedIOException if the rows could not be forced to disk
+	 */
+	@Override
+	public void sync() {
+		ioLock.writeLock().lock();
+		try {
+			writer.flush();
+			out.getFD().sync();
+		} catch (final IOException e) {
+			throw new UncheckedIOException(String.format("%s could not be synced", file), e);
+		} finally {
+			ioLock.writeLock().unlock();
+		}
+	}
+
 	@Override
 	public void close() {
 		ioLock.writeLock().lock();
@@ -125,4 +377,8 @@ public final class CsvDao implements AutoCloseable {
 		return path.toAbsolutePath().toString();
 	}
 
+	private static String toString(final HashCode hashCode) {
+		return hashCode == null ? null : hashCode.toString();
+	}
+
 }
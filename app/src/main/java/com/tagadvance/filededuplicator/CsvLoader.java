@@ -0,0 +1,483 @@
+package com.tagadvance.filededuplicator;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.hash.HashCode;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Reads the rows of a {@link CsvDao} file in parallel. The file is memory-mapped and cut into
+ * chunks at line breaks; chunks are parsed on a pool of threads straight from the mapped bytes,
+ * without a {@code CSVRecord} or an intermediate string per field, and handed over one chunk at a
+ * time in file order, so that later rows still supersede earlier ones.
+ * <p>
+ * A quoted path may contain a line break, so a chunk that starts at a line break can start in the
+ * middle of a row. Chunks are therefore parsed speculatively: every chunk ends at the first row
+ * that starts at or after its nominal end, and a chunk that does not start where the previous one
+ * ended is parsed again from the right offset.
+ * <p>
+ * Every row written by {@link CsvDao} ends with a line break. A last row without one was torn by a
+ * crash while it was appended; it is left out, and the offset where it starts is returned so that
+ * the store can cut it off.
+ */
+public final class CsvLoader {
+
+	private static final int MIN_CHUNK_SIZE = 1 << 20;
+	private static final int MAX_CHUNK_SIZE = 64 << 20;
+	private static final int MAX_FIELDS = 16;
+	private static final int SHA512_BYTES = 64;
+
+	/**
+	 * The start of a chunk that could not be parsed speculatively, which matches no row.
+	 */
+	private static final long MISPLACED = -1;
+
+	private static final byte[][] ALGORITHM_NAMES;
+
+	static {
+		final var algorithms = HashAlgorithm.values();
+		ALGORITHM_NAMES = new byte[algorithms.length][];
+		for (var i = 0; i < algorithms.length; i++) {
+			ALGORITHM_NAMES[i] = algorithms[i].name().getBytes(StandardCharsets.US_ASCII);
+		}
+	}
+
+	private final Path file;
+	private final Charset charset;
+	private final int threads;
+	private final int minChunkSize;
+
+	/**
+	 * @param file    a file written by {@link CsvDao}
+	 * @param charset the charset of the file
+	 * @param threads the number of chunks parsed at once
+	 */
+	public CsvLoader(final Path file, final Charset charset, final int threads) {
+		this(file, charset, threads, MIN_CHUNK_SIZE);
+	}
+
+	/**
+	 * @param minChunkSize the smallest chunk, so that tests can cut small files into many chunks
+	 */
+	CsvLoader(final Path file, final Charset charset, final int threads, final int minChunkSize) {
+		this.file = requireNonNull(file, "file must not be null");
+		this.charset = requireNonNull(charset, "charset must not be null");
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be positive");
+		}
+		if (minChunkSize < 1) {
+			throw new IllegalArgumentException("minChunkSize must be positive");
+		}
+
+		this.threads = threads;
+		this.minChunkSize = minChunkSize;
+	}
+
+	/**
+	 * Passes every complete row to {@code action} in file order, on the calling thread.
+	 *
+	 * @return the offset after the last complete row, which is less than the size of the file if
+	 * the last row was torn
+	 * @throws IOException if the file could not be read or holds a malformed row
+	 */
+	public long forEach(final Consumer<PathMeta> action) throws IOException {
+		return forEach(action, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Passes every row in the first {@code limit} bytes to {@code action}, so that a file that is
+	 * being appended to can be read up to a row boundary.
+	 *
+	 * @param limit the offset of a row boundary, e.g. the size of the file when it was flushed
+	 * @return the offset after the last complete row
+	 * @throws IOException if the file could not be read or holds a malformed row
+	 */
+	public long forEach(final Consumer<PathMeta> action, final long limit) throws IOException {
+		requireNonNull(action, "action must not be null");
+		if (limit < 0) {
+			throw new IllegalArgumentException("limit must not be negative");
+		}
+
+		try (final var channel = FileChannel.open(file, StandardOpenOption.READ);
+			final var executor = Executors.newFixedThreadPool(threads)) {
+			final var size = Math.min(channel.size(), limit);
+			final var chunkSize = Math.clamp(size / (threads * 4L), minChunkSize,
+				Math.max(minChunkSize, MAX_CHUNK_SIZE));
+
+			// at most one chunk per thread is parsed ahead of the consumer
+			final var pending = new ArrayDeque<Future<Chunk>>();
+			var next = 0L;
+			var expectedStart = 0L;
+			while (next < size || !pending.isEmpty()) {
+				while (next < size && pending.size() <= threads) {
+					final var nominalStart = next;
+					final var nominalEnd = Math.min(size, next + chunkSize);
+					pending.add(executor.submit(
+						() -> parseSpeculatively(channel, size, nominalStart, nominalEnd)));
+					next = nominalEnd;
+				}
+
+				var chunk = pending.remove().get();
+				if (chunk.start() != expectedStart) {
+					chunk = parse(channel, size, expectedStart, chunk.nominalEnd(), false);
+				}
+				chunk.metas().forEach(action);
+				expectedStart = chunk.end();
+			}
+
+			return expectedStart;
+		} catch (final UncheckedIOException e) {
+			throw e.getCause();
+		} catch (final ExecutionException e) {
+			if (e.getCause() instanceof UncheckedIOException cause) {
+				throw cause.getCause();
+			}
+			if (e.getCause() instanceof IOException cause) {
+				throw cause;
+			}
+
+			throw new IllegalStateException(e.getCause());
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+
+			throw new IOException(String.format("Interrupted while reading %s", file), e);
+		}
+	}
+
+	/**
+	 * @param start  the offset of the first row
+	 * @param end    the offset of the first row that is not parsed, which may be beyond
+	 *               {@code nominalEnd}, or the offset of a torn last row
+	 * @param metas  the parsed rows
+	 */
+	private record Chunk(long start, long nominalEnd, long end, List<PathMeta> metas) {
+
+	}
+
+	/**
+	 * A chunk that starts inside a quoted path may not parse at all; it is then parsed again from
+	 * the right offset, like any other chunk that starts at the wrong row.
+	 */
+	private Chunk parseSpeculatively(final FileChannel channel, final long size, final long from,
+		final long nominalEnd) throws IOException {
+		try {
+			return parse(channel, size, from, nominalEnd, true);
+		} catch (final UncheckedIOException e) {
+			return new Chunk(MISPLACED, nominalEnd, MISPLACED, List.of());
+		}
+	}
+
+	/**
+	 * @param from       where to start; if {@code speculative}, parsing starts after the first
+	 *                   line break at or after {@code from - 1}
+	 * @param nominalEnd rows that start at or after this offset are left to the next chunk
+	 */
+	private Chunk parse(final FileChannel channel, final long size, final long from,
+		final long nominalEnd, final boolean speculative) throws IOException {
+		if (from >= nominalEnd) {
+			return new Chunk(from, nominalEnd, from, List.of());
+		}
+
+		// rows may run past the nominal end, so map as much of the rest of the file as possible
+		final var base = speculative && from > 0 ? from - 1 : from;
+		final var length = (int) Math.min(size - base, Integer.MAX_VALUE);
+		final var buffer = channel.map(FileChannel.MapMode.READ_ONLY, base, length);
+		final var limit = (int) Math.min(length, nominalEnd - base);
+
+		var position = 0;
+		if (base < from) {
+			while (position < length && buffer.get(position) != '\n') {
+				position++;
+			}
+			position = Math.min(length, position + 1);
+		}
+
+		final var start = base + position;
+		final var parser = new RowParser(buffer, length, base, base + length == size);
+		final var metas = new ArrayList<PathMeta>();
+		while (position < limit) {
+			position = parser.parseRow(position);
+			if (parser.truncated) {
+				position = parser.rowStart;
+				break;
+			}
+			if (parser.count > 0) {
+				metas.add(parser.toPathMeta());
+			}
+		}
+
+		return new Chunk(start, nominalEnd, base + position, metas);
+	}
+
+	/**
+	 * Parses one row at a time, remembering where its fields are instead of copying them.
+	 */
+	private final class RowParser {
+
+		private final MappedByteBuffer buffer;
+		private final int length;
+		private final long base;
+		/**
+		 * Whether the buffer ends where the file ends, so that a row cut off by its end was torn.
+		 */
+		private final boolean endOfFile;
+		private final int[] starts = new int[MAX_FIELDS];
+		private final int[] ends = new int[MAX_FIELDS];
+		private final boolean[] escaped = new boolean[MAX_FIELDS];
+		private byte[] scratch = new byte[256];
+		private int count;
+		private int rowStart;
+		private boolean truncated;
+
+		RowParser(final MappedByteBuffer buffer, final int length, final long base,
+			final boolean endOfFile) {
+			this.buffer = buffer;
+			this.length = length;
+			this.base = base;
+			this.endOfFile = endOfFile;
+		}
+
+		/**
+		 * @return the offset of the next row; if the row is not terminated by a line break, it is
+		 * {@link #truncated} instead
+		 */
+		int parseRow(final int from) {
+			rowStart = from;
+			count = 0;
+			truncated = false;
+			var position = from;
+			if (isLineEnd(position)) {
+				// empty lines are skipped, like commons-csv does
+				return skipLineEnd(position);
+			}
+
+			while (true) {
+				if (count == MAX_FIELDS) {
+					throw malformed("too many fields");
+				}
+				final var field = count++;
+				escaped[field] = false;
+				if (position < length && buffer.get(position) == '"') {
+					starts[field] = ++position;
+					while (true) {
+						if (position >= length) {
+							return truncate();
+						}
+						if (buffer.get(position) == '"') {
+							if (position + 1 < length && buffer.get(position + 1) == '"') {
+								escaped[field] = true;
+								position += 2;
+								continue;
+							}
+							ends[field] = position++;
+							break;
+						}
+						position++;
+					}
+				} else {
+					starts[field] = position;
+					while (position < length && buffer.get(position) != ','
+						&& !isLineEnd(position)) {
+						position++;
+					}
+					ends[field] = position;
+				}
+
+				if (position >= length) {
+					return truncate();
+				}
+				if (buffer.get(position) == ',') {
+					position++;
+				} else if (isLineEnd(position)) {
+					return skipLineEnd(position);
+				} else {
+					throw malformed("unexpected character after a quoted field");
+				}
+			}
+		}
+
+		private int truncate() {
+			if (!endOfFile) {
+				throw malformed("row too long");
+			}
+			truncated = true;
+
+			return length;
+		}
+
+		private boolean isLineEnd(final int position) {
+			if (position >= length) {
+				return false;
+			}
+			final var b = buffer.get(position);
+
+			return b == '\n' || b == '\r' && position + 1 < length
+				&& buffer.get(position + 1) == '\n';
+		}
+
+		private int skipLineEnd(final int position) {
+			return buffer.get(position) == '\r' ? position + 2 : position + 1;
+		}
+
+		/**
+		 * Builds the meta of the row that was parsed last; legacy SHA-512 digests, which were
+		 * formatted without leading zeros, are padded.
+		 */
+		PathMeta toPathMeta() {
+			if (count < 3) {
+				throw malformed("too few fields");
+			}
+
+			final var path = Paths.get(string(0));
+			final var fileSize = parseLong(1);
+			final var lastModified = parseLong(2);
+			// rows written by earlier versions have fewer columns
+			final var partialHash = count > 5 ? hashCode(5, 0) : null;
+			final var algorithm = count > 7 ? algorithm(6) : null;
+			final var fileKey = count > 8 && !isEmpty(8) ? string(8) : null;
+			if (algorithm != null) {
+				return new PathMeta(path, fileSize, lastModified, fileKey, partialHash,
+					algorithm.algorithm(), hashCode(7, 0));
+			}
+
+			final var sha512 = count > 4 ? hashCode(4, SHA512_BYTES) : null;
+			if (sha512 == null) {
+				return new PathMeta(path, fileSize, lastModified, fileKey, partialHash, null, null);
+			}
+
+			return new PathMeta(path, fileSize, lastModified, fileKey, partialHash,
+				HashAlgorithm.SHA512.algorithm(), sha512);
+		}
+
+		private boolean isEmpty(final int field) {
+			return starts[field] == ends[field];
+		}
+
+		private String string(final int field) {
+			final var start = starts[field];
+			final var fieldLength = ends[field] - start;
+			if (scratch.length < fieldLength) {
+				scratch = new byte[Math.max(fieldLength, scratch.length * 2)];
+			}
+			buffer.get(start, scratch, 0, fieldLength);
+			if (!escaped[field]) {
+				return new String(scratch, 0, fieldLength, charset);
+			}
+
+			// collapse every doubled quote
+			var written = 0;
+			for (var i = 0; i < fieldLength; i++) {
+				scratch[written++] = scratch[i];
+				if (scratch[i] == '"') {
+					i++;
+				}
+			}
+
+			return new String(scratch, 0, written, charset);
+		}
+
+		private long parseLong(final int field) {
+			var position = starts[field];
+			final var end = ends[field];
+			final var negative = position < end && buffer.get(position) == '-';
+			if (negative) {
+				position++;
+			}
+			if (position == end) {
+				throw malformed("empty number");
+			}
+
+			var value = 0L;
+			for (; position < end; position++) {
+				final var digit = buffer.get(position) - '0';
+				if (digit < 0 || digit > 9) {
+					throw malformed("invalid number");
+				}
+				value = value * 10 + digit;
+			}
+
+			return negative ? -value : value;
+		}
+
+		/**
+		 * @param bytes the length of the digest, which is padded with leading zeros if its hex form
+		 *              is shorter, or 0 to take the length from the hex form
+		 * @return the digest, or {@code null} if the field is empty
+		 */
+		private HashCode hashCode(final int field, final int bytes) {
+			final var start = starts[field];
+			final var end = ends[field];
+			if (start == end) {
+				return null;
+			}
+
+			final var digits = end - start;
+			if (bytes == 0 ? digits % 2 != 0 : digits > 2 * bytes) {
+				throw malformed("invalid digest");
+			}
+			final var hash = new byte[bytes == 0 ? digits / 2 : bytes];
+			// fill from the last digit, so that a short digest is padded with leading zeros
+			var nibble = 0;
+			for (var position = end - 1; position >= start; position--, nibble++) {
+				final var value = Character.digit(buffer.get(position), 16);
+				if (value < 0) {
+					throw malformed("invalid digest");
+				}
+				final var index = hash.length - 1 - nibble / 2;
+				hash[index] |= (byte) (nibble % 2 == 0 ? value : value << 4);
+			}
+
+			return HashCode.fromBytes(hash);
+		}
+
+		private HashAlgorithm algorithm(final int field) {
+			final var start = starts[field];
+			final var fieldLength = ends[field] - start;
+			if (fieldLength == 0) {
+				return null;
+			}
+
+			final var algorithms = HashAlgorithm.values();
+			for (var i = 0; i < ALGORITHM_NAMES.length; i++) {
+				final var name = ALGORITHM_NAMES[i];
+				if (name.length == fieldLength && matches(start, name)) {
+					return algorithms[i];
+				}
+			}
+
+			throw malformed("unknown hash algorithm");
+		}
+
+		private boolean matches(final int start, final byte[] name) {
+			for (var i = 0; i < name.length; i++) {
+				if (buffer.get(start + i) != name[i]) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		private UncheckedIOException malformed(final String reason) {
+			return new UncheckedIOException(new IOException(String.format(
+				"Malformed row at byte %d of %s: %s", base + rowStart, file, reason)));
+		}
+
+	}
+
+}
@@ -0,0 +1,34 @@
+package com.tagadvance.filededuplicator;
+
+import java.util.List;
+
+/**
+ * Replaces duplicate files once their contents have been confirmed to be identical.
+ */
+public interface DedupAction {
+
+	enum Type {
+		/**
+		 * Moves the prominent copy into the deduplication directory and replaces every copy with
+		 * a symbolic link to it; see {@link SymlinkAction}.
+		 */
+		SYMLINK,
+		/**
+		 * Replaces every duplicate with a hard link to the prominent copy; see
+		 * {@link LinkAction}.
+		 */
+		HARDLINK,
+		/**
+		 * Replaces every duplicate with a copy-on-write clone of the prominent copy; see
+		 * {@link LinkAction}.
+		 */
+		REFLINK
+	}
+
+	/**
+	 * @param prominent  the copy that is kept
+	 * @param duplicates the copies that are replaced
+	 */
+	void apply(PathMeta prominent, List<PathMeta> duplicates);
+
+}
@@ -7,12 +7,19 @@ import com.google.inject.Provides;
 import com.google.inject.Singleton;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 
 public final class DefaultModule extends AbstractModule implements AutoCloseable {
 
+	private static final int MEMTABLE_SIZE = 100_000;
+	private static final int MAX_SEGMENTS = 8;
+
+	static final String JOURNAL_FILE = "file-deduplicator.journal";
+
 	private final Supplier<Configuration> configurationSupplier;
 	private final List<Runnable> closers = new ArrayList<>();
 
@@ -33,18 +40,105 @@ public final class DefaultModule extends AbstractModule implements AutoCloseable
 
 	@Provides
 	@Singleton
-	CsvDao providesCsvDao() throws IOException {
-		final var file = new File("file-deduplicator.csv");
-		final var csvDao = new CsvDao(file);
-		closers.add(csvDao::close);
+	ScanMetrics providesScanMetrics(final Configuration configuration) {
+		final var metrics = new ScanMetrics();
+		final var reporter = new MetricsReporter(metrics, configuration.progressInterval(),
+			configuration.metricsFile());
+		closers.add(reporter::close);
+
+		return metrics;
+	}
+
+	@Provides
+	@Singleton
+	MetaStore providesMetaStore(final Configuration configuration, final ScanMetrics metrics)
+		throws IOException {
+		final MetaStore store = switch (configuration.store()) {
+			case CSV -> new CsvDao(new File("file-deduplicator.csv"), metrics);
+			case SEGMENT -> new SegmentStore(Paths.get("file-deduplicator.db"), MEMTABLE_SIZE,
+				MAX_SEGMENTS, metrics);
+		};
+		final var batchingStore = new BatchingMetaStore(store, configuration.batchSize(),
+			configuration.commitInterval(), TimeUnit.MILLISECONDS);
+		metrics.setStoreQueueDepth(batchingStore::pending);
+		// filtered outside the batching store, so negative lookups do not wait for its writer
+		final var metaStore = new FilteredMetaStore(batchingStore,
+			Paths.get("file-deduplicator"));
+		closers.add(metaStore::close);
+
+		return metaStore;
+	}
+
+	@Provides
+	@Singleton
+	Hash providesHash(final Configuration configuration, final ScanMetrics metrics) {
+		final var bufferPool = new ByteBufferPool(configuration.bufferSize() * 1024,
+			configuration.bufferPoolSize());
+		final var mappedThreshold = configuration.mappedHashThreshold() * 1024L * 1024L;
+
+		return new Hash(bufferPool, mappedThreshold, metrics);
+	}
+
+	@Provides
+	@Singleton
+	PathFilter providesPathFilter(final Configuration configuration) {
+		return new PathFilter(configuration.inclusions(), configuration.exclusions());
+	}
+
+	@Provides
+	@Singleton
+	ScanEngine providesScanEngine(final Configuration configuration) {
+		final var scanEngine = configuration.virtualThreads() ? ScanEngine.ofVirtualThreads(
+			configuration.maxOpenFiles())
+			: new ScanEngine(configuration.walkerThreads(), configuration.hasherThreads());
+		closers.add(scanEngine::close);
+
+		return scanEngine;
+	}
+
+	@Provides
+	@Singleton
+	DeviceScheduler providesDeviceScheduler(final Configuration configuration) {
+		return new DeviceScheduler(configuration.rotationalReaders(),
+			configuration.solidStateReaders());
+	}
+
+	@Provides
+	@Singleton
+	Checkpoint providesCheckpoint() throws IOException {
+		return new Checkpoint(Paths.get("file-deduplicator.checkpoint"));
+	}
+
+	@Provides
+	@Singleton
+	ActionJournal providesActionJournal() {
+		final var journal = new ActionJournal(Paths.get(JOURNAL_FILE));
+		closers.add(journal::close);
+
+		return journal;
+	}
+
+	@Provides
+	@Singleton
+	DedupAction providesDedupAction(final Configuration configuration,
+		final ActionJournal journal) {
+		final var symlinkAction = new SymlinkAction(configuration, journal);
 
-		return csvDao;
+		return switch (configuration.dedupAction()) {
+			case SYMLINK -> symlinkAction;
+			case HARDLINK -> new LinkAction(false, configuration.dryRun(), journal, symlinkAction);
+			case REFLINK -> new LinkAction(true, configuration.dryRun(), journal, symlinkAction);
+		};
 	}
 
 	@Provides
 	@Singleton
-	FileDeduplicator providesFileScrubber(final Configuration configuration, final CsvDao csvDao) {
-		return new FileDeduplicator(configuration, csvDao);
+	FileDeduplicator providesFileScrubber(final Configuration configuration,
+		final MetaStore metaStore, final Hash hash, final PathFilter pathFilter,
+		final ScanEngine scanEngine, final DeviceScheduler deviceScheduler,
+		final Checkpoint checkpoint, final ScanMetrics metrics, final DedupAction dedupAction) {
+		return new FileDeduplicator(configuration, metaStore, hash, pathFilter, scanEngine,
+			deviceScheduler, checkpoint, metrics, dedupAction);
 	}
 
 }
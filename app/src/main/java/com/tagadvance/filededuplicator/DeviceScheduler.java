@@ -0,0 +1,154 @@
+package com.tagadvance.filededuplicator;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongPredicate;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Splits the files to read by the device that holds them so that every device gets its own
+ * concurrency limit. Rotational disks get a few readers that visit files in inode order, which
+ * approximates their order on disk and keeps seeking down; solid state, network and unknown devices
+ * get many readers.
+ */
+public final class DeviceScheduler {
+
+	private static final Logger logger = LoggerFactory.getLogger(DeviceScheduler.class);
+
+	/**
+	 * The format of {@link java.nio.file.attribute.BasicFileAttributes#fileKey() file keys} on
+	 * Unix.
+	 */
+	static final Pattern UNIX_FILE_KEY = Pattern.compile(
+		"\\(dev=([0-9a-f]+),ino=(\\d+)\\)");
+
+	private static final Path SYS_DEV_BLOCK = Paths.get("/sys/dev/block");
+
+	private static final Comparator<Entry> INODE_ORDER = Comparator.comparingLong(Entry::inode)
+		.thenComparing(entry -> entry.meta().path().toString());
+
+	/**
+	 * The files read from one device and the number of readers allowed on it.
+	 *
+	 * @param device     an identifier of the device
+	 * @param rotational whether the device is a spinning disk
+	 * @param readers    the number of files that may be read from the device at once
+	 * @param metas      the files in the order in which they should be read
+	 */
+	public record Lane(String device, boolean rotational, int readers, List<PathMeta> metas) {
+
+	}
+
+	private record Entry(PathMeta meta, long inode) {
+
+	}
+
+	private final int rotationalReaders;
+	private final int solidStateReaders;
+	private final LongPredicate isRotational;
+	private final Map<Long, Boolean> rotationalByDevice = new ConcurrentHashMap<>();
+
+	/**
+	 * @param rotationalReaders the number of readers per spinning disk
+	 * @param solidStateReaders the number of readers per other device
+	 */
+	public DeviceScheduler(final int rotationalReaders, final int solidStateReaders) {
+		this(rotationalReaders, solidStateReaders, DeviceScheduler::isRotationalBlockDevice);
+	}
+
+	DeviceScheduler(final int rotationalReaders, final int solidStateReaders,
+		final LongPredicate isRotational) {
+		if (rotationalReaders < 1) {
+			throw new IllegalArgumentException("rotationalReaders must be positive");
+		}
+		if (solidStateReaders < 1) {
+			throw new IllegalArgumentException("solidStateReaders must be positive");
+		}
+
+		this.rotationalReaders = rotationalReaders;
+		this.solidStateReaders = solidStateReaders;
+		this.isRotational = requireNonNull(isRotational, "isRotational must not be null");
+	}
+
+	/**
+	 * Files whose device cannot be determined from their file key share one lane.
+	 *
+	 * @param metas the files to read
+	 * @return one lane per device
+	 */
+	public List<Lane> schedule(final Collection<PathMeta> metas) {
+		final var entriesByDevice = new LinkedHashMap<Long, List<Entry>>();
+		for (final var meta : metas) {
+			final var matcher = meta.fileKey() == null ? null
+				: UNIX_FILE_KEY.matcher(meta.fileKey());
+			final var known = matcher != null && matcher.matches();
+			final var device = known ? Long.parseUnsignedLong(matcher.group(1), 16) : -1L;
+			final var inode = known ? Long.parseUnsignedLong(matcher.group(2)) : 0L;
+			entriesByDevice.computeIfAbsent(device, key -> new ArrayList<>())
+				.add(new Entry(meta, inode));
+		}
+
+		final var lanes = new ArrayList<Lane>(entriesByDevice.size());
+		entriesByDevice.forEach((device, entries) -> {
+			final var rotational = device != -1 && rotationalByDevice.computeIfAbsent(device,
+				isRotational::test);
+			if (rotational) {
+				entries.sort(INODE_ORDER);
+			}
+
+			final var name = device == -1 ? "unknown" : major(device) + ":" + minor(device);
+			final var readers = rotational ? rotationalReaders : solidStateReaders;
+			lanes.add(new Lane(name, rotational, readers,
+				entries.stream().map(Entry::meta).toList()));
+
+			logger.debug("{} files on {} device {} will be read by up to {} readers",
+				entries.size(), rotational ? "rotational" : "non-rotational", name, readers);
+		});
+
+		return lanes;
+	}
+
+	static long major(final long device) {
+		return ((device >>> 8) & 0xfff) | ((device >>> 32) & ~0xfffL);
+	}
+
+	static long minor(final long device) {
+		return (device & 0xff) | ((device >>> 12) & ~0xffL);
+	}
+
+	/**
+	 * Reads the rotational flag that Linux exposes for block devices. The flag of a partition is
+	 * found on its parent disk. Devices without a flag, such as network file systems, are treated
+	 * as non-rotational.
+	 */
+	private static boolean isRotationalBlockDevice(final long device) {
+		final var block = SYS_DEV_BLOCK.resolve(major(device) + ":" + minor(device));
+		try {
+			final var directory = block.toRealPath();
+			for (final var candidate : List.of(directory, directory.getParent())) {
+				final var rotational = candidate.resolve("queue/rotational");
+				if (Files.isReadable(rotational)) {
+					return Files.readString(rotational).trim().equals("1");
+				}
+			}
+		} catch (final IOException e) {
+			logger.debug("Failed to read the rotational flag of {}", block, e);
+		}
+
+		return false;
+	}
+
+}
@@ -0,0 +1,224 @@
+package com.tagadvance.filededuplicator;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Groups hashed metas by {@link PathMeta#contentHash() content hash} within a bounded amount of
+ * memory. Metas are buffered until the memory budget is used up, at which point the buffer is
+ * sorted and spilled to a run file. The runs are then merged so that every group is emitted once,
+ * in content hash order, without ever holding more than one group and one buffer in memory.
+ */
+public final class DuplicateGrouper implements Closeable {
+
+	/**
+	 * A rough estimate of the heap used by a buffered meta, excluding its path.
+	 */
+	private static final long META_OVERHEAD = 256;
+
+	private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+	private static final Comparator<PathMeta> ORDER = Comparator.comparing(PathMeta::contentHash)
+		.thenComparing(meta -> meta.path().toString());
+
+	private final long memoryBudget;
+	private final List<PathMeta> buffer = new ArrayList<>();
+	private final List<Run> runs = new ArrayList<>();
+	private Path directory;
+	private long bufferedBytes;
+
+	/**
+	 * @param memoryBudget the number of bytes that buffered metas may occupy before they are
+	 *                     spilled to disk
+	 */
+	public DuplicateGrouper(final long memoryBudget) {
+		if (memoryBudget < 1) {
+			throw new IllegalArgumentException("memoryBudget must be positive");
+		}
+
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * @param meta a hashed meta
+	 * @throws IOException if the buffer could not be spilled
+	 */
+	public void add(final PathMeta meta) throws IOException {
+		requireNonNull(meta, "meta must not be null");
+		if (!meta.isHashed()) {
+			throw new IllegalArgumentException(String.format("%s is not hashed", meta.path()));
+		}
+
+		buffer.add(meta);
+		bufferedBytes += META_OVERHEAD + 2L * meta.path().toString().length();
+		if (bufferedBytes >= memoryBudget) {
+			spill();
+		}
+	}
+
+	/**
+	 * @return the number of run files spilled so far
+	 */
+	public int runs() {
+		return runs.size();
+	}
+
+	/**
+	 * Passes every group of two or more metas with the same content hash to {@code action}, in
+	 * content hash order. Metas within a group are ordered by path.
+	 *
+	 * @throws IOException if a run could not be read
+	 */
+	public void forEachGroup(final Consumer<List<PathMeta>> action) throws IOException {
+		requireNonNull(action, "action must not be null");
+
+		sorted(metas -> emitGroups(metas, action));
+	}
+
+	/**
+	 * Passes every meta to {@code action}, in content hash order and then in path order.
+	 *
+	 * @throws IOException if a run could not be read
+	 */
+	public void forEach(final Consumer<PathMeta> action) throws IOException {
+		requireNonNull(action, "action must not be null");
+
+		sorted(metas -> metas.forEachRemaining(action));
+	}
+
+	private void sorted(final Consumer<Iterator<PathMeta>> action) throws IOException {
+		if (runs.isEmpty()) {
+			buffer.sort(ORDER);
+			action.accept(buffer.iterator());
+
+			return;
+		}
+
+		spill();
+		final var readers = new ArrayList<RunReader>(runs.size());
+		try {
+			for (final var run : runs) {
+				readers.add(new RunReader(run));
+			}
+			action.accept(Iterators.mergeSorted(readers, ORDER));
+		} catch (final UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			for (final var reader : readers) {
+				reader.close();
+			}
+		}
+	}
+
+	/**
+	 * Deletes every run file.
+	 */
+	@Override
+	public void close() throws IOException {
+		for (final var run : runs) {
+			Files.deleteIfExists(run.file());
+		}
+		runs.clear();
+		buffer.clear();
+		if (directory != null) {
+			Files.deleteIfExists(directory);
+			directory = null;
+		}
+	}
+
+	private void spill() throws IOException {
+		if (buffer.isEmpty()) {
+			return;
+		}
+		if (directory == null) {
+			directory = Files.createTempDirectory("file-deduplicator-");
+		}
+
+		buffer.sort(ORDER);
+		final var file = directory.resolve(String.format("run-%d", runs.size()));
+		try (final var out = new DataOutputStream(
+			new BufferedOutputStream(Files.newOutputStream(file), STREAM_BUFFER_SIZE))) {
+			final var writer = new Segment.RecordWriter(out);
+			for (final var meta : buffer) {
+				writer.write(meta);
+			}
+		}
+		runs.add(new Run(file, buffer.size()));
+
+		buffer.clear();
+		bufferedBytes = 0;
+	}
+
+	private static void emitGroups(final Iterator<PathMeta> metas,
+		final Consumer<List<PathMeta>> action) {
+		final var sorted = Iterators.peekingIterator(metas);
+		while (sorted.hasNext()) {
+			final var group = new ArrayList<PathMeta>();
+			group.add(sorted.next());
+			final var contentHash = group.get(0).contentHash();
+			while (sorted.hasNext() && sorted.peek().contentHash().equals(contentHash)) {
+				group.add(sorted.next());
+			}
+
+			if (group.size() > 1) {
+				action.accept(group);
+			}
+		}
+	}
+
+	private record Run(Path file, int count) {
+
+	}
+
+	private static final class RunReader extends AbstractIterator<PathMeta> implements Closeable {
+
+		private final DataInputStream in;
+		private final Segment.RecordReader reader;
+		private int remaining;
+
+		RunReader(final Run run) throws IOException {
+			this.in = new DataInputStream(
+				new BufferedInputStream(Files.newInputStream(run.file()), STREAM_BUFFER_SIZE));
+			this.reader = new Segment.RecordReader(in);
+			this.remaining = run.count();
+		}
+
+		@Override
+		protected PathMeta computeNext() {
+			if (remaining == 0) {
+				return endOfData();
+			}
+
+			try {
+				remaining--;
+
+				return reader.read();
+			} catch (final IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+
+	}
+
+}
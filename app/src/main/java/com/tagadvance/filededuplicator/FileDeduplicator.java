@@ -1,27 +1,37 @@
 package com.tagadvance.filededuplicator;
 
-import static com.tagadvance.filededuplicator.Hash.calculateHash;
 import static java.util.Objects.requireNonNull;
 
-import com.google.common.base.Stopwatch;
-import java.io.File;
 import java.io.IOException;
-import java.nio.file.CopyOption;
+import java.io.UncheckedIOException;
+import java.nio.file.FileStore;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.attribute.FileAttribute;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.function.Function;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.function.ToLongFunction;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import org.slf4j.Logger;
@@ -32,287 +42,781 @@ public final class FileDeduplicator implements Runnable {
 	private static final Logger logger = LoggerFactory.getLogger(FileDeduplicator.class);
 
 	private final Configuration configuration;
-	private final CsvDao csvDao;
-
-	public FileDeduplicator(final Configuration configuration, final CsvDao csvDao) {
+	private final MetaStore metaStore;
+	private final Hash hash;
+	private final PathFilter pathFilter;
+	private final ScanEngine scanEngine;
+	private final DeviceScheduler deviceScheduler;
+	private final Checkpoint checkpoint;
+	private final ScanMetrics metrics;
+	private final DedupAction dedupAction;
+	private volatile boolean stopped;
+
+	public FileDeduplicator(final Configuration configuration, final MetaStore metaStore,
+		final Hash hash, final PathFilter pathFilter, final ScanEngine scanEngine,
+		final DeviceScheduler deviceScheduler, final Checkpoint checkpoint,
+		final ScanMetrics metrics, final DedupAction dedupAction) {
 		this.configuration = requireNonNull(configuration, "configuration must not be null");
-		this.csvDao = requireNonNull(csvDao, "csvDao must not be null");
+		this.metaStore = requireNonNull(metaStore, "metaStore must not be null");
+		this.hash = requireNonNull(hash, "hash must not be null");
+		this.pathFilter = requireNonNull(pathFilter, "pathFilter must not be null");
+		this.scanEngine = requireNonNull(scanEngine, "scanEngine must not be null");
+		this.deviceScheduler = requireNonNull(deviceScheduler,
+			"deviceScheduler must not be null");
+		this.checkpoint = requireNonNull(checkpoint, "checkpoint must not be null");
+		this.metrics = requireNonNull(metrics, "metrics must not be null");
+		this.dedupAction = requireNonNull(dedupAction, "dedupAction must not be null");
+	}
+
+	/**
+	 * Stops walking, hashing and processing as soon as possible. {@link #run()} then saves a
+	 * checkpoint and returns, and the next run resumes from it.
+	 */
+	public void stop() {
+		stopped = true;
 	}
 
 	@Override
 	public void run() {
-		final Map<Path, PathMeta> metaByPath = csvDao.selectAll()
-			.stream()
-			.collect(Collectors.toConcurrentMap(PathMeta::path, Function.identity()));
-
-		configuration.roots()
-			.stream()
-			.parallel()
-			.map(Paths::get)
-			.forEach(path -> prefetch(metaByPath, path));
+		// later rows supersede earlier rows of the same path
+		final var catalogue = new PathCatalogue();
+		metaStore.selectAll(meta -> {
+			if (meta.isTombstone()) {
+				catalogue.remove(meta.path());
+			} else {
+				catalogue.put(meta);
+			}
+		});
+		if (!checkpoint.isEmpty()) {
+			logger.info("Resuming from the last checkpoint; {} walked directories are skipped",
+				checkpoint.walked().size());
+		}
 
-		processFiles();
-	}
+		try (final var checkpoints = Executors.newSingleThreadScheduledExecutor();
+			final var compactions = Executors.newSingleThreadScheduledExecutor()) {
+			final var interval = configuration.checkpointInterval();
+			checkpoints.scheduleWithFixedDelay(this::saveCheckpoint, interval, interval,
+				TimeUnit.SECONDS);
+			scheduleCompaction(compactions);
 
-	private void prefetch(final Map<Path, PathMeta> metaByPath, final Path path) {
-		final List<String> extensions = Collections.synchronizedList(new ArrayList<>());
-		final Consumer<Path> peekExtension = filePath -> {
-			if (!isIncluded(filePath) || !isNotExcluded(filePath)) {
-				Utils.getExtension(filePath).ifPresent(extensions::add);
+			walk(catalogue);
+			if (!stopped) {
+				hashCandidates(catalogue);
 			}
-		};
-
-		try (Stream<Path> stream = Files.walk(path)) {
-			stream.parallel()
-				.filter(Files::isRegularFile)
-				.peek(peekExtension)
-				.forEach(filePath -> createAndStorePathMeta(metaByPath, filePath));
-			csvDao.flush();
-		} catch (final IOException e) {
-			logger.error("Prefetch failed!", e);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.warn("Interrupted while hashing");
+
+			return;
 		}
 
-		printExtensionOptimizationHint(extensions);
-	}
+		saveCheckpoint();
+		if (stopped) {
+			logger.info("Stopped; the next run resumes from the last checkpoint");
 
-	private void createAndStorePathMeta(final Map<Path, PathMeta> metaByPath, final Path filePath) {
-		if (metaByPath.containsKey(filePath)) {
 			return;
 		}
 
-		final var stopwatch = Stopwatch.createStarted();
+		processFiles(catalogue);
 
-		try {
-			final var size = Files.size(filePath);
-			final var lastModified = Files.getLastModifiedTime(filePath).toMillis();
-			final var hashes = calculateHash(filePath, Hash.ALGORITHM_MD5, Hash.ALGORITHM_SHA512);
-			final var meta = new PathMeta(filePath, size, lastModified,
-				hashes.get(Hash.ALGORITHM_MD5), hashes.get(Hash.ALGORITHM_SHA512));
+		if (!stopped) {
+			try {
+				checkpoint.delete();
+			} catch (final IOException e) {
+				logger.error("Failed to delete the checkpoint!", e);
+			}
+		}
 
-			logger.debug("Hashed {} in {}", filePath, stopwatch);
+		if (configuration.watch() && !stopped) {
+			watch(catalogue);
+		}
+	}
 
-			metaByPath.put(filePath, meta);
-			csvDao.insert(meta);
-		} catch (final IOException e) {
-			logger.error(String.format("Failed to store hash for %s!", filePath), e);
+	/**
+	 * The store is compacted while the walk, the hashing or the watch keep appending to it.
+	 */
+	private void scheduleCompaction(final ScheduledExecutorService compactions) {
+		final var compactionInterval = configuration.compactionInterval();
+		if (compactionInterval > 0) {
+			compactions.scheduleWithFixedDelay(metaStore::compact, compactionInterval,
+				compactionInterval, TimeUnit.MINUTES);
 		}
 	}
 
-	private void printExtensionOptimizationHint(final Collection<String> extensions) {
-		final var extensionHints = extensions.stream()
-			.collect(Collectors.groupingBy(Function.identity(), Collectors.counting()));
-		final var values = extensionHints.values()
+	/**
+	 * Keeps the catalogue up to date with the changes under the roots until stopped. The contents
+	 * of changed files that might have duplicates are collected and acted on every
+	 * {@link Configuration#watchActionInterval()} seconds.
+	 */
+	private void watch(final PathCatalogue catalogue) {
+		final var roots = configuration.roots()
 			.stream()
-			.sorted(((Comparator<Long>) Long::compareTo).reversed())
+			.map(Paths::get)
+			.map(Path::toAbsolutePath)
 			.toList();
-		final var cutoff = values.get(Math.min(10, values.size() / 10));
-		logger.info("Please consider de-duplicating the following extensions:");
-		extensionHints.forEach((ext, count) -> {
-			if (count >= cutoff) {
-				logger.info("{} => {}", ext, count);
+		final var actionInterval = TimeUnit.SECONDS.toNanos(configuration.watchActionInterval());
+		final var pending = new HashMap<ContentHash, Long>();
+		try (final var watcher = new ChangeWatcher(roots, pathFilter,
+			configuration.watchDebounce(), configuration.watchRescanInterval() * 1000L,
+			TimeUnit.MILLISECONDS);
+			final var compactions = Executors.newSingleThreadScheduledExecutor()) {
+			scheduleCompaction(compactions);
+			logger.info("Watching {} directories for changes", watcher.watched());
+
+			var nextAction = System.nanoTime() + actionInterval;
+			while (!stopped) {
+				final var changes = watcher.poll(1, TimeUnit.SECONDS);
+				if (!changes.isEmpty()) {
+					pending.putAll(update(catalogue, changes));
+				}
+				if (System.nanoTime() - nextAction >= 0 && !stopped) {
+					if (!pending.isEmpty()) {
+						processHashes(catalogue, pending);
+						pending.clear();
+					}
+					nextAction = System.nanoTime() + actionInterval;
+				}
 			}
-		});
+		} catch (final IOException e) {
+			logger.error("Failed to watch the roots!", e);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			logger.warn("Interrupted while watching");
+		}
 	}
 
-	private void processFiles() {
-		final var allMetaPaths = csvDao.selectAll();
-		final AtomicLong redundantDataSize = new AtomicLong();
-		var metasByHash = allMetaPaths.stream()
-			.parallel()
-			.filter(meta -> isIncluded(meta.path()))
-			.filter(meta -> isNotExcluded(meta.path()))
-			.collect(Collectors.groupingBy(PathMeta::sha512));
-		metasByHash.forEach((hash, metas) -> {
-			if (isReadyForProcessing(metas)) {
-				final var sum = metas.stream().mapToLong(PathMeta::size).skip(1).sum();
-				redundantDataSize.addAndGet(sum);
-
-				processDuplicates(metas);
+	/**
+	 * Catalogues the changed files and tombstones the deleted ones. Only the files that share
+	 * their size with a changed file are fingerprinted and hashed, as in a full scan.
+	 *
+	 * @return the contents of the changed files that might have duplicates, with their sizes
+	 */
+	private Map<ContentHash, Long> update(final PathCatalogue catalogue,
+		final ChangeWatcher.Changes changes) throws InterruptedException {
+		final var paths = new LinkedHashSet<>(changes.paths());
+		for (final var directory : changes.directories()) {
+			catalogue.forEach(directory, (meta, id) -> paths.add(meta.path()));
+			try (final var files = Files.walk(directory)) {
+				files.forEach(paths::add);
+			} catch (final IOException | UncheckedIOException e) {
+				logger.error(String.format("Failed to rescan %s!", directory), e);
 			}
+		}
+
+		final var changed = new ArrayList<PathMeta>();
+		for (final var path : paths) {
+			final var attributes = readAttributes(path);
+			if (attributes.isPresent() && attributes.get().isDirectory()) {
+				continue;
+			}
+			// the actions skip duplicates that are already links, so a link that an action created
+			// is catalogued as its target without being acted on again
+			if (attributes.isEmpty() || !attributes.get().isRegularFile()) {
+				forget(catalogue, path);
+			} else if (pathFilter.accepts(path)) {
+				// the file is known to have changed, so it is compared even if not incremental
+				createPathMeta(catalogue, path, attributes.get(), true).ifPresent(meta -> {
+					metaStore.insert(meta);
+					changed.add(meta);
+				});
+			}
+		}
+		if (changed.isEmpty()) {
+			return Map.of();
+		}
+
+		final var sizes = changed.stream().mapToLong(PathMeta::size).distinct().toArray();
+		hashCandidates(catalogue, sharingSize(catalogue, sizes));
+
+		return changed.stream()
+			.map(meta -> catalogue.get(meta.path()))
+			.filter(meta -> meta != null && meta.isHashed())
+			.filter(meta -> metaStore.mightHaveDuplicates(meta.contentHash()))
+			.collect(Collectors.toMap(PathMeta::contentHash, PathMeta::size, (a, b) -> a));
+	}
+
+	/**
+	 * @return the attributes of {@code path} as a scan sees them, or nothing if it no longer exists
+	 */
+	private static Optional<BasicFileAttributes> readAttributes(final Path path) {
+		try {
+			return Optional.of(followLink(path, Files.readAttributes(path,
+				BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS)));
+		} catch (final IOException e) {
+			return Optional.empty();
+		}
+	}
+
+	/**
+	 * A symbolic link to a regular file is catalogued as the file it points to, as
+	 * {@link Files#walk(Path, java.nio.file.FileVisitOption...)} used to; any other link is not
+	 * catalogued.
+	 *
+	 * @param attributes the attributes of {@code path} itself
+	 * @return the attributes of the file {@code path} points to, or {@code attributes}
+	 */
+	private static BasicFileAttributes followLink(final Path path,
+		final BasicFileAttributes attributes) throws IOException {
+		return attributes.isSymbolicLink() && Files.isRegularFile(path)
+			? Files.readAttributes(path, BasicFileAttributes.class) : attributes;
+	}
+
+	/**
+	 * Stores a tombstone for {@code path} and for every catalogued file under it.
+	 */
+	private void forget(final PathCatalogue catalogue, final Path path) {
+		final var forgotten = new ArrayList<Path>();
+		catalogue.forEach(path, (meta, id) -> forgotten.add(meta.path()));
+		forgotten.forEach(filePath -> {
+			catalogue.remove(filePath);
+			metaStore.insert(PathMeta.tombstone(filePath));
 		});
+	}
 
-		final AtomicLong redundantDataTotal = new AtomicLong();
-		allMetaPaths.stream()
-			.collect(Collectors.groupingBy(PathMeta::sha512))
-			.forEach((hash, metas) -> {
-				if (isReadyForProcessing(metas)) {
-					final var sum = metas.stream().mapToLong(PathMeta::size).skip(1).sum();
-					redundantDataTotal.addAndGet(sum);
+	/**
+	 * Processes every group of catalogued files whose contents are one of {@code sizes}' keys.
+	 * Only the files of their sizes are looked at.
+	 *
+	 * @param sizes the size of the files with each content
+	 */
+	private void processHashes(final PathCatalogue catalogue, final Map<ContentHash, Long> sizes) {
+		final var groups = new HashMap<ContentHash, List<PathMeta>>();
+		for (final var size : Set.copyOf(sizes.values())) {
+			catalogue.forEachOfSize(size, (meta, id) -> {
+				if (meta.isHashed() && sizes.containsKey(meta.contentHash())) {
+					groups.computeIfAbsent(meta.contentHash(), key -> new ArrayList<>()).add(meta);
 				}
 			});
+		}
 
-		logger.info("{} of redundant data detected",
-			Utils.humanReadableByteCountBin(redundantDataSize.get()));
+		try {
+			processGroups(action -> groups.values()
+				.stream()
+				.filter(group -> group.size() > 1)
+				.forEach(action));
+		} catch (final IOException e) {
+			logger.error("Failed to process duplicates!", e);
+		}
+	}
 
-		final var totalBytes = redundantDataTotal.get();
-		final var difference = totalBytes - redundantDataSize.get();
-		if (difference > 0) {
-			logger.info("An additional {} of data may be deduplicated by processing all files.",
-				Utils.humanReadableByteCountBin(difference));
+	private void walk(final PathCatalogue catalogue) {
+		final var rootsByDevice = configuration.roots()
+			.stream()
+			.map(Paths::get)
+			.map(Path::toAbsolutePath)
+			.collect(Collectors.groupingBy(FileDeduplicator::getDevice, LinkedHashMap::new,
+				Collectors.toList()));
+		// roots on the same device are walked one after another, roots on different devices at once
+		try (final var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+			rootsByDevice.values()
+				.forEach(roots -> executor.execute(
+					() -> roots.forEach(path -> prefetch(catalogue, path))));
 		}
 	}
 
-	private boolean isIncluded(final Path path) {
-		final var inclusions = configuration.inclusions();
-		if (inclusions == null || inclusions.isEmpty()) {
-			return true;
+	/**
+	 * Walked directories are snapshotted before the catalogue is synced, so every file under a
+	 * saved directory is durable before the checkpoint that lists it.
+	 */
+	private void saveCheckpoint() {
+		final var walked = checkpoint.walked();
+		try {
+			metaStore.sync();
+		} catch (final RuntimeException e) {
+			// the rows of a walked directory may have been lost, so it must be walked again
+			logger.error("Failed to sync the catalogue; the checkpoint is not saved!", e);
+
+			return;
+		}
+		if (Thread.currentThread().isInterrupted()) {
+			return;
 		}
 
-		final var absolutePath = path.toAbsolutePath().toString();
+		try {
+			checkpoint.save(walked);
+			logger.debug("Saved a checkpoint of {} walked directories", walked.size());
+		} catch (final IOException e) {
+			logger.error("Failed to save the checkpoint!", e);
+		}
+	}
 
-		return inclusions.stream()
-			.map(regex -> Pattern.compile(regex, Pattern.CASE_INSENSITIVE))
-			.map(pattern -> pattern.matcher(absolutePath))
-			.anyMatch(Matcher::find);
+	/**
+	 * @return the file store of {@code root}, or {@code root} itself if it cannot be determined
+	 */
+	private static Object getDevice(final Path root) {
+		try {
+			return Files.getFileStore(root);
+		} catch (final IOException e) {
+			return root;
+		}
 	}
 
-	private boolean isNotExcluded(final Path path) {
-		final var exclusions = configuration.exclusions();
-		if (exclusions == null || exclusions.isEmpty()) {
-			return true;
+	private void prefetch(final PathCatalogue catalogue, final Path path) {
+		if (stopped) {
+			return;
+		}
+
+		final var visitor = new ScanVisitor(catalogue, metrics.root(path));
+		try {
+			if (configuration.oneFileSystem()) {
+				visitor.fileStore = Files.getFileStore(path);
+			}
+			scanEngine.walk(path, visitor);
+		} catch (final IOException e) {
+			logger.error("Prefetch failed!", e);
 		}
+		visitor.root.finished();
 
-		final var absolutePath = path.toAbsolutePath().toString();
+		if (configuration.incremental() && !stopped) {
+			tombstoneMissingFiles(catalogue, path, visitor.visited);
+		}
 
-		return exclusions.stream()
-			.map(Pattern::compile)
-			.map(pattern -> pattern.matcher(absolutePath))
-			.noneMatch(Matcher::find);
+		printExtensionOptimizationHint(visitor.extensions);
 	}
 
-	private boolean isReadyForProcessing(final Collection<PathMeta> metas) {
-		// if both hashes match then the contents are the same
-		// the odds of a md5sum and sha512sum both colliding are astronomically low
-		final var count = metas.stream().map(PathMeta::md5).distinct().count();
-		if (count > 1) {
-			logger.warn("Hash collision detected for: {}", metas.stream()
-				.map(PathMeta::path)
-				.map(Path::getFileName)
-				.map(Path::toString)
-				.distinct()
-				.collect(Collectors.joining(", ")));
+	/**
+	 * Collects the attributes of a file that is not yet in the catalogue or, if {@code compare} is
+	 * set, that has changed since it was last hashed. No content is read at this stage.
+	 *
+	 * @param compare whether a catalogued file is compared with its attributes; a scan only does
+	 *                so in incremental mode
+	 */
+	private Optional<PathMeta> createPathMeta(final PathCatalogue catalogue,
+		final Path filePath, final BasicFileAttributes attributes, final boolean compare) {
+		final var stored = catalogue.get(filePath);
+		if (stored != null && !compare) {
+			return Optional.empty();
+		}
 
-			return false;
+		final var meta = PathMeta.fromAttributes(filePath, attributes);
+		if (stored == null) {
+			return catalogue.putIfAbsent(meta) ? Optional.of(meta) : Optional.empty();
+		}
+		if (stored.isUnchanged(meta)) {
+			return Optional.empty();
 		}
 
-		return metas.size() > 1;
+		logger.debug("{} changed since it was last scanned", filePath);
+
+		return catalogue.replace(stored, meta) ? Optional.of(meta) : Optional.empty();
 	}
 
-	private void processDuplicates(final List<PathMeta> metas) {
-		final var sortedMetas = metas.stream()
-			.sorted(Comparator.comparing(PathMeta::lastModified).reversed())
-			.collect(Collectors.toList());
-		final var prominentMeta = sortedMetas.remove(0);
-		final var prominentPath = prominentMeta.path();
-		final var deduplication = configuration.deduplication().resolve(prominentMeta.sha512());
-
-		if (configuration.dryRun()) {
-			logger.info("The prominent {} will be moved to {} and a symbol link created",
-				prominentPath, deduplication);
-		} else {
-			if (Files.exists(prominentPath) && !Files.isSymbolicLink(prominentPath)
-				&& !Files.exists(deduplication) && move(prominentPath, deduplication)) {
-				if (!createSymbolicLink(prominentPath, deduplication)) {
-					// rollback
-					if (!move(prominentPath, deduplication)) {
-						logger.error("Rollback failed!");
-						System.exit(1);
-					}
+	/**
+	 * Stores a tombstone for every catalogued file under {@code root} that no longer exists.
+	 */
+	private void tombstoneMissingFiles(final PathCatalogue catalogue, final Path root,
+		final BitSet visited) {
+		final var unvisited = new ArrayList<Path>();
+		catalogue.forEach(root, (meta, id) -> {
+			if (!visited.get(id)) {
+				unvisited.add(meta.path());
+			}
+		});
+		final var missing = unvisited.stream().filter(Files::notExists).toList();
+		missing.forEach(filePath -> {
+			catalogue.remove(filePath);
+			metaStore.insert(PathMeta.tombstone(filePath));
+		});
+
+		logger.info("{} files under {} no longer exist", missing.size(), root);
+	}
+
+	/**
+	 * Only files that share their size with at least one other file can have a duplicate, so
+	 * only those are fingerprinted. Only files that share their size and fingerprint with at least
+	 * one other file are fully hashed. Fingerprints and hashes are stored as soon as they are
+	 * calculated, so an interrupted run does not calculate them again.
+	 * <p>
+	 * The sizes are counted by the catalogue's size index, so a file of a unique size is never
+	 * looked at.
+	 */
+	private void hashCandidates(final PathCatalogue catalogue) throws InterruptedException {
+		hashCandidates(catalogue, sharingSize(catalogue, catalogue.sharedSizes()));
+	}
+
+	/**
+	 * @return every accepted file whose size is one of {@code sizes} and is shared with another
+	 * accepted file
+	 */
+	private List<PathMeta> sharingSize(final PathCatalogue catalogue, final long[] sizes) {
+		final var sizeCandidates = new ArrayList<PathMeta>();
+		for (final var size : sizes) {
+			final var start = sizeCandidates.size();
+			catalogue.forEachOfSize(size, (meta, id) -> {
+				if (pathFilter.accepts(meta.path())) {
+					sizeCandidates.add(meta);
 				}
-			} else {
-				logger.info("{} already moved to {}", prominentPath, deduplication);
+			});
+			if (sizeCandidates.size() - start < 2) {
+				sizeCandidates.subList(start, sizeCandidates.size()).clear();
+			}
+		}
+
+		return sizeCandidates;
+	}
+
+	/**
+	 * @param sizeCandidates the catalogued files that share their size with another file
+	 */
+	private void hashCandidates(final PathCatalogue catalogue,
+		final Collection<PathMeta> sizeCandidates) throws InterruptedException {
+		logger.info("{} of {} files share a size and will be fingerprinted", sizeCandidates.size(),
+			catalogue.size());
+
+		final var unfingerprinted = sizeCandidates.stream()
+			.filter(meta -> !meta.isPartiallyHashed())
+			.toList();
+		final var partialHashSize = configuration.partialHashSize() * 1024L;
+		final ToLongFunction<PathMeta> partialBytes = meta -> Math.min(meta.size(),
+			2 * partialHashSize);
+		metrics.queued(unfingerprinted.size(),
+			unfingerprinted.stream().mapToLong(partialBytes).sum());
+		scanEngine.forEachLane(deviceScheduler.schedule(unfingerprinted), meta -> {
+			try {
+				if (!stopped) {
+					createPartialPathMeta(meta).ifPresent(fingerprinted -> {
+						catalogue.put(fingerprinted);
+						metaStore.insert(fingerprinted);
+					});
+				}
+			} finally {
+				metrics.dequeued(partialBytes.applyAsLong(meta));
 			}
+		});
+		if (stopped) {
+			return;
+		}
+
+		final var partiallyHashed = sizeCandidates.stream()
+			.map(meta -> catalogue.get(meta.path()))
+			.filter(PathMeta::isPartiallyHashed)
+			.toList();
+		final var engine = configuration.hashAlgorithm();
+		final var contentCandidates = groupsSharingKey(partiallyHashed,
+			meta -> List.of(meta.size(), meta.partialHash()))
+			.filter(group -> !isHashedWithSameAlgorithm(group))
+			.flatMap(List::stream)
+			.filter(meta -> !meta.isHashedWith(engine))
+			.collect(Collectors.toSet());
+
+		logger.info("{} of {} files share a fingerprint and will be hashed",
+			contentCandidates.size(), partiallyHashed.size());
+
+		metrics.queued(contentCandidates.size(),
+			contentCandidates.stream().mapToLong(PathMeta::size).sum());
+		scanEngine.forEachLane(deviceScheduler.schedule(contentCandidates), meta -> {
+			try {
+				if (!stopped) {
+					createAndStorePathMeta(catalogue, meta);
+				}
+			} finally {
+				metrics.dequeued(meta.size());
+			}
+		});
+		metaStore.flush();
+	}
+
+	/**
+	 * @return every group of two or more metas that share a key
+	 */
+	private static <K> Stream<List<PathMeta>> groupsSharingKey(final Collection<PathMeta> metas,
+		final Function<PathMeta, K> key) {
+		return metas.stream()
+			.collect(Collectors.groupingBy(key))
+			.values()
+			.stream()
+			.filter(group -> group.size() > 1);
+	}
+
+	/**
+	 * Rows hashed by a previously configured algorithm stay valid as long as every file they are
+	 * compared against was hashed by the same algorithm.
+	 */
+	private static boolean isHashedWithSameAlgorithm(final Collection<PathMeta> metas) {
+		return metas.stream().allMatch(PathMeta::isHashed)
+			&& metas.stream().map(PathMeta::algorithm).distinct().count() == 1;
+	}
+
+	private Optional<PathMeta> createPartialPathMeta(final PathMeta meta) {
+		final var filePath = meta.path();
+		final var length = configuration.partialHashSize() * 1024;
+
+		try {
+			final var partialHash = hash.calculatePartialHash(filePath, length);
+
+			return Optional.of(meta.withPartialHash(partialHash));
+		} catch (final IOException e) {
+			logger.error(String.format("Failed to fingerprint %s!", filePath), e);
+			metrics.readFailed();
 		}
 
-		sortedMetas.forEach(meta -> {
-			final var filePath = meta.path();
-			final var trashName = filePath.toAbsolutePath()
-				.toString()
-				.replaceAll(File.separator, "_");
-			final var trash = configuration.trash().resolve(trashName);
+		return Optional.empty();
+	}
 
-			if (!Files.exists(filePath) || Files.isSymbolicLink(filePath)) {
-				logger.info("{} already pointed at {}", filePath, deduplication);
+	/**
+	 * Visits a root from several walker threads without following symbolic links. Directories whose
+	 * every path is excluded are skipped without being read, as are directories on another file
+	 * store when {@link Configuration#oneFileSystem()} is set. Files that are not accepted by the
+	 * {@link PathFilter} are not catalogued.
+	 * <p>
+	 * Directories walked before the last {@link Checkpoint} are skipped. A directory is checkpointed
+	 * once it has been walked, unless a path under it could not be visited or the scan was stopped.
+	 */
+	private final class ScanVisitor extends SimpleFileVisitor<Path> {
+
+		private final PathCatalogue catalogue;
+		private final ScanMetrics.Root root;
+		/**
+		 * The ids of the catalogued files that were visited; guarded by itself.
+		 */
+		private final BitSet visited = new BitSet();
+		private final Set<Path> failed = ConcurrentHashMap.newKeySet();
+		private final List<String> extensions = Collections.synchronizedList(new ArrayList<>());
+		private FileStore fileStore;
+
+		ScanVisitor(final PathCatalogue catalogue, final ScanMetrics.Root root) {
+			this.catalogue = catalogue;
+			this.root = root;
+		}
 
-				return;
+		@Override
+		public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs)
+			throws IOException {
+			if (stopped) {
+				return FileVisitResult.TERMINATE;
 			}
+			if (checkpoint.isWalked(dir)) {
+				logger.debug("Skipping {} because it was walked before the last checkpoint", dir);
 
-			if (configuration.dryRun()) {
-				logDryRun(filePath, trash, deduplication);
+				return FileVisitResult.SKIP_SUBTREE;
+			}
+			if (pathFilter.isExcludedDirectory(dir)) {
+				logger.debug("Skipping {} because every file under it is excluded", dir);
 
-				return;
+				return FileVisitResult.SKIP_SUBTREE;
 			}
+			if (fileStore != null && !fileStore.equals(Files.getFileStore(dir))) {
+				logger.debug("Skipping {} because it is on another file system", dir);
 
-			// soft-delete
-			if (!move(filePath, trash)) {
-				return;
+				return FileVisitResult.SKIP_SUBTREE;
 			}
 
-			if (configuration.replaceWithSymlink()) {
-				if (createSymbolicLink(filePath, deduplication)) {
-					if (!configuration.safeDelete()) {
-						rm(trash);
-					}
-				} else {
-					// rollback soft-delete
-					move(trash, filePath);
+			metrics.directoryWalked();
+
+			return FileVisitResult.CONTINUE;
+		}
+
+		@Override
+		public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs)
+			throws IOException {
+			if (stopped) {
+				return FileVisitResult.TERMINATE;
+			}
+
+			final var attributes = followLink(file, attrs);
+			if (!attributes.isRegularFile()) {
+				return FileVisitResult.CONTINUE;
+			}
+
+			root.fileWalked(attributes.size());
+			if (pathFilter.accepts(file)) {
+				final var id = catalogue.intern(file);
+				synchronized (visited) {
+					visited.set(id);
 				}
+				createPathMeta(catalogue, file, attributes, configuration.incremental())
+					.ifPresent(metaStore::insert);
+			} else {
+				Utils.getExtension(file).ifPresent(extensions::add);
 			}
-		});
 
-		logger.info("");
-	}
+			return FileVisitResult.CONTINUE;
+		}
 
-	private void logDryRun(final Path path, final Path trash, final Path deduplication) {
-		final var sb = new StringBuilder();
+		@Override
+		public FileVisitResult visitFileFailed(final Path file, final IOException exc) {
+			logger.error(String.format("Failed to visit %s!", file), exc);
+			metrics.walkFailed();
+			failed.add(file);
 
-		if (configuration.safeDelete()) {
-			sb.append(String.format("%s will be moved to %s", path, trash));
-		} else {
-			sb.append(String.format("%s will be permanently deleted", path));
+			return FileVisitResult.CONTINUE;
 		}
-		if (configuration.replaceWithSymlink()) {
-			sb.append(String.format(" and symlinked to %s", deduplication));
+
+		@Override
+		public FileVisitResult postVisitDirectory(final Path dir, final IOException exc) {
+			if (exc != null) {
+				logger.error(String.format("Failed to list %s!", dir), exc);
+				metrics.walkFailed();
+				failed.add(dir);
+			} else if (!stopped && failed.stream().noneMatch(path -> path.startsWith(dir))) {
+				checkpoint.markWalked(dir);
+			}
+
+			return FileVisitResult.CONTINUE;
 		}
 
-		logger.info("{}", sb);
 	}
 
-	public static boolean move(final Path source, final Path target, final CopyOption... options) {
+	private void createAndStorePathMeta(final PathCatalogue catalogue,
+		final PathMeta partialMeta) {
+		final var filePath = partialMeta.path();
+
 		try {
-			Files.move(source, target, options);
-			logger.info("Moved {} to {}", source, target);
+			final var engine = configuration.hashAlgorithm();
+			final var contentHash = hash.calculateHash(filePath, engine);
+			final var meta = partialMeta.withHash(engine.algorithm(), contentHash);
+
+			logger.debug("Hashed {}", filePath);
 
-			return true;
+			catalogue.put(meta);
+			metaStore.insert(meta);
 		} catch (final IOException e) {
-			logger.error(String.format("Failed to move %s to %s", source, target), e);
+			logger.error(String.format("Failed to store hash for %s!", filePath), e);
+			metrics.readFailed();
+		}
+	}
+
+	private void printExtensionOptimizationHint(final Collection<String> extensions) {
+		if (extensions.isEmpty()) {
+			return;
 		}
 
-		return false;
+		final var extensionHints = extensions.stream()
+			.collect(Collectors.groupingBy(Function.identity(), Collectors.counting()));
+		final var values = extensionHints.values()
+			.stream()
+			.sorted(((Comparator<Long>) Long::compareTo).reversed())
+			.toList();
+		final var cutoff = values.get(Math.min(10, values.size() / 10));
+		logger.info("Please consider de-duplicating the following extensions:");
+		extensionHints.forEach((ext, count) -> {
+			if (count >= cutoff) {
+				logger.info("{} => {}", ext, count);
+			}
+		});
 	}
 
-	public static void rm(final Path path) {
-		try {
-			Files.deleteIfExists(path);
-			logger.info("Deleted {}", path);
+	/**
+	 * Groups hashed files by content within the configured memory budget and processes the
+	 * groups.
+	 */
+	private void processFiles(final PathCatalogue catalogue) {
+		final var memoryBudget = configuration.groupingMemoryBudget() * 1024L * 1024L;
+		try (final var grouper = new DuplicateGrouper(memoryBudget)) {
+			try {
+				// contents stored only once cannot have a duplicate
+				catalogue.forEach((meta, id) -> {
+					if (meta.isHashed() && metaStore.mightHaveDuplicates(meta.contentHash())) {
+						try {
+							grouper.add(meta);
+						} catch (final IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					}
+				});
+			} catch (final UncheckedIOException e) {
+				throw e.getCause();
+			}
+
+			if (grouper.runs() > 0) {
+				logger.info("Grouping spilled {} sorted runs to disk", grouper.runs());
+			}
+
+			processGroups(grouper::forEachGroup);
 		} catch (final IOException e) {
-			logger.error(String.format("Failed to delete %s", path), e);
+			logger.error("Failed to group duplicates!", e);
 		}
 	}
 
-	public static boolean createSymbolicLink(final Path link, final Path target,
-		final FileAttribute<?>... attributes) {
-		try {
-			Files.createSymbolicLink(link, target, attributes);
-			logger.info("Created symbolic link {} to {}", link, target);
+	/**
+	 * A source of groups of files with matching hashes, such as {@link DuplicateGrouper}.
+	 */
+	@FunctionalInterface
+	private interface GroupSource {
 
-			return true;
-		} catch (final IOException e) {
-			logger.error(String.format("Failed to create symbolic link %s to %s", link, target), e);
+		void forEachGroup(Consumer<List<PathMeta>> action) throws IOException;
+
+	}
+
+	/**
+	 * Both the data that can be deduplicated now and the data that could be deduplicated by
+	 * processing every file are totalled while the groups are streamed. Groups are verified, unless
+	 * disabled, and processed concurrently.
+	 */
+	private void processGroups(final GroupSource groups) throws IOException {
+		final AtomicLong redundantDataSize = new AtomicLong();
+		final AtomicLong redundantDataTotal = new AtomicLong();
+
+		final var verifier = new ContentVerifier();
+		try (final var executor = new ActionExecutor(configuration.actionThreads())) {
+			groups.forEachGroup(metas -> {
+				if (stopped) {
+					return;
+				}
+
+				redundantDataTotal.addAndGet(redundantSize(metas));
+
+				final var processable = metas.stream()
+					.filter(meta -> pathFilter.accepts(meta.path()))
+					.toList();
+				if (processable.size() < 2) {
+					return;
+				}
+
+				try {
+					executor.submit(processable, group -> {
+						final var duplicates = needsVerification(group) ? verifier.verify(group)
+							: group;
+						if (duplicates.size() > 1) {
+							redundantDataSize.addAndGet(redundantSize(duplicates));
+
+							processDuplicates(duplicates);
+						}
+					});
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					stop();
+				}
+			});
 		}
 
-		return false;
+		logger.info("{} of redundant data detected",
+			Utils.humanReadableByteCountBin(redundantDataSize.get()));
+
+		final var difference = redundantDataTotal.get() - redundantDataSize.get();
+		if (difference > 0) {
+			logger.info("An additional {} of data may be deduplicated by processing all files.",
+				Utils.humanReadableByteCountBin(difference));
+		}
+	}
+
+	/**
+	 * Groups are compared byte for byte unless verification is disabled, which is only allowed
+	 * for collision-resistant algorithms. A group hashed by a previously configured algorithm is
+	 * compared unless that algorithm is collision resistant as well.
+	 */
+	private boolean needsVerification(final List<PathMeta> group) {
+		return configuration.verify()
+			|| !HashAlgorithm.isCollisionResistant(group.get(0).algorithm());
 	}
 
+	/**
+	 * @return the size of every meta but one
+	 */
+	private static long redundantSize(final List<PathMeta> metas) {
+		return metas.stream().mapToLong(PathMeta::size).skip(1).sum();
+	}
+
+	/**
+	 * The most recently modified copy is kept.
+	 */
+	private void processDuplicates(final List<PathMeta> metas) {
+		final var sortedMetas = metas.stream()
+			.sorted(Comparator.comparing(PathMeta::lastModified).reversed())
+			.collect(Collectors.toList());
+		final var prominentMeta = sortedMetas.remove(0);
+
+		dedupAction.apply(prominentMeta, sortedMetas);
+	}
 
 }
@@ -0,0 +1,211 @@
+package com.tagadvance.filededuplicator;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps persistent {@link MappedBloomFilter Bloom filters} of the stored content hashes next to
+ * the store, and answers lookups for hashes that were certainly never stored without querying the
+ * store. A second filter holds the hashes stored at least twice, so files whose contents are
+ * certainly unique can be left out of duplicate grouping.
+ * <p>
+ * Filters that are missing, were not closed cleanly or have outgrown their capacity are rebuilt
+ * from the store when it is opened. Tombstones cannot be removed from a filter, so the filters
+ * only ever err towards "might contain".
+ */
+public final class FilteredMetaStore implements MetaStore {
+
+	private static final Logger logger = LoggerFactory.getLogger(FilteredMetaStore.class);
+
+	private static final HashFunction KEY_HASH = Hashing.murmur3_128();
+
+	static final long MIN_CAPACITY = 1 << 20;
+	static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+
+	private final MetaStore delegate;
+	private final MappedBloomFilter hashes;
+	private final MappedBloomFilter duplicates;
+
+	/**
+	 * @param delegate the store to filter; it is closed with this store
+	 * @param base     the filters are stored as {@code base.hashes.bloom} and
+	 *                 {@code base.duplicates.bloom}
+	 * @throws IOException if the filters could not be opened or created
+	 */
+	public FilteredMetaStore(final MetaStore delegate, final Path base) throws IOException {
+		this.delegate = requireNonNull(delegate, "delegate must not be null");
+		requireNonNull(base, "base must not be null");
+
+		// earlier versions also kept a filter of the stored paths, which nothing looked up
+		Files.deleteIfExists(sibling(base, "paths"));
+
+		final var hashesFile = sibling(base, "hashes");
+		final var duplicatesFile = sibling(base, "duplicates");
+		var hashes = MappedBloomFilter.open(hashesFile);
+		var duplicates = MappedBloomFilter.open(duplicatesFile);
+		if (!isUsable(hashes) || !isUsable(duplicates)) {
+			close(hashes, duplicates);
+
+			// the rows are streamed, so the filters are sized from an estimate of their number
+			final var rows = delegate.estimateSize();
+			final var capacity = Math.max(MIN_CAPACITY, 2L * rows);
+			logger.info("Rebuilding the membership filters of about {} rows", rows);
+			hashes = MappedBloomFilter.create(hashesFile, capacity, FALSE_POSITIVE_PROBABILITY);
+			duplicates = MappedBloomFilter.create(duplicatesFile, capacity,
+				FALSE_POSITIVE_PROBABILITY);
+			this.hashes = hashes;
+			this.duplicates = duplicates;
+			delegate.selectAll(this::record);
+		} else {
+			this.hashes = hashes;
+			this.duplicates = duplicates;
+		}
+	}
+
+	private static Path sibling(final Path base, final String name) {
+		return base.resolveSibling(base.getFileName() + "." + name + ".bloom");
+	}
+
+	private static boolean isUsable(final MappedBloomFilter filter) {
+		return filter != null && filter.isClean() && filter.insertions() <= filter.capacity();
+	}
+
+	@Override
+	public void insert(final PathMeta pathMeta) {
+		record(pathMeta);
+		delegate.insert(pathMeta);
+	}
+
+	@Override
+	public void insertAll(final Collection<PathMeta> metas) {
+		metas.forEach(this::record);
+		delegate.insertAll(metas);
+	}
+
+	private void record(final PathMeta meta) {
+		if (meta.isHashed()) {
+			recordHash(hashKey(meta.contentHash()));
+		}
+	}
+
+	/**
+	 * A hash is a duplicate once it is added to {@link #hashes} without changing it; adding and
+	 * checking must not interleave, or two threads adding the same hash would both miss it.
+	 */
+	private synchronized void recordHash(final ByteBuffer key) {
+		final var h1 = key.getLong(0);
+		final var h2 = key.getLong(Long.BYTES);
+		if (!hashes.put(h1, h2)) {
+			duplicates.put(h1, h2);
+		}
+	}
+
+	@Override
+	public boolean mightHaveDuplicates(final ContentHash contentHash) {
+		final var key = hashKey(contentHash);
+
+		return duplicates.mightContain(key.getLong(0), key.getLong(Long.BYTES));
+	}
+
+	@Override
+	public Optional<PathMeta> selectByPath(final Path path) {
+		return delegate.selectByPath(path);
+	}
+
+	@Override
+	public List<PathMeta> selectByHash(final ContentHash contentHash) {
+		final var key = hashKey(contentHash);
+
+		return hashes.mightContain(key.getLong(0), key.getLong(Long.BYTES))
+			? delegate.selectByHash(contentHash) : List.of();
+	}
+
+	@Override
+	public List<PathMeta> selectUnder(final Path directory) {
+		return delegate.selectUnder(directory);
+	}
+
+	@Override
+	public List<PathMeta> selectAll() {
+		return delegate.selectAll();
+	}
+
+	@Override
+	public long estimateSize() {
+		return delegate.estimateSize();
+	}
+
+	@Override
+	public void selectAll(final Consumer<PathMeta> action) {
+		delegate.selectAll(action);
+	}
+
+	/**
+	 * The filters keep the dropped hashes; they only err towards "might contain" until they are
+	 * next rebuilt.
+	 */
+	@Override
+	public void compact() {
+		delegate.compact();
+	}
+
+	@Override
+	public void flush() {
+		delegate.flush();
+	}
+
+	@Override
+	public void sync() {
+		delegate.sync();
+	}
+
+	/**
+	 * Closes the delegate first, so that the filters are only marked clean once every recorded
+	 * meta has been stored.
+	 */
+	@Override
+	public void close() {
+		delegate.close();
+		try {
+			close(hashes, duplicates);
+		} catch (final IOException e) {
+			throw new UncheckedIOException("Failed to close the membership filters", e);
+		}
+	}
+
+	private static void close(final MappedBloomFilter... filters) throws IOException {
+		for (final var filter : filters) {
+			if (filter != null) {
+				filter.close();
+			}
+		}
+	}
+
+	private static ByteBuffer hashKey(final ContentHash contentHash) {
+		return key(KEY_HASH.newHasher()
+			.putString(contentHash.algorithm(), StandardCharsets.UTF_8)
+			.putBytes(contentHash.hash().asBytes())
+			.hash());
+	}
+
+	private static ByteBuffer key(final HashCode hashCode) {
+		return ByteBuffer.wrap(hashCode.asBytes()).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+}
@@ -1,55 +1,159 @@
 package com.tagadvance.filededuplicator;
 
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import java.io.EOFException;
 import java.io.IOException;
-import java.math.BigInteger;
-import java.nio.file.Files;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.nio.file.Path;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.function.Function;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.nio.file.StandardOpenOption;
 
+/**
+ * Hashes files through NIO. Files smaller than the mapped threshold are read into pooled direct
+ * buffers; larger files are memory-mapped. Either way the bytes are handed to the digester without
+ * being copied onto the heap.
+ */
 public final class Hash {
 
-	public static final String ALGORITHM_MD5 = "MD5";
-	public static final String ALGORITHM_SHA1 = "SHA1";
-	public static final String ALGORITHM_SHA512 = "SHA512";
+	/**
+	 * The largest region of a file that is mapped at once.
+	 */
+	private static final long MAX_MAPPED_REGION = 1L << 30;
+
+	private final ByteBufferPool bufferPool;
+	private final long mappedThreshold;
+	private final ScanMetrics metrics;
+
+	/**
+	 * @param bufferPool      the buffers used to read files smaller than {@code mappedThreshold}
+	 * @param mappedThreshold the size in bytes from which files are memory-mapped
+	 */
+	public Hash(final ByteBufferPool bufferPool, final long mappedThreshold) {
+		this(bufferPool, mappedThreshold, new ScanMetrics());
+	}
+
+	/**
+	 * @param bufferPool      the buffers used to read files smaller than {@code mappedThreshold}
+	 * @param mappedThreshold the size in bytes from which files are memory-mapped
+	 * @param metrics         records the bytes read and the time taken by every file
+	 */
+	public Hash(final ByteBufferPool bufferPool, final long mappedThreshold,
+		final ScanMetrics metrics) {
+		this.bufferPool = requireNonNull(bufferPool, "bufferPool must not be null");
+		this.mappedThreshold = mappedThreshold;
+		this.metrics = requireNonNull(metrics, "metrics must not be null");
+	}
+
+	/**
+	 * @param path   the file to hash
+	 * @param engine the hash function
+	 * @return the digest of the contents
+	 * @throws IOException if the file could not be read
+	 */
+	public HashCode calculateHash(final Path path, final HashEngine engine) throws IOException {
+		final var start = System.nanoTime();
+		final var digester = engine.newDigester();
+
+		try (final var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			final var size = channel.size();
+			if (size >= mappedThreshold) {
+				updateMapped(channel, size, digester);
+			} else {
+				updateBuffered(channel, digester);
+			}
+			final var hashCode = HashCode.fromBytes(digester.digest());
+			metrics.hashed(size, System.nanoTime() - start);
+
+			return hashCode;
+		}
+	}
+
+	private static void updateMapped(final FileChannel channel, final long size,
+		final HashEngine.Digester digester) throws IOException {
+		for (long position = 0; position < size; position += MAX_MAPPED_REGION) {
+			final var length = Math.min(MAX_MAPPED_REGION, size - position);
+			digester.update(channel.map(MapMode.READ_ONLY, position, length));
+		}
+	}
 
-	public static Map<String, String> calculateHash(final Path path, final String... algorithms)
+	private void updateBuffered(final FileChannel channel, final HashEngine.Digester digester)
 		throws IOException {
-		final var digestByAlgorithm = Stream.of(algorithms)
-			.collect(Collectors.toMap(Function.identity(), Hash::toMessageDigest));
-
-		try (final var in = Files.newInputStream(path)) {
-			int read;
-			final var bytes = new byte[1024 * 1024];
-			while ((read = in.read(bytes)) != -1) {
-				for (final var digest : digestByAlgorithm.values()) {
-					digest.update(bytes, 0, read);
-				}
+		final var buffer = acquireBuffer();
+		try {
+			while (channel.read(buffer) != -1) {
+				buffer.flip();
+				digester.update(buffer);
+				buffer.clear();
 			}
+		} finally {
+			bufferPool.release(buffer);
 		}
+	}
 
-		return digestByAlgorithm.entrySet().stream().collect(Collectors.toMap(Entry::getKey, e -> {
-			final var digest = e.getValue().digest();
-			final var i = new BigInteger(1, digest);
+	/**
+	 * Hashes the first and the last {@code length} bytes of a file with a fast non-cryptographic
+	 * hash. Files that differ within either region can be told apart without reading them in
+	 * full.
+	 *
+	 * @param path   the file to fingerprint
+	 * @param length the number of bytes to hash from the start and from the end of the file
+	 * @return the fingerprint
+	 * @throws IOException if the file could not be read
+	 */
+	public HashCode calculatePartialHash(final Path path, final int length) throws IOException {
+		final var start = System.nanoTime();
+		final var hasher = Hashing.murmur3_128().newHasher();
 
-			return String.format("%032x", i);
-		}));
+		try (final var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			final var size = channel.size();
+			final var capacity = (int) Math.min(size, 2L * length);
+			final var pooled = capacity <= bufferPool.bufferSize();
+			final var buffer = pooled ? acquireBuffer() : ByteBuffer.allocate(capacity);
+			try {
+				readFully(channel, buffer, 0, (int) Math.min(size, length));
+				if (size > length) {
+					final var position = Math.max(length, size - length);
+					readFully(channel, buffer, position, (int) (size - position));
+				}
+				buffer.flip();
+				hasher.putBytes(buffer);
+			} finally {
+				if (pooled) {
+					bufferPool.release(buffer);
+				}
+			}
+			metrics.fingerprinted(capacity, System.nanoTime() - start);
+		}
+
+		return hasher.hash();
 	}
 
-	private static MessageDigest toMessageDigest(final String algorithm) {
+	private ByteBuffer acquireBuffer() throws InterruptedIOException {
 		try {
-			return MessageDigest.getInstance(algorithm);
-		} catch (final NoSuchAlgorithmException e) {
-			throw new RuntimeException(e);
+			return bufferPool.acquire();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+
+			throw new InterruptedIOException("Interrupted while waiting for a buffer");
 		}
 	}
 
-	private Hash() {
+	private static void readFully(final FileChannel channel, final ByteBuffer buffer,
+		final long position, final int length) throws IOException {
+		buffer.limit(buffer.position() + length);
+		var offset = position;
+		while (buffer.hasRemaining()) {
+			final var read = channel.read(buffer, offset);
+			if (read == -1) {
+				throw new EOFException("Unexpected end of file");
+			}
+			offset += read;
+		}
 	}
 
 }
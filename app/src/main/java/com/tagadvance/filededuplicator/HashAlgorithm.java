@@ -0,0 +1,148 @@
+package com.tagadvance.filededuplicator;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.function.Supplier;
+
+/**
+ * The hash engines that may be selected with {@code hashAlgorithm} in the configuration.
+ */
+public enum HashAlgorithm implements HashEngine {
+
+	/**
+	 * A fast non-cryptographic 128-bit hash. Files that share a digest are compared byte for byte
+	 * before they are deduplicated.
+	 */
+	MURMUR3_128(1, false, () -> new HashFunctionDigester(Hashing.murmur3_128())),
+	BLAKE3(2, true, Blake3::new),
+	MD5(3, false, () -> new MessageDigestDigester("MD5")),
+	SHA1(4, false, () -> new MessageDigestDigester("SHA-1")),
+	SHA256(5, true, () -> new MessageDigestDigester("SHA-256")),
+	SHA512(6, true, () -> new MessageDigestDigester("SHA-512"));
+
+	private final byte code;
+	private final boolean collisionResistant;
+	private final Supplier<Digester> digesterSupplier;
+
+	HashAlgorithm(final int code, final boolean collisionResistant,
+		final Supplier<Digester> digesterSupplier) {
+		this.code = (byte) code;
+		this.collisionResistant = collisionResistant;
+		this.digesterSupplier = digesterSupplier;
+	}
+
+	/**
+	 * @param algorithm the {@link #algorithm() name} of an algorithm, e.g. from a stored row
+	 * @return {@code true} if it is one of the algorithms for which no collision can be crafted
+	 */
+	public static boolean isCollisionResistant(final String algorithm) {
+		for (final var engine : values()) {
+			if (engine.name().equals(algorithm)) {
+				return engine.collisionResistant;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * @param code a {@link #code() code}
+	 * @return the algorithm with the given code
+	 * @throws IllegalArgumentException if no algorithm has the given code
+	 */
+	public static HashAlgorithm fromCode(final byte code) {
+		for (final var algorithm : values()) {
+			if (algorithm.code == code) {
+				return algorithm;
+			}
+		}
+
+		throw new IllegalArgumentException(String.format("Unknown hash algorithm code %d", code));
+	}
+
+	/**
+	 * Collisions of a non-cryptographic hash, MD5 or SHA-1 can be crafted, so files that share
+	 * such a digest must be compared before they are deduplicated.
+	 *
+	 * @return {@code true} if files that share a digest may be trusted to be identical
+	 */
+	public boolean isCollisionResistant() {
+		return collisionResistant;
+	}
+
+	/**
+	 * @return a stable code that identifies this algorithm in binary files
+	 */
+	public byte code() {
+		return code;
+	}
+
+	@Override
+	public String algorithm() {
+		return name();
+	}
+
+	@Override
+	public Digester newDigester() {
+		return digesterSupplier.get();
+	}
+
+	private static final class MessageDigestDigester implements Digester {
+
+		private final MessageDigest digest;
+
+		MessageDigestDigester(final String algorithm) {
+			try {
+				this.digest = MessageDigest.getInstance(algorithm);
+			} catch (final NoSuchAlgorithmException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		@Override
+		public void update(final byte[] bytes, final int offset, final int length) {
+			digest.update(bytes, offset, length);
+		}
+
+		@Override
+		public void update(final ByteBuffer buffer) {
+			digest.update(buffer);
+		}
+
+		@Override
+		public byte[] digest() {
+			return digest.digest();
+		}
+
+	}
+
+	private static final class HashFunctionDigester implements Digester {
+
+		private final Hasher hasher;
+
+		HashFunctionDigester(final HashFunction function) {
+			this.hasher = function.newHasher();
+		}
+
+		@Override
+		public void update(final byte[] bytes, final int offset, final int length) {
+			hasher.putBytes(bytes, offset, length);
+		}
+
+		@Override
+		public void update(final ByteBuffer buffer) {
+			hasher.putBytes(buffer);
+		}
+
+		@Override
+		public byte[] digest() {
+			return hasher.hash().asBytes();
+		}
+
+	}
+
+}
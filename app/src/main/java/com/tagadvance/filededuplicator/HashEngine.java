@@ -0,0 +1,32 @@
+package com.tagadvance.filededuplicator;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A hash function used to identify the contents of a file.
+ *
+ * @see HashAlgorithm
+ */
+public interface HashEngine {
+
+	/**
+	 * @return the name recorded alongside every digest produced by this engine
+	 */
+	String algorithm();
+
+	/**
+	 * @return a new digester; digesters are not thread-safe
+	 */
+	Digester newDigester();
+
+	interface Digester {
+
+		void update(byte[] bytes, int offset, int length);
+
+		void update(ByteBuffer buffer);
+
+		byte[] digest();
+
+	}
+
+}
@@ -0,0 +1,153 @@
+package com.tagadvance.filededuplicator;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Replaces every duplicate in place with a hard link to, or a copy-on-write clone of, the
+ * prominent copy. No data is moved and nothing is trashed: the link or clone is created next to
+ * the duplicate and then renamed over it, so the duplicate is replaced atomically and a failure
+ * leaves it untouched. Either way the duplicate takes on the permissions and timestamps of the
+ * prominent copy.
+ * <p>
+ * Hard links require both copies to be on the same file system. Clones additionally require a
+ * file system that shares extents, such as btrfs or XFS, and are made with
+ * {@code cp --reflink=always}. Duplicates that cannot be linked or cloned are handed to the
+ * fallback action.
+ */
+public final class LinkAction implements DedupAction {
+
+	private static final Logger logger = LoggerFactory.getLogger(LinkAction.class);
+
+	private final boolean reflink;
+	private final boolean dryRun;
+	private final ActionJournal journal;
+	private final DedupAction fallback;
+
+	/**
+	 * @param reflink  {@code true} to clone, {@code false} to hard link
+	 * @param dryRun   {@code true} to log the actions without making any changes
+	 * @param journal  records every replacement before it is performed
+	 * @param fallback the action applied to duplicates that cannot be linked or cloned
+	 */
+	public LinkAction(final boolean reflink, final boolean dryRun, final ActionJournal journal,
+		final DedupAction fallback) {
+		this.reflink = reflink;
+		this.dryRun = dryRun;
+		this.journal = requireNonNull(journal, "journal must not be null");
+		this.fallback = requireNonNull(fallback, "fallback must not be null");
+	}
+
+	@Override
+	public void apply(final PathMeta prominent, final List<PathMeta> duplicates) {
+		final var original = prominent.path();
+		final var unlinked = new ArrayList<PathMeta>();
+		for (final var meta : duplicates) {
+			final var duplicate = meta.path();
+			if (Files.isSymbolicLink(duplicate)) {
+				logger.debug("{} is already a symbolic link", duplicate);
+
+				continue;
+			}
+			if (!Files.isRegularFile(original) || !Files.isRegularFile(duplicate)) {
+				logger.info("{} or {} no longer exists", original, duplicate);
+
+				continue;
+			}
+
+			if (dryRun) {
+				logger.info("{} will be replaced with a {} of {}", duplicate, describe(), original);
+
+				continue;
+			}
+
+			if (isSameFile(original, duplicate)) {
+				logger.debug("{} is already linked to {}", duplicate, original);
+			} else if (replace(original, duplicate)) {
+				logger.debug("Replaced {} with a {} of {}", duplicate, describe(), original);
+			} else {
+				unlinked.add(meta);
+			}
+		}
+
+		if (!unlinked.isEmpty()) {
+			fallback.apply(prominent, unlinked);
+		}
+	}
+
+	private String describe() {
+		return reflink ? "clone" : "hard link";
+	}
+
+	private static boolean isSameFile(final Path original, final Path duplicate) {
+		try {
+			return Files.isSameFile(original, duplicate);
+		} catch (final IOException e) {
+			return false;
+		}
+	}
+
+	private boolean replace(final Path original, final Path duplicate) {
+		final var temporary = duplicate.resolveSibling(
+			"." + duplicate.getFileName() + ".deduplication");
+		final var id = journal.begin(ActionJournal.Operation.LINK, duplicate, original);
+		try {
+			Files.deleteIfExists(temporary);
+			if (reflink) {
+				clone(original.toRealPath(), temporary);
+			} else {
+				Files.createLink(temporary, original.toRealPath());
+			}
+			Files.move(temporary, duplicate, StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+			journal.end(id, true);
+
+			return true;
+		} catch (final IOException | UnsupportedOperationException e) {
+			journal.end(id, false);
+			logger.warn("Failed to replace {} with a {} of {}, falling back: {}", duplicate,
+				describe(), original, e.getMessage());
+			try {
+				Files.deleteIfExists(temporary);
+			} catch (final IOException ex) {
+				logger.error(String.format("Failed to delete %s", temporary), ex);
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Java cannot issue the FICLONE ioctl, so the clone is made by GNU cp, which fails rather than
+	 * copying the data when the file system cannot share extents.
+	 */
+	private static void clone(final Path source, final Path target) throws IOException {
+		final var process = new ProcessBuilder("cp", "--reflink=always",
+			"--preserve=mode,timestamps", "--", source.toString(), target.toString())
+			.redirectErrorStream(true)
+			.start();
+		final var output = new String(process.getInputStream().readAllBytes(),
+			Charset.defaultCharset()).trim();
+		try {
+			if (process.waitFor() != 0) {
+				throw new IOException(output);
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			process.destroy();
+
+			throw new InterruptedIOException("Interrupted while cloning " + source);
+		}
+	}
+
+}
@@ -3,6 +3,9 @@ package com.tagadvance.filededuplicator;
 import com.google.inject.Guice;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Supplier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,7 +17,28 @@ public final class Main {
 
 	private static final String CONFIG_FILE = "config.yaml";
 
+	/**
+	 * Reverts the actions recorded in the journal of the last run.
+	 */
+	private static final String UNDO = "--undo";
+
+	/**
+	 * Finishes the actions that the last run was interrupted in.
+	 */
+	private static final String REPLAY = "--replay";
+
+	/**
+	 * Compacts the catalogue instead of scanning.
+	 */
+	private static final String COMPACT = "--compact";
+
 	public static void main(final String[] args) {
+		if (args.length > 0 && (args[0].equals(UNDO) || args[0].equals(REPLAY))) {
+			applyJournal(args[0].equals(UNDO));
+
+			return;
+		}
+
 		final Supplier<Configuration> configurationSupplier = () -> {
 			try {
 				return getConfiguration(args.length < 2 ? CONFIG_FILE : args[1]);
@@ -24,19 +48,51 @@ public final class Main {
 		};
 
 		try (final var defaultModule = new DefaultModule(configurationSupplier)) {
+			final var injector = Guice.createInjector(defaultModule);
+			if (args.length > 0 && args[0].equals(COMPACT)) {
+				injector.getInstance(MetaStore.class).compact();
+
+				return;
+			}
+
+			final var scrubber = injector.getInstance(FileDeduplicator.class);
+
+			// the first interrupt checkpoints and closes the stores, the second exits at once
+			final var interrupted = new AtomicBoolean();
 			var interrupt = new Signal("INT");
 			Signal.handle(interrupt, signal -> {
-				logger.info("Interrupt detected! Shutting down gracefully.");
-				defaultModule.close();
-				System.exit(0);
+				if (interrupted.getAndSet(true)) {
+					logger.warn("Second interrupt detected! Exiting without a checkpoint.");
+					System.exit(1);
+				}
+				logger.info("Interrupt detected! Saving a checkpoint and shutting down gracefully.");
+				scrubber.stop();
 			});
 
-			final var injector = Guice.createInjector(defaultModule);
-			final var scrubber = injector.getInstance(FileDeduplicator.class);
 			scrubber.run();
 		}
 	}
 
+	private static void applyJournal(final boolean undo) {
+		final var journal = Paths.get(DefaultModule.JOURNAL_FILE);
+		if (!Files.exists(journal)) {
+			logger.info("There is no journal at {}", journal.toAbsolutePath());
+
+			return;
+		}
+
+		try {
+			if (undo) {
+				logger.info("Reverted {} actions", ActionJournal.undo(journal));
+			} else {
+				logger.info("Replayed {} actions", ActionJournal.replay(journal));
+			}
+		} catch (final IOException e) {
+			logger.error(String.format("Failed to apply %s", journal), e);
+			System.exit(1);
+		}
+	}
+
 	private static Configuration getConfiguration(final String path) throws IOException {
 		final var file = new File(path);
 
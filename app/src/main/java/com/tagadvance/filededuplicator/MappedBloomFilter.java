@@ -0,0 +1,217 @@
+package com.tagadvance.filededuplicator;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A Bloom filter whose bits live in a memory-mapped file, so it is loaded without reading it and
+ * costs no heap. Bits are set with atomic ORs, so any number of threads may add keys at once.
+ * Keys are 128-bit hashes, from which the bit positions are derived by double hashing.
+ * <p>
+ * The file is marked dirty while it is open and clean once it has been closed, so a filter that
+ * was not closed, e.g. because the process crashed, is reported as {@link #isClean() dirty} and
+ * may be missing keys.
+ */
+public final class MappedBloomFilter implements AutoCloseable {
+
+	private static final int MAGIC = 0x424C4F4D;
+	private static final int VERSION = 1;
+
+	private static final int MAGIC_OFFSET = 0;
+	private static final int VERSION_OFFSET = 4;
+	private static final int BITS_OFFSET = 8;
+	private static final int HASHES_OFFSET = 16;
+	private static final int CLEAN_OFFSET = 20;
+	private static final int CAPACITY_OFFSET = 24;
+	private static final int INSERTIONS_OFFSET = 32;
+	private static final int HEADER_SIZE = 64;
+
+	private static final long MAX_BITS = (Integer.MAX_VALUE - HEADER_SIZE) / Long.BYTES * 64L;
+
+	private static final VarHandle WORDS = MethodHandles.byteBufferViewVarHandle(long[].class,
+		ByteOrder.nativeOrder());
+
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final long bits;
+	private final int hashes;
+	private final long capacity;
+	private final boolean clean;
+	private final LongAdder insertions = new LongAdder();
+
+	private MappedBloomFilter(final FileChannel channel, final MappedByteBuffer buffer) {
+		this.channel = channel;
+		this.buffer = buffer;
+		this.bits = buffer.getLong(BITS_OFFSET);
+		this.hashes = buffer.getInt(HASHES_OFFSET);
+		this.capacity = buffer.getLong(CAPACITY_OFFSET);
+		this.clean = buffer.getInt(CLEAN_OFFSET) == 1;
+		this.insertions.add(buffer.getLong(INSERTIONS_OFFSET));
+
+		buffer.putInt(CLEAN_OFFSET, 0);
+		buffer.force(0, HEADER_SIZE);
+	}
+
+	/**
+	 * Creates an empty filter, replacing {@code file} if it exists.
+	 *
+	 * @param capacity the number of keys the filter is sized for
+	 * @param fpp      the false positive probability at {@code capacity} keys
+	 * @throws IOException if the file could not be created
+	 */
+	public static MappedBloomFilter create(final Path file, final long capacity, final double fpp)
+		throws IOException {
+		requireNonNull(file, "file must not be null");
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		if (fpp <= 0 || fpp >= 1) {
+			throw new IllegalArgumentException("fpp must be between 0 and 1");
+		}
+
+		final var optimalBits = (long) Math.ceil(-capacity * Math.log(fpp) / (Math.log(2)
+			* Math.log(2)));
+		final var bits = Math.min(MAX_BITS, (optimalBits + 63) / 64 * 64);
+		final var hashes = Math.max(1, (int) Math.round((double) bits / capacity * Math.log(2)));
+
+		Files.deleteIfExists(file);
+		final var channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+			StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			final var buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+				HEADER_SIZE + bits / 8);
+			buffer.putInt(MAGIC_OFFSET, MAGIC);
+			buffer.putInt(VERSION_OFFSET, VERSION);
+			buffer.putLong(BITS_OFFSET, bits);
+			buffer.putInt(HASHES_OFFSET, hashes);
+			buffer.putInt(CLEAN_OFFSET, 1);
+			buffer.putLong(CAPACITY_OFFSET, capacity);
+			buffer.putLong(INSERTIONS_OFFSET, 0);
+
+			return new MappedBloomFilter(channel, buffer);
+		} catch (final IOException | RuntimeException e) {
+			channel.close();
+
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the filter in {@code file}, or {@code null} if there is none or it is not a valid
+	 * filter
+	 * @throws IOException if the file could not be mapped
+	 */
+	public static MappedBloomFilter open(final Path file) throws IOException {
+		requireNonNull(file, "file must not be null");
+		if (!Files.isRegularFile(file) || Files.size(file) < HEADER_SIZE) {
+			return null;
+		}
+
+		final var channel = FileChannel.open(file, StandardOpenOption.READ,
+			StandardOpenOption.WRITE);
+		try {
+			final var buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+			final var bits = buffer.getLong(BITS_OFFSET);
+			if (buffer.getInt(MAGIC_OFFSET) != MAGIC || buffer.getInt(VERSION_OFFSET) != VERSION
+				|| bits < 64 || bits % 64 != 0 || HEADER_SIZE + bits / 8 != channel.size()) {
+				channel.close();
+
+				return null;
+			}
+
+			return new MappedBloomFilter(channel, buffer);
+		} catch (final IOException | RuntimeException e) {
+			channel.close();
+
+			throw e;
+		}
+	}
+
+	/**
+	 * @return {@code true} if the filter was closed after it was last changed, so that it holds
+	 * every key that was added to it
+	 */
+	public boolean isClean() {
+		return clean;
+	}
+
+	/**
+	 * @return the number of keys the filter is sized for
+	 */
+	public long capacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the number of keys added, counting keys added more than once every time
+	 */
+	public long insertions() {
+		return insertions.sum();
+	}
+
+	/**
+	 * @param h1 the first half of a 128-bit hash of the key
+	 * @param h2 the second half
+	 * @return {@code true} if a bit changed, i.e. the key was certainly not in the filter before
+	 */
+	public boolean put(final long h1, final long h2) {
+		var changed = false;
+		var combined = h1;
+		for (var i = 0; i < hashes; i++) {
+			final var bit = (combined & Long.MAX_VALUE) % bits;
+			final var mask = 1L << bit;
+			final var previous = (long) WORDS.getAndBitwiseOr(buffer, offset(bit), mask);
+			changed |= (previous & mask) == 0;
+			combined += h2;
+		}
+		insertions.increment();
+
+		return changed;
+	}
+
+	/**
+	 * @param h1 the first half of a 128-bit hash of the key
+	 * @param h2 the second half
+	 * @return {@code false} if the key was certainly never added
+	 */
+	public boolean mightContain(final long h1, final long h2) {
+		var combined = h1;
+		for (var i = 0; i < hashes; i++) {
+			final var bit = (combined & Long.MAX_VALUE) % bits;
+			final var word = (long) WORDS.getVolatile(buffer, offset(bit));
+			if ((word & 1L << bit) == 0) {
+				return false;
+			}
+			combined += h2;
+		}
+
+		return true;
+	}
+
+	private static int offset(final long bit) {
+		return HEADER_SIZE + (int) (bit >>> 6) * Long.BYTES;
+	}
+
+	/**
+	 * Forces the bits to the file and marks it clean.
+	 */
+	@Override
+	public void close() throws IOException {
+		buffer.putLong(INSERTIONS_OFFSET, insertions.sum());
+		buffer.force();
+		buffer.putInt(CLEAN_OFFSET, 1);
+		buffer.force(0, HEADER_SIZE);
+		channel.close();
+	}
+
+}
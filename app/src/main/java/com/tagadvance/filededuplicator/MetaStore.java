@@ -0,0 +1,143 @@
+package com.tagadvance.filededuplicator;
+
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Persists the {@link PathMeta} catalogue. Inserting a meta for a path supersedes every earlier
+ * meta for the same path and inserting a {@link PathMeta#tombstone(Path) tombstone} removes it.
+ * <p>
+ * The lookups are implemented by scanning {@link #selectAll()}; indexed stores override them.
+ */
+public interface MetaStore extends AutoCloseable {
+
+	enum Type {
+		/**
+		 * An append-only CSV file; see {@link CsvDao}.
+		 */
+		CSV,
+		/**
+		 * An indexed log-structured store; see {@link SegmentStore}.
+		 */
+		SEGMENT
+	}
+
+	/**
+	 * @return every stored meta; superseded metas and tombstones may be included, in which case
+	 * they precede the metas that supersede them
+	 */
+	List<PathMeta> selectAll();
+
+	/**
+	 * Passes every stored meta to {@code action} in the order of {@link #selectAll()}; stores may
+	 * do so without holding every meta in memory at once.
+	 */
+	default void selectAll(final Consumer<PathMeta> action) {
+		selectAll().forEach(action);
+	}
+
+	/**
+	 * Stores that can tell how many metas they hold without reading them override this.
+	 *
+	 * @return an estimate of the number of stored metas, including superseded metas and
+	 * tombstones
+	 */
+	default long estimateSize() {
+		final var metas = new AtomicLong();
+		selectAll(meta -> metas.incrementAndGet());
+
+		return metas.get();
+	}
+
+	void insert(PathMeta pathMeta);
+
+	/**
+	 * Inserts {@code metas} in order; stores may write them more cheaply than one at a time.
+	 */
+	default void insertAll(final Collection<PathMeta> metas) {
+		metas.forEach(this::insert);
+	}
+
+	void flush();
+
+	/**
+	 * Flushes and forces every inserted meta to the storage device.
+	 */
+	default void sync() {
+		flush();
+	}
+
+	/**
+	 * Rewrites the store without superseded metas, tombstones and metas of files that no longer
+	 * exist, while inserts continue. Stores that cannot be compacted ignore this.
+	 */
+	default void compact() {
+	}
+
+	@Override
+	void close();
+
+	/**
+	 * Groups of duplicates only need to be formed for contents stored at least twice.
+	 *
+	 * @param contentHash the algorithm and the digest of the contents
+	 * @return {@code false} if fewer than two metas with {@code contentHash} were ever stored;
+	 * stores without a membership filter always return {@code true}
+	 */
+	default boolean mightHaveDuplicates(final ContentHash contentHash) {
+		return true;
+	}
+
+	/**
+	 * @param path an absolute path
+	 * @return the newest meta for {@code path}
+	 */
+	default Optional<PathMeta> selectByPath(final Path path) {
+		return Optional.ofNullable(latest(selectAll()).get(path));
+	}
+
+	/**
+	 * @param contentHash the algorithm and the digest of the contents
+	 * @return the newest meta of every file with the given digest
+	 */
+	default List<PathMeta> selectByHash(final ContentHash contentHash) {
+		return latest(selectAll()).values()
+			.stream()
+			.filter(PathMeta::isHashed)
+			.filter(meta -> meta.contentHash().equals(contentHash))
+			.toList();
+	}
+
+	/**
+	 * @param directory an absolute path
+	 * @return the newest meta of every file under {@code directory}, ordered by path
+	 */
+	default List<PathMeta> selectUnder(final Path directory) {
+		return latest(selectAll()).values()
+			.stream()
+			.filter(meta -> meta.path().startsWith(directory))
+			.sorted((a, b) -> a.path().toString().compareTo(b.path().toString()))
+			.toList();
+	}
+
+	/**
+	 * @param metas metas in insertion order
+	 * @return the newest meta for every path that has not been tombstoned
+	 */
+	static LinkedHashMap<Path, PathMeta> latest(final Collection<PathMeta> metas) {
+		final var metaByPath = metas.stream()
+			.collect(Collectors.toMap(PathMeta::path, Function.identity(), (older, newer) -> newer,
+				LinkedHashMap::new));
+		metaByPath.values().removeIf(PathMeta::isTombstone);
+
+		return metaByPath;
+	}
+
+}
@@ -0,0 +1,217 @@
+package com.tagadvance.filededuplicator;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Publishes {@link ScanMetrics} through JMX and, every interval, as a progress line in the log
+ * and optionally as a Prometheus text file, e.g. for the node exporter's textfile collector.
+ */
+public final class MetricsReporter implements AutoCloseable {
+
+	private static final Logger logger = LoggerFactory.getLogger(MetricsReporter.class);
+
+	private static final String OBJECT_NAME = "com.tagadvance.filededuplicator:type=ScanMetrics";
+
+	private static final String PREFIX = "filededuplicator_";
+
+	private final ScanMetrics metrics;
+	private final Path metricsFile;
+	private final ScheduledExecutorService executor;
+	private final ObjectName objectName;
+
+	/**
+	 * @param metrics     the metrics to publish
+	 * @param interval    the number of seconds between two reports
+	 * @param metricsFile the file to write in the Prometheus text format, or {@code null}
+	 */
+	public MetricsReporter(final ScanMetrics metrics, final int interval,
+		final Path metricsFile) {
+		this.metrics = requireNonNull(metrics, "metrics must not be null");
+		if (interval < 1) {
+			throw new IllegalArgumentException("interval must be positive");
+		}
+
+		this.metricsFile = metricsFile;
+		this.objectName = register(metrics);
+		this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			final var thread = new Thread(runnable, "metrics-reporter");
+			thread.setDaemon(true);
+
+			return thread;
+		});
+		executor.scheduleAtFixedRate(this::report, interval, interval, TimeUnit.SECONDS);
+	}
+
+	private static ObjectName register(final ScanMetrics metrics) {
+		try {
+			final var objectName = new ObjectName(OBJECT_NAME);
+			final var server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+			server.registerMBean(metrics, objectName);
+
+			return objectName;
+		} catch (final JMException e) {
+			logger.warn("Failed to publish the metrics through JMX", e);
+
+			return null;
+		}
+	}
+
+	/**
+	 * Logs a progress line and writes the metrics file.
+	 */
+	public void report() {
+		logger.info("{}", formatProgress(metrics));
+
+		if (metricsFile != null) {
+			try {
+				final var temporary = metricsFile.resolveSibling(metricsFile.getFileName() + ".tmp");
+				Files.writeString(temporary, formatPrometheus(metrics), StandardCharsets.UTF_8);
+				Files.move(temporary, metricsFile, StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+			} catch (final IOException e) {
+				logger.error(String.format("Failed to write %s!", metricsFile), e);
+			}
+		}
+	}
+
+	/**
+	 * Reports once more and unregisters the metrics from JMX.
+	 */
+	@Override
+	public void close() {
+		executor.shutdownNow();
+		report();
+
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (final JMException e) {
+				logger.debug("Failed to unregister {}", objectName, e);
+			}
+		}
+	}
+
+	static String formatProgress(final ScanMetrics metrics) {
+		final var remaining = metrics.getEstimatedSecondsRemaining();
+		final var eta = remaining < 0 ? "unknown" : Duration.ofSeconds(remaining)
+			.toString()
+			.substring(2)
+			.toLowerCase(Locale.ROOT);
+
+		return String.format(Locale.ROOT,
+			"Walked %d files (%.0f/s, %s), fingerprinted %d, hashed %d, read %s (%s/s); "
+				+ "%d files (%s) queued, %d rows unwritten, ETA %s",
+			metrics.getFilesWalked(), metrics.getFilesWalkedPerSecond(),
+			Utils.humanReadableByteCountBin(metrics.getBytesWalked()),
+			metrics.getFilesFingerprinted(), metrics.getFilesHashed(),
+			Utils.humanReadableByteCountBin(metrics.getBytesRead()),
+			Utils.humanReadableByteCountBin((long) metrics.getBytesReadPerSecond()),
+			metrics.getReadQueueDepth(), Utils.humanReadableByteCountBin(metrics.getReadQueueBytes()),
+			metrics.getStoreQueueDepth(), eta);
+	}
+
+	static String formatPrometheus(final ScanMetrics metrics) {
+		final var sb = new StringBuilder();
+		counter(sb, "files_walked_total", "Regular files walked.", metrics.getFilesWalked());
+		counter(sb, "bytes_walked_total", "Size of the regular files walked.",
+			metrics.getBytesWalked());
+		counter(sb, "directories_walked_total", "Directories walked.",
+			metrics.getDirectoriesWalked());
+		counter(sb, "walk_failures_total", "Paths that could not be visited.",
+			metrics.getWalkFailures());
+		counter(sb, "files_fingerprinted_total", "Files fingerprinted.",
+			metrics.getFilesFingerprinted());
+		counter(sb, "files_hashed_total", "Files hashed in full.", metrics.getFilesHashed());
+		counter(sb, "bytes_read_total", "Bytes read to fingerprint and hash files.",
+			metrics.getBytesRead());
+		counter(sb, "read_failures_total", "Files that could not be fingerprinted or hashed.",
+			metrics.getReadFailures());
+		counter(sb, "store_rows_written_total", "Rows written to the store.",
+			metrics.getRowsWritten());
+		gauge(sb, "read_queue_files", "Files waiting to be fingerprinted or hashed.",
+			metrics.getReadQueueDepth());
+		gauge(sb, "read_queue_bytes", "Bytes that remain to be read from queued files.",
+			metrics.getReadQueueBytes());
+		gauge(sb, "store_queue_rows", "Rows waiting to be written to the store.",
+			metrics.getStoreQueueDepth());
+		histogram(sb, "fingerprint_duration_seconds", "Time to fingerprint a file.",
+			metrics.fingerprintLatency());
+		histogram(sb, "hash_duration_seconds", "Time to hash a file in full.",
+			metrics.hashLatency());
+		histogram(sb, "store_write_duration_seconds", "Time to write rows to the store.",
+			metrics.storeWriteLatency());
+		histogram(sb, "store_lock_wait_seconds", "Time spent waiting for the store's lock.",
+			metrics.storeLockWait());
+
+		header(sb, "root_files_walked_total", "Regular files walked by root.", "counter");
+		metrics.roots().forEach((path, root) -> sample(sb, "root_files_walked_total",
+			"{root=\"" + escape(path.toString()) + "\"}", root.files()));
+		header(sb, "root_files_walked_per_second", "Files walked per second by root.", "gauge");
+		metrics.roots().forEach((path, root) -> sample(sb, "root_files_walked_per_second",
+			"{root=\"" + escape(path.toString()) + "\"}", root.filesPerSecond()));
+
+		return sb.toString();
+	}
+
+	private static void counter(final StringBuilder sb, final String name, final String help,
+		final long value) {
+		header(sb, name, help, "counter");
+		sample(sb, name, "", value);
+	}
+
+	private static void gauge(final StringBuilder sb, final String name, final String help,
+		final long value) {
+		header(sb, name, help, "gauge");
+		sample(sb, name, "", value);
+	}
+
+	private static void histogram(final StringBuilder sb, final String name, final String help,
+		final ScanMetrics.Histogram histogram) {
+		header(sb, name, help, "histogram");
+		var cumulative = 0L;
+		for (var i = 0; i < ScanMetrics.Histogram.BUCKETS - 1; i++) {
+			cumulative += histogram.count(i);
+			final var le = ScanMetrics.Histogram.upperBound(i) / 1e9;
+			sample(sb, name + "_bucket", "{le=\"" + le + "\"}", cumulative);
+		}
+		cumulative += histogram.count(ScanMetrics.Histogram.BUCKETS - 1);
+		sample(sb, name + "_bucket", "{le=\"+Inf\"}", cumulative);
+		sample(sb, name + "_sum", "", histogram.sum() / 1e9);
+		sample(sb, name + "_count", "", cumulative);
+	}
+
+	private static void header(final StringBuilder sb, final String name, final String help,
+		final String type) {
+		sb.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void sample(final StringBuilder sb, final String name, final String labels,
+		final Object value) {
+		sb.append(PREFIX).append(name).append(labels).append(' ').append(value).append('\n');
+	}
+
+	private static String escape(final String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+}
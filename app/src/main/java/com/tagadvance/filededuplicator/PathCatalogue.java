@@ -0,0 +1,811 @@
+package com.tagadvance.filededuplicator;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.hash.HashCode;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * The in-memory catalogue of every known file, indexed by path. Paths are stored as a trie of
+ * their components: every directory is stored once, however many files it holds, and every
+ * distinct component name is stored once, however many directories share it. Every node of the
+ * trie has a compact integer id, and the metadata of a file is stored in columns indexed by the id
+ * of its node, so no {@link Path} or {@link PathMeta} is kept per file; both are rebuilt when a
+ * file is looked up or enumerated. File keys and digests are stored as primitives, too.
+ * <p>
+ * Files are also chained by size, so that the files of one size are found without enumerating
+ * the whole catalogue.
+ * <p>
+ * The catalogue is safe for concurrent use. Lookups share a read lock, while adding, changing and
+ * removing files takes a write lock.
+ */
+public final class PathCatalogue {
+
+	/**
+	 * The id of the node above every root; it has no name and no parent.
+	 */
+	private static final int TOP = 0;
+
+	private static final int NO_NODE = -1;
+
+	/**
+	 * The size of a node without metadata, e.g. a directory or a removed file. Tombstones are never
+	 * catalogued, so their size cannot clash.
+	 */
+	private static final long NO_META = Long.MIN_VALUE;
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private final Map<String, Integer> nameIds = new HashMap<>();
+	private final List<String> names = new ArrayList<>();
+	private final Children children = new Children();
+	private final SizeIndex bySize = new SizeIndex();
+	private final FileKeys fileKeys = new FileKeys();
+	private final Digests partialHashes = new Digests();
+	private final Digests hashes = new Digests();
+
+	private int[] parents = new int[INITIAL_CAPACITY];
+	private int[] nameOf = new int[INITIAL_CAPACITY];
+	private int[] firstChild = new int[INITIAL_CAPACITY];
+	private int[] nextSibling = new int[INITIAL_CAPACITY];
+	private long[] sizes = new long[INITIAL_CAPACITY];
+	private long[] lastModified = new long[INITIAL_CAPACITY];
+	private String[] algorithms = new String[INITIAL_CAPACITY];
+	private int[] nextOfSize = new int[INITIAL_CAPACITY];
+	private int[] previousOfSize = new int[INITIAL_CAPACITY];
+
+	private int nodes;
+	private int files;
+
+	public PathCatalogue() {
+		nodes = 1;
+		parents[TOP] = NO_NODE;
+		nameOf[TOP] = NO_NODE;
+		firstChild[TOP] = NO_NODE;
+		nextSibling[TOP] = NO_NODE;
+		sizes[TOP] = NO_META;
+	}
+
+	/**
+	 * @return the number of catalogued files
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return files;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the id of {@code path}, or -1 if neither a file nor a directory with that path is
+	 * known
+	 */
+	public int id(final Path path) {
+		requireNonNull(path, "path must not be null");
+
+		lock.readLock().lock();
+		try {
+			return find(path);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the id of {@code path}, which is added without metadata if it is not known
+	 */
+	public int intern(final Path path) {
+		final var id = id(path);
+		if (id != NO_NODE) {
+			return id;
+		}
+
+		lock.writeLock().lock();
+		try {
+			return findOrAdd(path);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @param id an id returned by this catalogue
+	 * @return the path with that id
+	 */
+	public Path path(final int id) {
+		lock.readLock().lock();
+		try {
+			checkId(id);
+
+			return pathOf(id);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public boolean contains(final Path path) {
+		return get(path) != null;
+	}
+
+	/**
+	 * @return the meta of the file at {@code path}, or {@code null} if it is not catalogued
+	 */
+	public PathMeta get(final Path path) {
+		requireNonNull(path, "path must not be null");
+
+		lock.readLock().lock();
+		try {
+			final var id = find(path);
+
+			return id == NO_NODE ? null : metaOf(id, path);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Catalogues {@code meta}, replacing the meta of the same path, if any.
+	 */
+	public void put(final PathMeta meta) {
+		requireNonNull(meta, "meta must not be null");
+
+		lock.writeLock().lock();
+		try {
+			store(findOrAdd(meta.path()), meta);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return {@code true} if {@code meta} was catalogued, {@code false} if its path already was
+	 */
+	public boolean putIfAbsent(final PathMeta meta) {
+		requireNonNull(meta, "meta must not be null");
+
+		lock.writeLock().lock();
+		try {
+			final var id = findOrAdd(meta.path());
+			if (sizes[id] != NO_META) {
+				return false;
+			}
+			store(id, meta);
+
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return {@code true} if {@code expected} was catalogued and has been replaced with
+	 * {@code meta}
+	 */
+	public boolean replace(final PathMeta expected, final PathMeta meta) {
+		requireNonNull(expected, "expected must not be null");
+		requireNonNull(meta, "meta must not be null");
+
+		lock.writeLock().lock();
+		try {
+			final var id = find(meta.path());
+			if (id == NO_NODE || !expected.equals(metaOf(id, meta.path()))) {
+				return false;
+			}
+			store(id, meta);
+
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Forgets the file at {@code path}. Its node and id are kept.
+	 *
+	 * @return {@code true} if the file was catalogued
+	 */
+	public boolean remove(final Path path) {
+		requireNonNull(path, "path must not be null");
+
+		lock.writeLock().lock();
+		try {
+			final var id = find(path);
+			if (id == NO_NODE || sizes[id] == NO_META) {
+				return false;
+			}
+			unlinkSize(id);
+			sizes[id] = NO_META;
+			fileKeys.put(id, null);
+			partialHashes.put(id, null);
+			algorithms[id] = null;
+			hashes.put(id, null);
+			files--;
+
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Passes every catalogued file and its id to {@code action}, directory by directory. The
+	 * catalogue must not be changed by {@code action}.
+	 */
+	public void forEach(final ObjIntConsumer<PathMeta> action) {
+		requireNonNull(action, "action must not be null");
+
+		lock.readLock().lock();
+		try {
+			visit(TOP, null, action);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Passes every catalogued file under {@code directory} and its id to {@code action}. The
+	 * catalogue must not be changed by {@code action}.
+	 */
+	public void forEach(final Path directory, final ObjIntConsumer<PathMeta> action) {
+		requireNonNull(directory, "directory must not be null");
+		requireNonNull(action, "action must not be null");
+
+		lock.readLock().lock();
+		try {
+			final var id = find(directory);
+			if (id != NO_NODE) {
+				visit(id, directory, action);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Passes every catalogued file of {@code size} and its id to {@code action}. The catalogue must
+	 * not be changed by {@code action}.
+	 */
+	public void forEachOfSize(final long size, final ObjIntConsumer<PathMeta> action) {
+		requireNonNull(action, "action must not be null");
+
+		lock.readLock().lock();
+		try {
+			for (var id = bySize.head(size); id != NO_NODE; id = nextOfSize[id]) {
+				action.accept(metaOf(id, pathOf(id)), id);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return every size that is shared by two or more catalogued files, in no particular order
+	 */
+	public long[] sharedSizes() {
+		lock.readLock().lock();
+		try {
+			return bySize.shared();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return every catalogued file
+	 */
+	public List<PathMeta> values() {
+		final var values = new ArrayList<PathMeta>(size());
+		forEach((meta, id) -> values.add(meta));
+
+		return values;
+	}
+
+	private record Frame(int id, Path path) {
+
+	}
+
+	/**
+	 * Walks the subtree of {@code id} depth first, resolving the path of every node against the
+	 * path of its parent.
+	 */
+	private void visit(final int id, final Path path, final ObjIntConsumer<PathMeta> action) {
+		final var stack = new ArrayDeque<Frame>();
+		if (id == TOP) {
+			for (var child = firstChild[TOP]; child != NO_NODE; child = nextSibling[child]) {
+				stack.push(new Frame(child, rootPath(child)));
+			}
+		} else {
+			stack.push(new Frame(id, path));
+		}
+
+		while (!stack.isEmpty()) {
+			final var frame = stack.pop();
+			final var node = frame.id();
+			if (sizes[node] != NO_META) {
+				action.accept(metaOf(node, frame.path()), node);
+			}
+			for (var child = firstChild[node]; child != NO_NODE; child = nextSibling[child]) {
+				stack.push(new Frame(child, frame.path().resolve(names.get(nameOf[child]))));
+			}
+		}
+	}
+
+	private int find(final Path path) {
+		var node = children.get(TOP, nameId(rootName(path)));
+		for (var i = 0; node != NO_NODE && i < path.getNameCount(); i++) {
+			node = children.get(node, nameId(path.getName(i).toString()));
+		}
+
+		return node;
+	}
+
+	private int nameId(final String name) {
+		final var id = nameIds.get(name);
+
+		return id == null ? NO_NODE : id;
+	}
+
+	/**
+	 * Must be called with the write lock held.
+	 */
+	private int findOrAdd(final Path path) {
+		var node = child(TOP, rootName(path));
+		for (var i = 0; i < path.getNameCount(); i++) {
+			node = child(node, path.getName(i).toString());
+		}
+
+		return node;
+	}
+
+	private int child(final int parent, final String name) {
+		var nameId = nameIds.get(name);
+		if (nameId == null) {
+			nameId = names.size();
+			names.add(name);
+			nameIds.put(name, nameId);
+		}
+
+		final var existing = children.get(parent, nameId);
+		if (existing != NO_NODE) {
+			return existing;
+		}
+
+		if (nodes == parents.length) {
+			grow();
+		}
+		final var id = nodes++;
+		parents[id] = parent;
+		nameOf[id] = nameId;
+		firstChild[id] = NO_NODE;
+		nextSibling[id] = firstChild[parent];
+		firstChild[parent] = id;
+		sizes[id] = NO_META;
+		children.put(parent, nameId, id);
+
+		return id;
+	}
+
+	private void grow() {
+		final var capacity = parents.length * 2;
+		parents = Arrays.copyOf(parents, capacity);
+		nameOf = Arrays.copyOf(nameOf, capacity);
+		firstChild = Arrays.copyOf(firstChild, capacity);
+		nextSibling = Arrays.copyOf(nextSibling, capacity);
+		sizes = Arrays.copyOf(sizes, capacity);
+		lastModified = Arrays.copyOf(lastModified, capacity);
+		fileKeys.grow(capacity);
+		partialHashes.grow(capacity);
+		algorithms = Arrays.copyOf(algorithms, capacity);
+		hashes.grow(capacity);
+		nextOfSize = Arrays.copyOf(nextOfSize, capacity);
+		previousOfSize = Arrays.copyOf(previousOfSize, capacity);
+	}
+
+	private void store(final int id, final PathMeta meta) {
+		if (meta.isTombstone()) {
+			throw new IllegalArgumentException("meta must not be a tombstone");
+		}
+
+		if (sizes[id] != meta.size()) {
+			if (sizes[id] == NO_META) {
+				files++;
+			} else {
+				unlinkSize(id);
+			}
+			linkSize(id, meta.size());
+		}
+		sizes[id] = meta.size();
+		lastModified[id] = meta.lastModified();
+		fileKeys.put(id, meta.fileKey());
+		partialHashes.put(id, meta.partialHash());
+		algorithms[id] = meta.algorithm() == null ? null : meta.algorithm().intern();
+		hashes.put(id, meta.hash());
+	}
+
+	/**
+	 * Prepends {@code id} to the chain of files of {@code size}.
+	 */
+	private void linkSize(final int id, final long size) {
+		final var head = bySize.head(size);
+		nextOfSize[id] = head;
+		previousOfSize[id] = NO_NODE;
+		if (head != NO_NODE) {
+			previousOfSize[head] = id;
+		}
+		bySize.put(size, id, 1);
+	}
+
+	private void unlinkSize(final int id) {
+		final var next = nextOfSize[id];
+		final var previous = previousOfSize[id];
+		if (next != NO_NODE) {
+			previousOfSize[next] = previous;
+		}
+		if (previous != NO_NODE) {
+			nextOfSize[previous] = next;
+			bySize.put(sizes[id], bySize.head(sizes[id]), -1);
+		} else {
+			bySize.put(sizes[id], next, -1);
+		}
+	}
+
+	private PathMeta metaOf(final int id, final Path path) {
+		if (sizes[id] == NO_META) {
+			return null;
+		}
+
+		return new PathMeta(path, sizes[id], lastModified[id], fileKeys.get(id),
+			partialHashes.get(id), algorithms[id], hashes.get(id));
+	}
+
+	private void checkId(final int id) {
+		if (id <= TOP || id >= nodes) {
+			throw new IllegalArgumentException("id must have been returned by this catalogue");
+		}
+	}
+
+	private Path pathOf(final int id) {
+		final var components = new ArrayDeque<String>();
+		var node = id;
+		for (; parents[node] != TOP; node = parents[node]) {
+			components.push(names.get(nameOf[node]));
+		}
+		var path = rootPath(node);
+		for (final var component : components) {
+			path = path.resolve(component);
+		}
+
+		return path;
+	}
+
+	private Path rootPath(final int id) {
+		return Paths.get(names.get(nameOf[id]));
+	}
+
+	/**
+	 * Relative paths share a root with an empty name.
+	 */
+	private static String rootName(final Path path) {
+		final var root = path.getRoot();
+
+		return root == null ? "" : root.toString();
+	}
+
+	/**
+	 * Maps a parent id and a name id to the id of the child, using open addressing so that no
+	 * object is allocated per entry.
+	 */
+	private static final class Children {
+
+		private long[] keys = new long[INITIAL_CAPACITY];
+		private int[] values = new int[INITIAL_CAPACITY];
+		private int size;
+
+		Children() {
+			Arrays.fill(values, NO_NODE);
+		}
+
+		int get(final int parent, final int nameId) {
+			if (nameId == NO_NODE) {
+				return NO_NODE;
+			}
+
+			final var key = key(parent, nameId);
+			final var mask = keys.length - 1;
+			for (var slot = slot(key, mask); values[slot] != NO_NODE; slot = (slot + 1) & mask) {
+				if (keys[slot] == key) {
+					return values[slot];
+				}
+			}
+
+			return NO_NODE;
+		}
+
+		void put(final int parent, final int nameId, final int child) {
+			if (2 * (size + 1) > keys.length) {
+				rehash(keys.length * 2);
+			}
+			insert(key(parent, nameId), child);
+			size++;
+		}
+
+		private void insert(final long key, final int child) {
+			final var mask = keys.length - 1;
+			var slot = slot(key, mask);
+			while (values[slot] != NO_NODE) {
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = key;
+			values[slot] = child;
+		}
+
+		private void rehash(final int capacity) {
+			final var oldKeys = keys;
+			final var oldValues = values;
+			keys = new long[capacity];
+			values = new int[capacity];
+			Arrays.fill(values, NO_NODE);
+			for (var i = 0; i < oldKeys.length; i++) {
+				if (oldValues[i] != NO_NODE) {
+					insert(oldKeys[i], oldValues[i]);
+				}
+			}
+		}
+
+		private static long key(final int parent, final int nameId) {
+			return (long) parent << 32 | nameId & 0xFFFFFFFFL;
+		}
+
+		private static int slot(final long key, final int mask) {
+			// spread the bits of both halves; consecutive ids would otherwise cluster
+			final var hash = key * 0x9E3779B97F4A7C15L;
+
+			return (int) (hash >>> 32) & mask;
+		}
+
+	}
+
+	/**
+	 * Stores the file key of every id. Unix file keys are stored as their device and inode, and
+	 * rebuilt when they are looked up; any other file key is kept as it is.
+	 */
+	private static final class FileKeys {
+
+		private static final byte NONE = 0;
+		private static final byte UNIX = 1;
+		private static final byte OTHER = 2;
+
+		private final Map<Integer, String> others = new HashMap<>();
+
+		private byte[] kinds = new byte[INITIAL_CAPACITY];
+		private long[] devices = new long[INITIAL_CAPACITY];
+		private long[] inodes = new long[INITIAL_CAPACITY];
+
+		String get(final int id) {
+			return switch (kinds[id]) {
+				case UNIX -> unixFileKey(devices[id], inodes[id]);
+				case OTHER -> others.get(id);
+				default -> null;
+			};
+		}
+
+		void put(final int id, final String fileKey) {
+			if (kinds[id] == OTHER) {
+				others.remove(id);
+			}
+			if (fileKey == null) {
+				kinds[id] = NONE;
+				return;
+			}
+
+			final var matcher = DeviceScheduler.UNIX_FILE_KEY.matcher(fileKey);
+			if (matcher.matches()) {
+				try {
+					final var device = Long.parseUnsignedLong(matcher.group(1), 16);
+					final var inode = Long.parseUnsignedLong(matcher.group(2));
+					// e.g. leading zeros would not survive the round trip
+					if (unixFileKey(device, inode).equals(fileKey)) {
+						kinds[id] = UNIX;
+						devices[id] = device;
+						inodes[id] = inode;
+						return;
+					}
+				} catch (final NumberFormatException e) {
+					// too large for a long; kept as it is
+				}
+			}
+			kinds[id] = OTHER;
+			others.put(id, fileKey);
+		}
+
+		void grow(final int capacity) {
+			kinds = Arrays.copyOf(kinds, capacity);
+			devices = Arrays.copyOf(devices, capacity);
+			inodes = Arrays.copyOf(inodes, capacity);
+		}
+
+		private static String unixFileKey(final long device, final long inode) {
+			return "(dev=" + Long.toHexString(device) + ",ino=" + Long.toUnsignedString(inode)
+				+ ")";
+		}
+
+	}
+
+	/**
+	 * Stores the digest of every id in one array of longs. Every id has the same number of longs,
+	 * enough for the longest digest stored so far, so a digest is replaced in place.
+	 */
+	private static final class Digests {
+
+		private static final int MAX_LENGTH = 255;
+
+		/**
+		 * The length of every digest in bytes, where 0 means no digest.
+		 */
+		private byte[] lengths = new byte[INITIAL_CAPACITY];
+		private long[] words = new long[0];
+		private int stride;
+
+		HashCode get(final int id) {
+			final var length = Byte.toUnsignedInt(lengths[id]);
+			if (length == 0) {
+				return null;
+			}
+
+			final var bytes = new byte[length];
+			final var base = id * stride;
+			for (var i = 0; i < length; i++) {
+				bytes[i] = (byte) (words[base + i / Long.BYTES] >>> i % Long.BYTES * Byte.SIZE);
+			}
+
+			return HashCode.fromBytes(bytes);
+		}
+
+		void put(final int id, final HashCode digest) {
+			if (digest == null) {
+				lengths[id] = 0;
+				return;
+			}
+
+			final var bytes = digest.asBytes();
+			if (bytes.length > MAX_LENGTH) {
+				throw new IllegalArgumentException(
+					String.format("digests must not be longer than %d bytes", MAX_LENGTH));
+			}
+			final var longs = (bytes.length + Long.BYTES - 1) / Long.BYTES;
+			if (longs > stride) {
+				restride(longs);
+			}
+
+			final var base = id * stride;
+			Arrays.fill(words, base, base + stride, 0);
+			for (var i = 0; i < bytes.length; i++) {
+				words[base + i / Long.BYTES] |= (bytes[i] & 0xFFL) << i % Long.BYTES * Byte.SIZE;
+			}
+			lengths[id] = (byte) bytes.length;
+		}
+
+		void grow(final int capacity) {
+			lengths = Arrays.copyOf(lengths, capacity);
+			words = Arrays.copyOf(words, capacity * stride);
+		}
+
+		private void restride(final int stride) {
+			final var restrided = new long[lengths.length * stride];
+			for (var id = 0; id < lengths.length; id++) {
+				System.arraycopy(words, id * this.stride, restrided, id * stride, this.stride);
+			}
+			words = restrided;
+			this.stride = stride;
+		}
+
+	}
+
+	/**
+	 * Maps a size to the first file of its chain and the length of the chain, using open
+	 * addressing. A size whose last file is removed keeps its slot, as it is likely to be seen again.
+	 */
+	private static final class SizeIndex {
+
+		private long[] keys = new long[INITIAL_CAPACITY];
+		private int[] heads = new int[INITIAL_CAPACITY];
+		private int[] counts = new int[INITIAL_CAPACITY];
+		private boolean[] used = new boolean[INITIAL_CAPACITY];
+		private int size;
+
+		int head(final long key) {
+			final var slot = find(key);
+
+			return used[slot] ? heads[slot] : NO_NODE;
+		}
+
+		/**
+		 * @param delta the change in the length of the chain
+		 */
+		void put(final long key, final int head, final int delta) {
+			var slot = find(key);
+			if (!used[slot]) {
+				if (2 * (size + 1) > keys.length) {
+					rehash(keys.length * 2);
+					slot = find(key);
+				}
+				used[slot] = true;
+				keys[slot] = key;
+				size++;
+			}
+			heads[slot] = head;
+			counts[slot] += delta;
+		}
+
+		/**
+		 * @return every key whose chain holds at least two files
+		 */
+		long[] shared() {
+			var shared = 0;
+			for (var slot = 0; slot < keys.length; slot++) {
+				if (counts[slot] > 1) {
+					shared++;
+				}
+			}
+
+			final var sharedKeys = new long[shared];
+			var i = 0;
+			for (var slot = 0; slot < keys.length; slot++) {
+				if (counts[slot] > 1) {
+					sharedKeys[i++] = keys[slot];
+				}
+			}
+
+			return sharedKeys;
+		}
+
+		/**
+		 * @return the slot of {@code key}, or the free slot where it belongs
+		 */
+		private int find(final long key) {
+			final var mask = keys.length - 1;
+			var slot = Children.slot(key, mask);
+			while (used[slot] && keys[slot] != key) {
+				slot = (slot + 1) & mask;
+			}
+
+			return slot;
+		}
+
+		private void rehash(final int capacity) {
+			final var oldKeys = keys;
+			final var oldHeads = heads;
+			final var oldCounts = counts;
+			final var oldUsed = used;
+			keys = new long[capacity];
+			heads = new int[capacity];
+			counts = new int[capacity];
+			used = new boolean[capacity];
+			for (var i = 0; i < oldKeys.length; i++) {
+				if (oldUsed[i]) {
+					final var slot = find(oldKeys[i]);
+					used[slot] = true;
+					keys[slot] = oldKeys[i];
+					heads[slot] = oldHeads[i];
+					counts[slot] = oldCounts[i];
+				}
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,235 @@
+package com.tagadvance.filededuplicator;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Decides which files take part in deduplication. Patterns are matched against absolute paths with
+ * {@link java.util.regex.Matcher#find() find} semantics; inclusions ignore case and exclusions do
+ * not.
+ * <p>
+ * Every pattern is compiled once. Extension patterns such as {@code \.(jpg|png)$} become a set
+ * lookup, literal patterns such as {@code /boot} or {@code ^/proc} become a substring or prefix
+ * test and the remaining patterns are combined into a single regular expression.
+ */
+public final class PathFilter {
+
+	private static final Pattern EXTENSION_PATTERN = Pattern.compile(
+		"\\\\\\.(?:\\((?:\\?:)?([\\w-]+(?:\\|[\\w-]+)*)\\)|([\\w-]+))\\$");
+
+	private static final String METACHARACTERS = "\\^$.|?*+()[]{}";
+
+	/**
+	 * Constructs whose result depends on what follows the match, so a match in a directory does not
+	 * imply a match in every path under it.
+	 */
+	private static final Pattern END_SENSITIVE = Pattern.compile(
+		"\\$|\\\\[bBzZG]|\\(\\?<?[=!]|\\(\\?>|[*+?}]\\+");
+
+	/**
+	 * Constructs that cannot be renumbered or repeated in a combined expression.
+	 */
+	private static final Pattern GROUP_REFERENCE = Pattern.compile("\\\\[1-9]|\\\\k<|\\(\\?<\\w");
+
+	private final Patterns inclusions;
+	private final Patterns exclusions;
+
+	/**
+	 * @param inclusions if not empty, only paths that match at least one pattern are included
+	 * @param exclusions paths that match any pattern are excluded
+	 */
+	public PathFilter(final List<String> inclusions, final List<String> exclusions) {
+		this.inclusions = new Patterns(inclusions, true);
+		this.exclusions = new Patterns(exclusions, false);
+	}
+
+	/**
+	 * @return {@code true} if {@code path} is included and not excluded
+	 */
+	public boolean accepts(final Path path) {
+		return isIncluded(path) && !isExcluded(path);
+	}
+
+	public boolean isIncluded(final Path path) {
+		return inclusions.isEmpty() || inclusions.matches(path.toAbsolutePath().toString());
+	}
+
+	public boolean isExcluded(final Path path) {
+		return !exclusions.isEmpty() && exclusions.matches(path.toAbsolutePath().toString());
+	}
+
+	/**
+	 * @param directory a directory
+	 * @return {@code true} if every path under {@code directory} is excluded, in which case the
+	 * directory does not need to be walked
+	 */
+	public boolean isExcludedDirectory(final Path directory) {
+		if (exclusions.isEmpty()) {
+			return false;
+		}
+
+		final var absolutePath = directory.toAbsolutePath().toString();
+
+		return exclusions.matchesEveryPathUnder(
+			absolutePath.endsWith(File.separator) ? absolutePath : absolutePath + File.separator);
+	}
+
+	private static Optional<String> toLiteral(final String regex) {
+		final var literal = new StringBuilder();
+		for (var i = 0; i < regex.length(); i++) {
+			final var c = regex.charAt(i);
+			if (c == '\\') {
+				if (i + 1 == regex.length() || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+					return Optional.empty();
+				}
+				literal.append(regex.charAt(++i));
+			} else if (METACHARACTERS.indexOf(c) >= 0) {
+				return Optional.empty();
+			} else {
+				literal.append(c);
+			}
+		}
+
+		return Optional.of(literal.toString());
+	}
+
+	/**
+	 * {@link Pattern#CASE_INSENSITIVE} only folds ASCII, so literals are folded the same way.
+	 */
+	private static String toAsciiLowerCase(final String value) {
+		final var chars = value.toCharArray();
+		for (var i = 0; i < chars.length; i++) {
+			if (chars[i] >= 'A' && chars[i] <= 'Z') {
+				chars[i] += 'a' - 'A';
+			}
+		}
+
+		return new String(chars);
+	}
+
+	private static boolean isAscii(final String value) {
+		return value.chars().allMatch(c -> c < 0x80);
+	}
+
+	private static final class Patterns {
+
+		private final boolean caseInsensitive;
+		private final boolean empty;
+		private final Set<String> extensions = new HashSet<>();
+		private final List<String> prefixes = new ArrayList<>();
+		private final List<String> substrings = new ArrayList<>();
+		private final List<Pattern> patterns = new ArrayList<>();
+		private final List<Pattern> prunablePatterns = new ArrayList<>();
+
+		Patterns(final List<String> regexes, final boolean caseInsensitive) {
+			this.caseInsensitive = caseInsensitive;
+
+			final var combinable = new ArrayList<String>();
+			final var prunable = new ArrayList<String>();
+			final var nonNullRegexes = regexes == null ? List.<String>of()
+				: regexes.stream().filter(Objects::nonNull).toList();
+			for (final var regex : nonNullRegexes) {
+				final var extension = EXTENSION_PATTERN.matcher(regex);
+				if (extension.matches()) {
+					final var alternatives = extension.group(1) != null ? extension.group(1)
+						: extension.group(2);
+					for (final var alternative : alternatives.split("\\|")) {
+						extensions.add(fold(alternative));
+					}
+
+					continue;
+				}
+
+				final var anchored = regex.startsWith("^");
+				final var literal = toLiteral(anchored ? regex.substring(1) : regex).filter(
+					value -> !caseInsensitive || isAscii(value));
+				if (literal.isPresent()) {
+					(anchored ? prefixes : substrings).add(fold(literal.get()));
+
+					continue;
+				}
+
+				if (GROUP_REFERENCE.matcher(regex).find()) {
+					final var pattern = compile(List.of(regex));
+					patterns.add(pattern);
+					if (!END_SENSITIVE.matcher(regex).find()) {
+						prunablePatterns.add(pattern);
+					}
+
+					continue;
+				}
+
+				combinable.add(regex);
+				if (!END_SENSITIVE.matcher(regex).find()) {
+					prunable.add(regex);
+				}
+			}
+
+			if (!combinable.isEmpty()) {
+				patterns.add(compile(combinable));
+			}
+			if (!prunable.isEmpty()) {
+				prunablePatterns.add(compile(prunable));
+			}
+			this.empty = nonNullRegexes.isEmpty();
+		}
+
+		boolean isEmpty() {
+			return empty;
+		}
+
+		boolean matches(final String path) {
+			if (!extensions.isEmpty()) {
+				final var dot = path.lastIndexOf('.');
+				if (dot >= 0 && extensions.contains(fold(path.substring(dot + 1)))) {
+					return true;
+				}
+			}
+
+			return matchesLiteral(path) || patterns.stream()
+				.anyMatch(pattern -> pattern.matcher(path).find());
+		}
+
+		/**
+		 * @param directory a directory that ends with a separator
+		 */
+		boolean matchesEveryPathUnder(final String directory) {
+			return matchesLiteral(directory) || prunablePatterns.stream()
+				.anyMatch(pattern -> pattern.matcher(directory).find());
+		}
+
+		private boolean matchesLiteral(final String path) {
+			if (prefixes.isEmpty() && substrings.isEmpty()) {
+				return false;
+			}
+
+			final var folded = fold(path);
+
+			return prefixes.stream().anyMatch(folded::startsWith) || substrings.stream()
+				.anyMatch(folded::contains);
+		}
+
+		private String fold(final String value) {
+			return caseInsensitive ? toAsciiLowerCase(value) : value;
+		}
+
+		private Pattern compile(final List<String> regexes) {
+			final var regex = regexes.size() == 1 ? regexes.get(0) : regexes.stream()
+				.map(alternative -> "(?:" + alternative + ")")
+				.collect(Collectors.joining("|"));
+
+			return caseInsensitive ? Pattern.compile(regex, Pattern.CASE_INSENSITIVE)
+				: Pattern.compile(regex);
+		}
+
+	}
+
+}
@@ -1,7 +1,102 @@
 package com.tagadvance.filededuplicator;
 
+import com.google.common.hash.HashCode;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
 
-public record PathMeta(Path path, long size, long lastModified, String md5, String sha512) {
+/**
+ * @param fileKey     the {@link BasicFileAttributes#fileKey() file key}, e.g. device and inode, or
+ *                    {@code null} if it is not available
+ * @param partialHash a fingerprint of the start and the end of the contents, or {@code null} if
+ *                    the file has not been fingerprinted
+ * @param algorithm   the {@link HashEngine#algorithm() algorithm} that produced {@code hash}, or
+ *                    {@code null} if the file has not been hashed
+ * @param hash        the digest of the contents, or {@code null} if the file has not been hashed
+ */
+public record PathMeta(Path path, long size, long lastModified, String fileKey,
+	HashCode partialHash, String algorithm, HashCode hash) {
+
+	private static final long TOMBSTONE_SIZE = -1;
+
+	/**
+	 * @param path       the file
+	 * @param attributes the attributes of the file
+	 * @return a meta that has been neither fingerprinted nor hashed
+	 */
+	public static PathMeta fromAttributes(final Path path, final BasicFileAttributes attributes) {
+		final var fileKey = attributes.fileKey();
+
+		return new PathMeta(path, attributes.size(), attributes.lastModifiedTime().toMillis(),
+			fileKey == null ? null : fileKey.toString(), null, null, null);
+	}
+
+	/**
+	 * A tombstone supersedes every earlier row for a file that no longer exists.
+	 *
+	 * @param path the file that no longer exists
+	 * @return a tombstone for {@code path}
+	 */
+	public static PathMeta tombstone(final Path path) {
+		return new PathMeta(path, TOMBSTONE_SIZE, 0, null, null, null, null);
+	}
+
+	public boolean isTombstone() {
+		return size == TOMBSTONE_SIZE;
+	}
+
+	/**
+	 * A file is assumed to be unchanged if its size, last modified time and, when both are known,
+	 * file key are unchanged.
+	 *
+	 * @param other the current meta of the same path
+	 * @return {@code true} if {@code other} describes the same contents as this meta
+	 */
+	public boolean isUnchanged(final PathMeta other) {
+		return size == other.size && lastModified == other.lastModified && (fileKey == null
+			|| other.fileKey == null || Objects.equals(fileKey, other.fileKey));
+	}
+
+	/**
+	 * Files are only fingerprinted when another file shares their size.
+	 *
+	 * @return {@code true} if the start and the end of this file have been hashed
+	 */
+	public boolean isPartiallyHashed() {
+		return partialHash != null;
+	}
+
+	public PathMeta withPartialHash(final HashCode partialHash) {
+		return new PathMeta(path, size, lastModified, fileKey, partialHash, algorithm, hash);
+	}
+
+	/**
+	 * Files are only hashed when another file shares their size and fingerprint.
+	 *
+	 * @return {@code true} if the contents of this file have been hashed
+	 */
+	public boolean isHashed() {
+		return hash != null;
+	}
+
+	/**
+	 * @param engine the hash engine
+	 * @return {@code true} if the contents of this file have been hashed by {@code engine}
+	 */
+	public boolean isHashedWith(final HashEngine engine) {
+		return isHashed() && engine.algorithm().equals(algorithm);
+	}
+
+	public PathMeta withHash(final String algorithm, final HashCode hash) {
+		return new PathMeta(path, size, lastModified, fileKey, partialHash, algorithm, hash);
+	}
+
+	/**
+	 * @return the algorithm and the digest of the contents
+	 * @throws NullPointerException if this file has not been hashed
+	 */
+	public ContentHash contentHash() {
+		return new ContentHash(algorithm, hash);
+	}
 
 }
@@ -0,0 +1,486 @@
+package com.tagadvance.filededuplicator;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Serial;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitor;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the I/O heavy stages of a scan on dedicated thread pools so that neither competes with the
+ * JVM-wide common pool.
+ * <p>
+ * Directories are walked by a {@link ForkJoinPool} in which every directory is a task that forks
+ * one task per subdirectory, so idle walkers steal whole subtrees from busy ones. Files are hashed
+ * by a separately sized fixed pool, by a bounded number of readers per device.
+ * <p>
+ * On high-latency file systems such as NFS or SMB mounts every request blocks for milliseconds,
+ * so {@link #ofVirtualThreads(int) virtual thread mode} instead runs every stat, directory listing
+ * and hash on its own virtual thread and only caps the number of requests in flight. Devices that
+ * do not seek are then read by as many readers as files may be open at once.
+ */
+public final class ScanEngine implements AutoCloseable {
+
+	private static final Logger logger = LoggerFactory.getLogger(ScanEngine.class);
+
+	private final ForkJoinPool walkers;
+	private final ExecutorService hashers;
+	private final int maxOpenFiles;
+	private final Semaphore openFilePermits;
+
+	/**
+	 * @param walkerThreads the number of threads that list directories and read attributes
+	 * @param hasherThreads the number of threads that read file contents
+	 */
+	public ScanEngine(final int walkerThreads, final int hasherThreads) {
+		if (walkerThreads < 1) {
+			throw new IllegalArgumentException("walkerThreads must be positive");
+		}
+		if (hasherThreads < 1) {
+			throw new IllegalArgumentException("hasherThreads must be positive");
+		}
+
+		this.walkers = new ForkJoinPool(walkerThreads, pool -> {
+			final var thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			thread.setName("walker-" + thread.getPoolIndex());
+			thread.setDaemon(true);
+
+			return thread;
+		}, null, false);
+		this.hashers = Executors.newFixedThreadPool(hasherThreads,
+			new ThreadFactoryBuilder().setNameFormat("hasher-%d").setDaemon(true).build());
+		this.maxOpenFiles = 0;
+		this.openFilePermits = null;
+	}
+
+	private ScanEngine(final int maxOpenFiles) {
+		this.walkers = null;
+		this.hashers = Executors.newThreadPerTaskExecutor(
+			Thread.ofVirtual().name("scanner-", 0).factory());
+		this.maxOpenFiles = maxOpenFiles;
+		this.openFilePermits = new Semaphore(maxOpenFiles);
+	}
+
+	/**
+	 * @param maxOpenFiles the maximum number of files that are stat'ed, listed or hashed at once
+	 * @return an engine that runs every file system request on its own virtual thread
+	 */
+	public static ScanEngine ofVirtualThreads(final int maxOpenFiles) {
+		if (maxOpenFiles < 1) {
+			throw new IllegalArgumentException("maxOpenFiles must be positive");
+		}
+
+		return new ScanEngine(maxOpenFiles);
+	}
+
+	/**
+	 * Walks {@code root} without following symbolic links below it. Unlike
+	 * {@link Files#walkFileTree(Path, FileVisitor)} the visitor is called from several threads at
+	 * once, {@link FileVisitor#postVisitDirectory(Object, IOException) postVisitDirectory} is
+	 * called once every subdirectory has been visited and {@link FileVisitResult#SKIP_SIBLINGS} is
+	 * treated as {@link FileVisitResult#SKIP_SUBTREE}.
+	 *
+	 * @param root    the directory to walk
+	 * @param visitor a thread-safe visitor
+	 * @throws IOException if the attributes of {@code root} could not be read
+	 */
+	public void walk(final Path root, final FileVisitor<Path> visitor) throws IOException {
+		requireNonNull(root, "root must not be null");
+		requireNonNull(visitor, "visitor must not be null");
+
+		final var attributes = Files.readAttributes(root, BasicFileAttributes.class);
+		if (!attributes.isDirectory()) {
+			visitor.visitFile(root, attributes);
+
+			return;
+		}
+
+		if (walkers != null) {
+			walkers.invoke(new DirectoryTask(root, attributes, visitor, new AtomicBoolean()));
+
+			return;
+		}
+
+		try {
+			new VirtualWalk(visitor).run(root, attributes);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while walking " + root);
+		}
+	}
+
+	/**
+	 * Applies {@code action} to the files of every lane on the hashing pool, with at most
+	 * {@link DeviceScheduler.Lane#readers() readers} at once per lane and in lane order, and waits
+	 * for all of them to complete. Readers take turns: a reader processes one file and then queues
+	 * itself behind every other reader, which are all queued before the first file is processed,
+	 * starting with the first reader of every lane. So when there are more readers than hashing
+	 * threads no device waits for another to be finished. Failures are logged and do not stop the
+	 * remaining files.
+	 * <p>
+	 * In virtual thread mode a lane that does not seek is read by up to {@code maxOpenFiles}
+	 * readers instead, and every file holds an open file permit while it is processed, so that
+	 * reads and a concurrent walk share the same limit.
+	 *
+	 * @param lanes  the files to process, by device
+	 * @param action a thread-safe action
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void forEachLane(final List<DeviceScheduler.Lane> lanes,
+		final Consumer<? super PathMeta> action) throws InterruptedException {
+		requireNonNull(lanes, "lanes must not be null");
+		requireNonNull(action, "action must not be null");
+
+		final var queues = lanes.stream()
+			.map(lane -> new ConcurrentLinkedQueue<>(lane.metas()))
+			.toList();
+		final var readers = new ArrayList<Queue<PathMeta>>();
+		for (var round = 0; readers.size() < countReaders(lanes); round++) {
+			for (var i = 0; i < lanes.size(); i++) {
+				if (round < readers(lanes.get(i))) {
+					readers.add(queues.get(i));
+				}
+			}
+		}
+
+		final var remaining = new CountDownLatch(readers.size());
+		final var turns = new Turns(new ConcurrentLinkedQueue<>(readers), action, remaining);
+		for (var i = 0; i < readers.size(); i++) {
+			hashers.execute(turns);
+		}
+		remaining.await();
+	}
+
+	private int countReaders(final List<DeviceScheduler.Lane> lanes) {
+		return lanes.stream().mapToInt(this::readers).sum();
+	}
+
+	private int readers(final DeviceScheduler.Lane lane) {
+		// a virtual reader is cheap, so only the open file limit bounds a device that does not seek
+		final var readers = openFilePermits == null || lane.rotational() ? lane.readers()
+			: maxOpenFiles;
+
+		return Math.min(readers, lane.metas().size());
+	}
+
+	/**
+	 * Every run takes the reader whose turn it is, processes the next file of its lane and queues
+	 * the reader again behind the others, so that a hashing thread is handed back after every
+	 * file. There is one pending run per reader that has not finished; a run counts down once its
+	 * reader's lane is drained.
+	 */
+	private final class Turns implements Runnable {
+
+		private final Queue<Queue<PathMeta>> readers;
+		private final Consumer<? super PathMeta> action;
+		private final CountDownLatch remaining;
+
+		Turns(final Queue<Queue<PathMeta>> readers, final Consumer<? super PathMeta> action,
+			final CountDownLatch remaining) {
+			this.readers = readers;
+			this.action = action;
+			this.remaining = remaining;
+		}
+
+		@Override
+		public void run() {
+			final var reader = readers.poll();
+			final var meta = reader.poll();
+			if (meta == null) {
+				remaining.countDown();
+
+				return;
+			}
+
+			try {
+				if (openFilePermits != null) {
+					openFilePermits.acquire();
+				}
+				try {
+					action.accept(meta);
+				} catch (final RuntimeException e) {
+					logger.error(String.format("Failed to process %s!", meta.path()), e);
+				} finally {
+					if (openFilePermits != null) {
+						openFilePermits.release();
+					}
+				}
+				readers.offer(reader);
+				hashers.execute(this);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				remaining.countDown();
+			} catch (final RejectedExecutionException e) {
+				// the engine was closed, so no run will take the reader's next turn
+				readers.remove(reader);
+				remaining.countDown();
+			}
+		}
+
+	}
+
+	@Override
+	public void close() {
+		if (walkers != null) {
+			walkers.shutdownNow();
+		}
+		hashers.shutdownNow();
+		try {
+			if (walkers != null) {
+				walkers.awaitTermination(1, TimeUnit.MINUTES);
+			}
+			hashers.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static final class DirectoryTask extends RecursiveAction {
+
+		@Serial
+		private static final long serialVersionUID = 1L;
+
+		private final transient Path directory;
+		private final transient BasicFileAttributes attributes;
+		private final transient FileVisitor<Path> visitor;
+		private final transient AtomicBoolean terminated;
+
+		DirectoryTask(final Path directory, final BasicFileAttributes attributes,
+			final FileVisitor<Path> visitor, final AtomicBoolean terminated) {
+			this.directory = directory;
+			this.attributes = attributes;
+			this.visitor = visitor;
+			this.terminated = terminated;
+		}
+
+		@Override
+		protected void compute() {
+			if (terminated.get()) {
+				return;
+			}
+
+			try {
+				final var result = visitor.preVisitDirectory(directory, attributes);
+				if (result != FileVisitResult.CONTINUE) {
+					handle(result);
+
+					return;
+				}
+
+				final var subdirectories = new ArrayList<DirectoryTask>();
+				IOException failure = null;
+				try (final var entries = Files.newDirectoryStream(directory)) {
+					for (final var entry : entries) {
+						if (terminated.get()) {
+							return;
+						}
+
+						visitEntry(entry, subdirectories);
+					}
+				} catch (final IOException e) {
+					failure = e;
+				}
+
+				invokeAll(subdirectories);
+				handle(visitor.postVisitDirectory(directory, failure));
+			} catch (final IOException e) {
+				visitFailed(directory, e);
+			}
+		}
+
+		private void visitEntry(final Path entry, final Collection<DirectoryTask> subdirectories) {
+			try {
+				final var entryAttributes = Files.readAttributes(entry, BasicFileAttributes.class,
+					LinkOption.NOFOLLOW_LINKS);
+				if (entryAttributes.isDirectory()) {
+					subdirectories.add(
+						new DirectoryTask(entry, entryAttributes, visitor, terminated));
+				} else {
+					handle(visitor.visitFile(entry, entryAttributes));
+				}
+			} catch (final IOException e) {
+				visitFailed(entry, e);
+			}
+		}
+
+		private void visitFailed(final Path path, final IOException failure) {
+			try {
+				handle(visitor.visitFileFailed(path, failure));
+			} catch (final IOException e) {
+				logger.error(String.format("Failed to visit %s!", path), e);
+			}
+		}
+
+		private void handle(final FileVisitResult result) {
+			if (result == FileVisitResult.TERMINATE) {
+				terminated.set(true);
+			}
+		}
+
+	}
+
+	/**
+	 * Walks a tree with one virtual thread per entry. A permit is held for every stat and every
+	 * directory listing, but never while waiting for another permit, so the walk cannot deadlock.
+	 * Every directory counts its outstanding entries and calls postVisitDirectory when the last
+	 * one completes.
+	 */
+	private final class VirtualWalk {
+
+		private final FileVisitor<Path> visitor;
+		private final AtomicBoolean terminated = new AtomicBoolean();
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		VirtualWalk(final FileVisitor<Path> visitor) {
+			this.visitor = visitor;
+		}
+
+		void run(final Path root, final BasicFileAttributes attributes)
+			throws InterruptedException {
+			final var node = new DirectoryNode(root, null);
+			hashers.execute(() -> visitDirectory(node, attributes));
+			done.await();
+		}
+
+		private void visitDirectory(final DirectoryNode node,
+			final BasicFileAttributes attributes) {
+			try {
+				final var result = visitor.preVisitDirectory(node.directory, attributes);
+				if (result != FileVisitResult.CONTINUE) {
+					handle(result);
+					node.skipped = true;
+
+					return;
+				}
+
+				final var entries = new ArrayList<Path>();
+				openFilePermits.acquire();
+				try (final var stream = Files.newDirectoryStream(node.directory)) {
+					stream.forEach(entries::add);
+				} catch (final IOException e) {
+					node.failure = e;
+				} finally {
+					openFilePermits.release();
+				}
+
+				for (final var entry : entries) {
+					if (terminated.get()) {
+						break;
+					}
+
+					openFilePermits.acquire();
+					node.remaining.incrementAndGet();
+					hashers.execute(() -> visitEntry(node, entry));
+				}
+			} catch (final IOException e) {
+				visitFailed(node.directory, e);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				terminated.set(true);
+			} finally {
+				node.complete();
+			}
+		}
+
+		/**
+		 * Runs with a permit that was acquired by the parent directory.
+		 */
+		private void visitEntry(final DirectoryNode parent, final Path entry) {
+			try {
+				final BasicFileAttributes attributes;
+				try {
+					attributes = Files.readAttributes(entry, BasicFileAttributes.class,
+						LinkOption.NOFOLLOW_LINKS);
+				} finally {
+					openFilePermits.release();
+				}
+
+				if (attributes.isDirectory()) {
+					parent.remaining.incrementAndGet();
+					visitDirectory(new DirectoryNode(entry, parent), attributes);
+				} else {
+					handle(visitor.visitFile(entry, attributes));
+				}
+			} catch (final IOException e) {
+				visitFailed(entry, e);
+			} finally {
+				parent.complete();
+			}
+		}
+
+		private void visitFailed(final Path path, final IOException failure) {
+			try {
+				handle(visitor.visitFileFailed(path, failure));
+			} catch (final IOException e) {
+				logger.error(String.format("Failed to visit %s!", path), e);
+			}
+		}
+
+		private void handle(final FileVisitResult result) {
+			if (result == FileVisitResult.TERMINATE) {
+				terminated.set(true);
+			}
+		}
+
+		private final class DirectoryNode {
+
+			private final Path directory;
+			private final DirectoryNode parent;
+			private final AtomicInteger remaining = new AtomicInteger(1);
+			private volatile IOException failure;
+			private volatile boolean skipped;
+
+			DirectoryNode(final Path directory, final DirectoryNode parent) {
+				this.directory = directory;
+				this.parent = parent;
+			}
+
+			void complete() {
+				if (remaining.decrementAndGet() > 0) {
+					return;
+				}
+
+				if (!skipped) {
+					try {
+						handle(visitor.postVisitDirectory(directory, failure));
+					} catch (final IOException e) {
+						visitFailed(directory, e);
+					}
+				}
+				if (parent == null) {
+					done.countDown();
+				} else {
+					parent.complete();
+				}
+			}
+
+		}
+
+	}
+
+}
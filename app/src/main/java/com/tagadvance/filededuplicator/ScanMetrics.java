@@ -0,0 +1,374 @@
+package com.tagadvance.filededuplicator;
+
+import static java.util.Objects.requireNonNull;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters and latency histograms of a scan. Recording only adds to {@link LongAdder}s, so it is
+ * lock-free and does not allocate; reading a value sums the adders and is meant for the periodic
+ * {@link MetricsReporter}, JMX and the Prometheus dump.
+ */
+public final class ScanMetrics implements ScanMetricsMBean {
+
+	/**
+	 * A histogram of durations with power-of-two buckets: bucket {@code i} counts durations of
+	 * less than 2<sup>i</sup> nanoseconds that did not fit the previous bucket.
+	 */
+	public static final class Histogram {
+
+		/**
+		 * The last bucket counts every duration of 2<sup>38</sup> ns, about 4.6 minutes, or more.
+		 */
+		static final int BUCKETS = 40;
+
+		private final LongAdder[] counts = new LongAdder[BUCKETS];
+		private final LongAdder sum = new LongAdder();
+
+		Histogram() {
+			for (var i = 0; i < BUCKETS; i++) {
+				counts[i] = new LongAdder();
+			}
+		}
+
+		public void record(final long nanos) {
+			counts[bucket(nanos)].increment();
+			sum.add(nanos);
+		}
+
+		static int bucket(final long nanos) {
+			return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(Math.max(0, nanos)));
+		}
+
+		/**
+		 * @param bucket a bucket index
+		 * @return the exclusive upper bound of the bucket in nanoseconds
+		 */
+		static long upperBound(final int bucket) {
+			return 1L << bucket;
+		}
+
+		/**
+		 * @param bucket a bucket index
+		 * @return the number of durations recorded in {@code bucket}
+		 */
+		long count(final int bucket) {
+			return counts[bucket].sum();
+		}
+
+		public long count() {
+			var count = 0L;
+			for (final var adder : counts) {
+				count += adder.sum();
+			}
+
+			return count;
+		}
+
+		public long sum() {
+			return sum.sum();
+		}
+
+		/**
+		 * @param quantile a quantile between 0 and 1
+		 * @return the upper bound in nanoseconds of the bucket holding {@code quantile}, or 0 if
+		 * nothing has been recorded
+		 */
+		public long quantile(final double quantile) {
+			final var rank = (long) Math.ceil(quantile * count());
+			var seen = 0L;
+			for (var i = 0; i < BUCKETS; i++) {
+				seen += count(i);
+				if (seen >= rank && seen > 0) {
+					return upperBound(i);
+				}
+			}
+
+			return 0;
+		}
+
+	}
+
+	/**
+	 * The walk of one root.
+	 */
+	public final class Root {
+
+		private final Path path;
+		private final LongAdder files = new LongAdder();
+		private final LongAdder bytes = new LongAdder();
+		private final long startNanos = System.nanoTime();
+		private volatile long endNanos;
+
+		Root(final Path path) {
+			this.path = path;
+		}
+
+		public void fileWalked(final long size) {
+			files.increment();
+			bytes.add(size);
+			filesWalked.increment();
+			bytesWalked.add(size);
+		}
+
+		public void finished() {
+			endNanos = System.nanoTime();
+		}
+
+		public Path path() {
+			return path;
+		}
+
+		public long files() {
+			return files.sum();
+		}
+
+		public long bytes() {
+			return bytes.sum();
+		}
+
+		/**
+		 * @return the number of files walked per second, until now or until the walk finished
+		 */
+		public double filesPerSecond() {
+			final var end = endNanos == 0 ? System.nanoTime() : endNanos;
+
+			return perSecond(files(), end - startNanos);
+		}
+
+	}
+
+	private final long startNanos = System.nanoTime();
+	private final LongAdder filesWalked = new LongAdder();
+	private final LongAdder bytesWalked = new LongAdder();
+	private final LongAdder directoriesWalked = new LongAdder();
+	private final LongAdder walkFailures = new LongAdder();
+	private final LongAdder filesFingerprinted = new LongAdder();
+	private final LongAdder filesHashed = new LongAdder();
+	private final LongAdder bytesRead = new LongAdder();
+	private final LongAdder readFailures = new LongAdder();
+	private final LongAdder filesQueued = new LongAdder();
+	private final LongAdder bytesQueued = new LongAdder();
+	private final LongAdder filesDequeued = new LongAdder();
+	private final LongAdder bytesDequeued = new LongAdder();
+	private final LongAdder rowsWritten = new LongAdder();
+	private final AtomicLong readStartNanos = new AtomicLong();
+	private final Histogram fingerprintLatency = new Histogram();
+	private final Histogram hashLatency = new Histogram();
+	private final Histogram storeWriteLatency = new Histogram();
+	private final Histogram storeLockWait = new Histogram();
+	private final Map<Path, Root> roots = new ConcurrentHashMap<>();
+	private volatile LongSupplier storeQueueDepth = () -> 0;
+
+	/**
+	 * @param path a root
+	 * @return the metrics of the walk of {@code path}, which is started by this call
+	 */
+	public Root root(final Path path) {
+		final var root = new Root(requireNonNull(path, "path must not be null"));
+		roots.put(path, root);
+
+		return root;
+	}
+
+	public Map<Path, Root> roots() {
+		return Map.copyOf(roots);
+	}
+
+	public void directoryWalked() {
+		directoriesWalked.increment();
+	}
+
+	public void walkFailed() {
+		walkFailures.increment();
+	}
+
+	public void fingerprinted(final long bytes, final long nanos) {
+		filesFingerprinted.increment();
+		read(bytes);
+		fingerprintLatency.record(nanos);
+	}
+
+	public void hashed(final long bytes, final long nanos) {
+		filesHashed.increment();
+		read(bytes);
+		hashLatency.record(nanos);
+	}
+
+	private void read(final long bytes) {
+		bytesRead.add(bytes);
+		if (readStartNanos.get() == 0) {
+			readStartNanos.compareAndSet(0, System.nanoTime());
+		}
+	}
+
+	public void readFailed() {
+		readFailures.increment();
+	}
+
+	/**
+	 * @param files the number of files queued to be fingerprinted or hashed
+	 * @param bytes the number of bytes that will be read from them
+	 */
+	public void queued(final long files, final long bytes) {
+		filesQueued.add(files);
+		bytesQueued.add(bytes);
+	}
+
+	/**
+	 * @param bytes the number of bytes that were to be read from a file that left the queue,
+	 *              whether or not it could be read
+	 */
+	public void dequeued(final long bytes) {
+		filesDequeued.increment();
+		bytesDequeued.add(bytes);
+	}
+
+	public void storeWritten(final int rows, final long lockWaitNanos, final long writeNanos) {
+		rowsWritten.add(rows);
+		storeLockWait.record(lockWaitNanos);
+		storeWriteLatency.record(writeNanos);
+	}
+
+	/**
+	 * @param storeQueueDepth the number of rows waiting to be written to the store
+	 */
+	public void setStoreQueueDepth(final LongSupplier storeQueueDepth) {
+		this.storeQueueDepth = requireNonNull(storeQueueDepth, "storeQueueDepth must not be null");
+	}
+
+	public Histogram fingerprintLatency() {
+		return fingerprintLatency;
+	}
+
+	public Histogram hashLatency() {
+		return hashLatency;
+	}
+
+	public Histogram storeWriteLatency() {
+		return storeWriteLatency;
+	}
+
+	public Histogram storeLockWait() {
+		return storeLockWait;
+	}
+
+	@Override
+	public long getFilesWalked() {
+		return filesWalked.sum();
+	}
+
+	@Override
+	public long getBytesWalked() {
+		return bytesWalked.sum();
+	}
+
+	@Override
+	public long getDirectoriesWalked() {
+		return directoriesWalked.sum();
+	}
+
+	@Override
+	public long getWalkFailures() {
+		return walkFailures.sum();
+	}
+
+	@Override
+	public long getFilesFingerprinted() {
+		return filesFingerprinted.sum();
+	}
+
+	@Override
+	public long getFilesHashed() {
+		return filesHashed.sum();
+	}
+
+	@Override
+	public long getBytesRead() {
+		return bytesRead.sum();
+	}
+
+	@Override
+	public long getReadFailures() {
+		return readFailures.sum();
+	}
+
+	@Override
+	public long getReadQueueDepth() {
+		return filesQueued.sum() - filesDequeued.sum();
+	}
+
+	@Override
+	public long getReadQueueBytes() {
+		return bytesQueued.sum() - bytesDequeued.sum();
+	}
+
+	@Override
+	public long getStoreQueueDepth() {
+		return storeQueueDepth.getAsLong();
+	}
+
+	@Override
+	public long getRowsWritten() {
+		return rowsWritten.sum();
+	}
+
+	@Override
+	public double getBytesReadPerSecond() {
+		final var start = readStartNanos.get();
+
+		return start == 0 ? 0 : perSecond(getBytesRead(), System.nanoTime() - start);
+	}
+
+	@Override
+	public double getFilesWalkedPerSecond() {
+		return perSecond(getFilesWalked(), getElapsedNanos());
+	}
+
+	@Override
+	public long getEstimatedSecondsRemaining() {
+		final var rate = getBytesReadPerSecond();
+
+		return rate == 0 ? -1 : (long) (getReadQueueBytes() / rate);
+	}
+
+	@Override
+	public double getHashLatencyP50Millis() {
+		return toMillis(hashLatency.quantile(0.5));
+	}
+
+	@Override
+	public double getHashLatencyP99Millis() {
+		return toMillis(hashLatency.quantile(0.99));
+	}
+
+	@Override
+	public double getStoreWriteLatencyP99Millis() {
+		return toMillis(storeWriteLatency.quantile(0.99));
+	}
+
+	@Override
+	public double getStoreLockWaitP99Millis() {
+		return toMillis(storeLockWait.quantile(0.99));
+	}
+
+	@Override
+	public long getElapsedNanos() {
+		return System.nanoTime() - startNanos;
+	}
+
+	private static double perSecond(final long count, final long nanos) {
+		return nanos <= 0 ? 0 : count * (double) TimeUnit.SECONDS.toNanos(1) / nanos;
+	}
+
+	private static double toMillis(final long nanos) {
+		return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+}
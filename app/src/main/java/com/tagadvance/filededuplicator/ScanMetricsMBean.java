@@ -0,0 +1,64 @@
+package com.tagadvance.filededuplicator;
+
+/**
+ * The attributes of {@link ScanMetrics} published through JMX.
+ */
+public interface ScanMetricsMBean {
+
+	long getFilesWalked();
+
+	long getBytesWalked();
+
+	long getDirectoriesWalked();
+
+	long getWalkFailures();
+
+	long getFilesFingerprinted();
+
+	long getFilesHashed();
+
+	/**
+	 * @return the number of bytes read to fingerprint and to hash files
+	 */
+	long getBytesRead();
+
+	long getReadFailures();
+
+	/**
+	 * @return the number of files waiting to be fingerprinted or hashed
+	 */
+	long getReadQueueDepth();
+
+	/**
+	 * @return the number of bytes that remain to be read from queued files
+	 */
+	long getReadQueueBytes();
+
+	/**
+	 * @return the number of rows waiting to be written to the store
+	 */
+	long getStoreQueueDepth();
+
+	long getRowsWritten();
+
+	double getBytesReadPerSecond();
+
+	double getFilesWalkedPerSecond();
+
+	/**
+	 * @return the number of seconds until the queued files are read at the current rate, or -1 if
+	 * nothing has been read yet
+	 */
+	long getEstimatedSecondsRemaining();
+
+	double getHashLatencyP50Millis();
+
+	double getHashLatencyP99Millis();
+
+	double getStoreWriteLatencyP99Millis();
+
+	double getStoreLockWaitP99Millis();
+
+	long getElapsedNanos();
+
+}
@@ -0,0 +1,620 @@
+package com.tagadvance.filededuplicator;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.hash.HashCode;
+import com.google.common.io.CountingOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * An immutable file of {@link PathMeta} records sorted by path, followed by a secondary index of
+ * (content hash, path) entries sorted by content hash. Both sections are split into blocks; the
+ * first key and offset of every block is kept in memory so that a lookup reads a single block.
+ * <p>
+ * Layout: data blocks, hash blocks, path block index, hash block index, footer.
+ * <p>
+ * Records are compact: a path only stores the bytes that differ from the previous path in its
+ * block, numbers are variable-length and digests are raw bytes tagged with a one byte
+ * {@link HashAlgorithm#code() algorithm code}.
+ */
+final class Segment implements Closeable {
+
+	/**
+	 * The suffix of a segment that is still being written.
+	 */
+	static final String TEMPORARY_SUFFIX = ".tmp";
+
+	private static final int MAGIC = 0x46445332;
+	private static final int FOOTER_LENGTH = 4 * Long.BYTES + Integer.BYTES;
+	private static final int BLOCK_ENTRIES = 64;
+
+	/**
+	 * The hash entries of a large segment, e.g. a merged one, are sorted through run files once
+	 * they use this many bytes.
+	 */
+	private static final long HASH_ENTRY_MEMORY_BUDGET = 16 * 1024 * 1024;
+
+	private static final int HAS_FILE_KEY = 1;
+	private static final int HAS_PARTIAL_HASH = 1 << 1;
+	private static final int HAS_HASH = 1 << 2;
+
+	private static final KeyCodec<String> PATH_CODEC = new KeyCodec<>() {
+
+		@Override
+		public void write(final DataOutput out, final String key) throws IOException {
+			writeBytes(out, key.getBytes(StandardCharsets.UTF_8));
+		}
+
+		@Override
+		public String read(final DataInput in) throws IOException {
+			return new String(readBytes(in), StandardCharsets.UTF_8);
+		}
+
+	};
+
+	private static final KeyCodec<ContentHash> CONTENT_HASH_CODEC = new KeyCodec<>() {
+
+		@Override
+		public void write(final DataOutput out, final ContentHash key) throws IOException {
+			out.writeByte(HashAlgorithm.valueOf(key.algorithm()).code());
+			writeBytes(out, key.hash().asBytes());
+		}
+
+		@Override
+		public ContentHash read(final DataInput in) throws IOException {
+			final var algorithm = HashAlgorithm.fromCode(in.readByte()).algorithm();
+
+			return new ContentHash(algorithm, HashCode.fromBytes(readBytes(in)));
+		}
+
+	};
+
+	private final long sequence;
+	private final Path file;
+	private final FileChannel channel;
+	private final BlockIndex<String> pathIndex;
+	private final BlockIndex<ContentHash> hashIndex;
+	private final long recordCount;
+
+	private Segment(final long sequence, final Path file, final FileChannel channel,
+		final BlockIndex<String> pathIndex, final BlockIndex<ContentHash> hashIndex,
+		final long recordCount) {
+		this.sequence = sequence;
+		this.file = file;
+		this.channel = channel;
+		this.pathIndex = pathIndex;
+		this.hashIndex = hashIndex;
+		this.recordCount = recordCount;
+	}
+
+	/**
+	 * @param sequence segments with a higher sequence supersede segments with a lower one
+	 * @param file     the segment file
+	 * @return the opened segment
+	 * @throws IOException if the segment could not be read
+	 */
+	static Segment open(final long sequence, final Path file) throws IOException {
+		final var channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			final var size = channel.size();
+			final var footer = readRange(channel, size - FOOTER_LENGTH, size);
+			final var hashStart = footer.readLong();
+			final var pathIndexStart = footer.readLong();
+			final var hashIndexStart = footer.readLong();
+			final var recordCount = footer.readLong();
+			if (footer.readInt() != MAGIC) {
+				throw new IOException(String.format("%s is not a supported segment", file));
+			}
+
+			final var pathIndex = BlockIndex.read(
+				readRange(channel, pathIndexStart, hashIndexStart), hashStart, PATH_CODEC);
+			final var hashIndex = BlockIndex.read(
+				readRange(channel, hashIndexStart, size - FOOTER_LENGTH), pathIndexStart,
+				CONTENT_HASH_CODEC);
+
+			return new Segment(sequence, file, channel, pathIndex, hashIndex, recordCount);
+		} catch (final IOException | RuntimeException e) {
+			channel.close();
+
+			throw e;
+		}
+	}
+
+	/**
+	 * The segment is written to a temporary file, forced to disk and then atomically renamed, so
+	 * that a crash never leaves a partial segment under its final name. Once this returns the
+	 * segment is durable and whatever it holds may be dropped from elsewhere.
+	 *
+	 * @param file  the segment file to create
+	 * @param metas metas sorted by path, without duplicate paths
+	 * @throws IOException if the segment could not be written
+	 */
+	static void write(final Path file, final Iterator<PathMeta> metas) throws IOException {
+		final var temporary = file.resolveSibling(file.getFileName() + TEMPORARY_SUFFIX);
+		try {
+			writeTo(temporary, metas);
+			Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+			syncDirectory(file.toAbsolutePath().getParent());
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+	}
+
+	private static void writeTo(final Path file, final Iterator<PathMeta> metas)
+		throws IOException {
+		try (final var hashEntries = new DuplicateGrouper(HASH_ENTRY_MEMORY_BUDGET);
+			final var fileOut = new FileOutputStream(file.toFile());
+			final var counter = new CountingOutputStream(new BufferedOutputStream(fileOut));
+			final var out = new DataOutputStream(counter)) {
+			final var pathIndex = new BlockIndex.Builder<String>();
+			final var writer = new RecordWriter(out);
+			long recordCount = 0;
+			while (metas.hasNext()) {
+				final var meta = metas.next();
+				final var key = meta.path().toString();
+				if (pathIndex.add(key, counter.getCount())) {
+					writer.startBlock();
+				}
+				writer.write(meta);
+				if (meta.isHashed()) {
+					hashEntries.add(meta);
+				}
+				recordCount++;
+			}
+
+			final var hashStart = counter.getCount();
+			final var hashIndex = new BlockIndex.Builder<ContentHash>();
+			try {
+				hashEntries.forEach(meta -> {
+					try {
+						hashIndex.add(meta.contentHash(), counter.getCount());
+						CONTENT_HASH_CODEC.write(out, meta.contentHash());
+						PATH_CODEC.write(out, meta.path().toString());
+					} catch (final IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+			} catch (final UncheckedIOException e) {
+				throw e.getCause();
+			}
+
+			final var pathIndexStart = counter.getCount();
+			pathIndex.write(out, PATH_CODEC);
+			final var hashIndexStart = counter.getCount();
+			hashIndex.write(out, CONTENT_HASH_CODEC);
+
+			out.writeLong(hashStart);
+			out.writeLong(pathIndexStart);
+			out.writeLong(hashIndexStart);
+			out.writeLong(recordCount);
+			out.writeInt(MAGIC);
+			out.flush();
+			fileOut.getFD().sync();
+		}
+	}
+
+	/**
+	 * Forces the directory entry of a renamed file to disk.
+	 */
+	private static void syncDirectory(final Path directory) throws IOException {
+		try (final var channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			channel.force(true);
+		}
+	}
+
+	long sequence() {
+		return sequence;
+	}
+
+	Path file() {
+		return file;
+	}
+
+	long recordCount() {
+		return recordCount;
+	}
+
+	/**
+	 * @param path an absolute path
+	 * @return the meta or tombstone stored for {@code path}
+	 */
+	Optional<PathMeta> get(final String path) {
+		final var block = pathIndex.floor(path);
+		if (block < 0) {
+			return Optional.empty();
+		}
+
+		try {
+			final var reader = new RecordReader(pathIndex.readBlock(channel, block));
+			for (var i = 0; i < pathIndex.entries(block); i++) {
+				final var meta = reader.read();
+				final var comparison = meta.path().toString().compareTo(path);
+				if (comparison == 0) {
+					return Optional.of(meta);
+				} else if (comparison > 0) {
+					break;
+				}
+			}
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		return Optional.empty();
+	}
+
+	/**
+	 * The returned paths may have been superseded by a newer segment.
+	 *
+	 * @param contentHash the algorithm and the digest of the contents
+	 * @return the path of every meta in this segment with the given content hash
+	 */
+	List<String> pathsWithHash(final ContentHash contentHash) {
+		final var paths = new ArrayList<String>();
+		// equal keys may straddle blocks, so start at the last block that begins below the key
+		var block = Math.max(0, hashIndex.lower(contentHash));
+
+		try {
+			for (; block < hashIndex.size(); block++) {
+				final var in = hashIndex.readBlock(channel, block);
+				for (var i = 0; i < hashIndex.entries(block); i++) {
+					final var key = CONTENT_HASH_CODEC.read(in);
+					final var path = PATH_CODEC.read(in);
+					final var comparison = key.compareTo(contentHash);
+					if (comparison == 0) {
+						paths.add(path);
+					} else if (comparison > 0) {
+						return paths;
+					}
+				}
+			}
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		return paths;
+	}
+
+	/**
+	 * @param fromInclusive the lowest path, or {@code null} to start at the first path
+	 * @param toExclusive   the path to stop at, or {@code null} to continue to the last path
+	 * @return metas and tombstones in path order
+	 */
+	Iterator<PathMeta> iterator(final String fromInclusive, final String toExclusive) {
+		final var firstBlock = fromInclusive == null ? 0 : Math.max(0,
+			pathIndex.floor(fromInclusive));
+
+		return new AbstractIterator<>() {
+
+			private int block = firstBlock;
+			private int entry;
+			private RecordReader reader;
+
+			@Override
+			protected PathMeta computeNext() {
+				try {
+					while (true) {
+						if (reader == null || entry == pathIndex.entries(block)) {
+							if (reader != null) {
+								block++;
+							}
+							if (block >= pathIndex.size()) {
+								return endOfData();
+							}
+							reader = new RecordReader(pathIndex.readBlock(channel, block));
+							entry = 0;
+						}
+
+						final var meta = reader.read();
+						entry++;
+						final var key = meta.path().toString();
+						if (fromInclusive != null && key.compareTo(fromInclusive) < 0) {
+							continue;
+						}
+						if (toExclusive != null && key.compareTo(toExclusive) >= 0) {
+							return endOfData();
+						}
+
+						return meta;
+					}
+				} catch (final IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+
+		};
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private static DataInputStream readRange(final FileChannel channel, final long start,
+		final long end) throws IOException {
+		final var buffer = ByteBuffer.allocate(Math.toIntExact(end - start));
+		var position = start;
+		while (buffer.hasRemaining()) {
+			final var read = channel.read(buffer, position);
+			if (read == -1) {
+				throw new EOFException("Unexpected end of segment");
+			}
+			position += read;
+		}
+
+		return new DataInputStream(new ByteArrayInputStream(buffer.array()));
+	}
+
+	private static void writeVarLong(final DataOutput out, final long value) throws IOException {
+		var remaining = value;
+		while ((remaining & ~0x7FL) != 0) {
+			out.writeByte((int) ((remaining & 0x7F) | 0x80));
+			remaining >>>= 7;
+		}
+		out.writeByte((int) remaining);
+	}
+
+	private static long readVarLong(final DataInput in) throws IOException {
+		long value = 0;
+		for (var shift = 0; shift < Long.SIZE; shift += 7) {
+			final var b = in.readByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+
+		throw new IOException("Malformed variable-length number");
+	}
+
+	/**
+	 * Zigzag encoding keeps small negative numbers, e.g. the size of a tombstone, short.
+	 */
+	private static void writeSignedVarLong(final DataOutput out, final long value)
+		throws IOException {
+		writeVarLong(out, (value << 1) ^ (value >> 63));
+	}
+
+	private static long readSignedVarLong(final DataInput in) throws IOException {
+		final var value = readVarLong(in);
+
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static void writeBytes(final DataOutput out, final byte[] bytes) throws IOException {
+		writeVarLong(out, bytes.length);
+		out.write(bytes);
+	}
+
+	private static byte[] readBytes(final DataInput in) throws IOException {
+		final var bytes = new byte[Math.toIntExact(readVarLong(in))];
+		in.readFully(bytes);
+
+		return bytes;
+	}
+
+	private interface KeyCodec<K> {
+
+		void write(DataOutput out, K key) throws IOException;
+
+		K read(DataInput in) throws IOException;
+
+	}
+
+	/**
+	 * Writes metas in the compact record format.
+	 */
+	static final class RecordWriter {
+
+		private final DataOutput out;
+		private byte[] previousPath = new byte[0];
+
+		RecordWriter(final DataOutput out) {
+			this.out = out;
+		}
+
+		/**
+		 * Blocks are decoded on their own, so the first path of a block is stored in full.
+		 */
+		void startBlock() {
+			previousPath = new byte[0];
+		}
+
+		void write(final PathMeta meta) throws IOException {
+			final var path = meta.path().toString().getBytes(StandardCharsets.UTF_8);
+			final var mismatch = Arrays.mismatch(previousPath, path);
+			final var shared = mismatch == -1 ? path.length : mismatch;
+			writeVarLong(out, shared);
+			writeVarLong(out, path.length - shared);
+			out.write(path, shared, path.length - shared);
+			previousPath = path;
+
+			writeSignedVarLong(out, meta.size());
+			writeSignedVarLong(out, meta.lastModified());
+
+			final var fileKey = meta.fileKey();
+			final var partialHash = meta.partialHash();
+			final var hashed = meta.isHashed();
+			out.writeByte((fileKey != null ? HAS_FILE_KEY : 0)
+				| (partialHash != null ? HAS_PARTIAL_HASH : 0) | (hashed ? HAS_HASH : 0));
+			if (fileKey != null) {
+				writeBytes(out, fileKey.getBytes(StandardCharsets.UTF_8));
+			}
+			if (partialHash != null) {
+				writeBytes(out, partialHash.asBytes());
+			}
+			if (hashed) {
+				CONTENT_HASH_CODEC.write(out, meta.contentHash());
+			}
+		}
+
+	}
+
+	/**
+	 * Reads metas written by a {@link RecordWriter}, in the same order.
+	 */
+	static final class RecordReader {
+
+		private final DataInput in;
+		private byte[] previousPath = new byte[0];
+
+		RecordReader(final DataInput in) {
+			this.in = in;
+		}
+
+		PathMeta read() throws IOException {
+			final var shared = Math.toIntExact(readVarLong(in));
+			final var suffix = Math.toIntExact(readVarLong(in));
+			final var path = Arrays.copyOf(previousPath, shared + suffix);
+			in.readFully(path, shared, suffix);
+			previousPath = path;
+
+			final var size = readSignedVarLong(in);
+			final var lastModified = readSignedVarLong(in);
+			final var flags = in.readByte();
+			final var fileKey = (flags & HAS_FILE_KEY) != 0 ? new String(readBytes(in),
+				StandardCharsets.UTF_8) : null;
+			final var partialHash = (flags & HAS_PARTIAL_HASH) != 0 ? HashCode.fromBytes(
+				readBytes(in)) : null;
+			final var contentHash = (flags & HAS_HASH) != 0 ? CONTENT_HASH_CODEC.read(in) : null;
+
+			return new PathMeta(Paths.get(new String(path, StandardCharsets.UTF_8)), size,
+				lastModified, fileKey, partialHash,
+				contentHash != null ? contentHash.algorithm() : null,
+				contentHash != null ? contentHash.hash() : null);
+		}
+
+	}
+
+	/**
+	 * The first key, offset and number of entries of every block of a sorted section.
+	 */
+	private record BlockIndex<K extends Comparable<K>>(List<K> keys, long[] offsets, int[] counts,
+													   long end) {
+
+		static <K extends Comparable<K>> BlockIndex<K> read(final DataInput in, final long end,
+			final KeyCodec<K> codec) throws IOException {
+			final var size = in.readInt();
+			final var keys = new ArrayList<K>(size);
+			final var offsets = new long[size];
+			final var counts = new int[size];
+			for (var i = 0; i < size; i++) {
+				keys.add(codec.read(in));
+				offsets[i] = in.readLong();
+				counts[i] = in.readInt();
+			}
+
+			return new BlockIndex<>(keys, offsets, counts, end);
+		}
+
+		int size() {
+			return keys.size();
+		}
+
+		int entries(final int block) {
+			return counts[block];
+		}
+
+		/**
+		 * @return the last block whose first key is less than or equal to {@code key}, or -1
+		 */
+		int floor(final K key) {
+			final var index = Collections.binarySearch(keys, key, Comparator.naturalOrder());
+
+			return index >= 0 ? lastEqual(index) : -index - 2;
+		}
+
+		/**
+		 * @return the last block whose first key is less than {@code key}, or -1
+		 */
+		int lower(final K key) {
+			final var index = Collections.binarySearch(keys, key, Comparator.naturalOrder());
+			if (index < 0) {
+				return -index - 2;
+			}
+
+			var first = index;
+			while (first > 0 && keys.get(first - 1).equals(key)) {
+				first--;
+			}
+
+			return first - 1;
+		}
+
+		private int lastEqual(final int index) {
+			var last = index;
+			while (last + 1 < keys.size() && keys.get(last + 1).equals(keys.get(index))) {
+				last++;
+			}
+
+			return last;
+		}
+
+		DataInputStream readBlock(final FileChannel channel, final int block)
+			throws IOException {
+			final var blockEnd = block + 1 < offsets.length ? offsets[block + 1] : end;
+
+			return readRange(channel, offsets[block], blockEnd);
+		}
+
+		static final class Builder<K> {
+
+			private final List<K> keys = new ArrayList<>();
+			private final List<Long> offsets = new ArrayList<>();
+			private final List<Integer> counts = new ArrayList<>();
+
+			/**
+			 * @return {@code true} if the entry starts a new block
+			 */
+			boolean add(final K key, final long offset) {
+				final var last = counts.size() - 1;
+				if (last >= 0 && counts.get(last) < BLOCK_ENTRIES) {
+					counts.set(last, counts.get(last) + 1);
+
+					return false;
+				}
+
+				keys.add(key);
+				offsets.add(offset);
+				counts.add(1);
+
+				return true;
+			}
+
+			void write(final DataOutput out, final KeyCodec<K> codec) throws IOException {
+				out.writeInt(keys.size());
+				for (var i = 0; i < keys.size(); i++) {
+					codec.write(out, keys.get(i));
+					out.writeLong(offsets.get(i));
+					out.writeInt(counts.get(i));
+				}
+			}
+
+		}
+
+	}
+
+}
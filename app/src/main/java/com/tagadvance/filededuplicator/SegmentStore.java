@@ -0,0 +1,498 @@
+package com.tagadvance.filededuplicator;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An embedded log-structured store. Inserts are appended to a CSV write-ahead log and kept in a
+ * sorted in-memory table. Once the table is full it is written to an immutable {@link Segment}
+ * and the log is truncated. When there are too many segments they are merged into one.
+ * <p>
+ * Lookups by path read a single block from each segment, newest first. Lookups by hash use the
+ * secondary index of every segment. Inserting a meta for a path that is already stored supersedes
+ * it without rewriting any file.
+ */
+public final class SegmentStore implements MetaStore {
+
+	private static final Logger logger = LoggerFactory.getLogger(SegmentStore.class);
+
+	private static final String WRITE_AHEAD_LOG = "wal.csv";
+	/**
+	 * A merged segment supersedes every segment with a lower sequence.
+	 */
+	private static final Pattern SEGMENT_PATTERN = Pattern.compile(
+		"segment-(\\d+)(-merged)?\\.dat");
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private final AtomicBoolean compacting = new AtomicBoolean();
+	private final Path directory;
+	private final int memtableSize;
+	private final int maxSegments;
+	private final ScanMetrics metrics;
+	private final AtomicLong sequence;
+	private ConcurrentSkipListMap<String, PathMeta> memtable = new ConcurrentSkipListMap<>();
+	private CsvDao writeAheadLog;
+	/**
+	 * Newest first.
+	 */
+	private List<Segment> segments;
+
+	/**
+	 * @param directory    the directory holding the write-ahead log and the segments
+	 * @param memtableSize the number of metas kept in memory before they are written to a segment
+	 * @param maxSegments  the number of segments from which all segments are merged into one
+	 * @throws IOException if the store could not be opened
+	 */
+	public SegmentStore(final Path directory, final int memtableSize, final int maxSegments)
+		throws IOException {
+		this(directory, memtableSize, maxSegments, new ScanMetrics());
+	}
+
+	/**
+	 * @param directory    the directory holding the write-ahead log and the segments
+	 * @param memtableSize the number of metas kept in memory before they are written to a segment
+	 * @param maxSegments  the number of segments from which all segments are merged into one
+	 * @param metrics      records writes to the write-ahead log
+	 * @throws IOException if the store could not be opened
+	 */
+	public SegmentStore(final Path directory, final int memtableSize, final int maxSegments,
+		final ScanMetrics metrics) throws IOException {
+		this.directory = requireNonNull(directory, "directory must not be null");
+		this.metrics = requireNonNull(metrics, "metrics must not be null");
+		this.memtableSize = memtableSize;
+		this.maxSegments = maxSegments;
+
+		Files.createDirectories(directory);
+		this.segments = openSegments(directory);
+		this.sequence = new AtomicLong(segments.isEmpty() ? 0 : segments.get(0).sequence());
+
+		final var writeAheadLogFile = writeAheadLogFile();
+		this.writeAheadLog = new CsvDao(writeAheadLogFile, metrics);
+		writeAheadLog.selectAll(meta -> memtable.put(toKey(meta.path()), meta));
+		if (!memtable.isEmpty()) {
+			logger.info("Recovered {} rows from {}", memtable.size(), writeAheadLogFile);
+		}
+	}
+
+	private static List<Segment> openSegments(final Path directory) throws IOException {
+		final var segments = new ArrayList<Segment>();
+		var newestMerge = Long.MIN_VALUE;
+		try (final var files = Files.list(directory)) {
+			for (final var file : files.toList()) {
+				if (file.getFileName().toString().endsWith(Segment.TEMPORARY_SUFFIX)) {
+					// a segment that was still being written when the store was last closed
+					logger.info("Deleting incomplete segment {}", file);
+					Files.delete(file);
+					continue;
+				}
+
+				final var matcher = SEGMENT_PATTERN.matcher(file.getFileName().toString());
+				if (matcher.matches()) {
+					final var sequence = Long.parseLong(matcher.group(1));
+					if (matcher.group(2) != null) {
+						newestMerge = Math.max(newestMerge, sequence);
+					}
+					segments.add(Segment.open(sequence, file));
+				}
+			}
+		}
+		segments.sort(Comparator.comparingLong(Segment::sequence).reversed());
+
+		// left behind by a compaction that was interrupted before it deleted the merged segments
+		while (!segments.isEmpty() && segments.get(segments.size() - 1).sequence() < newestMerge) {
+			final var superseded = segments.remove(segments.size() - 1);
+			logger.info("Deleting {}, which was merged into segment {}", superseded.file(),
+				newestMerge);
+			superseded.close();
+			Files.delete(superseded.file());
+		}
+
+		return segments;
+	}
+
+	/**
+	 * @return the newest meta of every path that has not been tombstoned, ordered by path
+	 */
+	@Override
+	public List<PathMeta> selectAll() {
+		return scan(null, null);
+	}
+
+	/**
+	 * Streams the merge of the memtable and the segments, so only one meta per source is held in
+	 * memory at a time. The read lock is held until every meta has been passed on.
+	 */
+	@Override
+	public void selectAll(final Consumer<PathMeta> action) {
+		requireNonNull(action, "action must not be null");
+
+		scan(null, null, action);
+	}
+
+	/**
+	 * @return the number of records in the segments and the memtable, some of which may supersede
+	 * others
+	 */
+	@Override
+	public long estimateSize() {
+		lock.readLock().lock();
+		try {
+			return memtable.size() + segments.stream().mapToLong(Segment::recordCount).sum();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Optional<PathMeta> selectByPath(final Path path) {
+		final var key = toKey(path);
+
+		lock.readLock().lock();
+		try {
+			var meta = Optional.ofNullable(memtable.get(key));
+			for (var i = 0; meta.isEmpty() && i < segments.size(); i++) {
+				meta = segments.get(i).get(key);
+			}
+
+			return meta.filter(m -> !m.isTombstone());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<PathMeta> selectByHash(final ContentHash contentHash) {
+		requireNonNull(contentHash, "contentHash must not be null");
+
+		final var paths = new LinkedHashSet<String>();
+
+		lock.readLock().lock();
+		try {
+			memtable.values()
+				.stream()
+				.filter(PathMeta::isHashed)
+				.filter(meta -> meta.contentHash().equals(contentHash))
+				.map(meta -> toKey(meta.path()))
+				.forEach(paths::add);
+			segments.forEach(segment -> paths.addAll(segment.pathsWithHash(contentHash)));
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		// an index entry is stale if the path has since been rehashed or tombstoned
+		return paths.stream()
+			.map(Path::of)
+			.map(this::selectByPath)
+			.flatMap(Optional::stream)
+			.filter(meta -> meta.isHashed() && meta.contentHash().equals(contentHash))
+			.collect(Collectors.toList());
+	}
+
+	@Override
+	public List<PathMeta> selectUnder(final Path directory) {
+		var prefix = toKey(directory);
+		if (!prefix.endsWith(File.separator)) {
+			prefix += File.separator;
+		}
+		final var last = prefix.length() - 1;
+		final var upperBound = prefix.substring(0, last) + (char) (prefix.charAt(last) + 1);
+
+		return scan(prefix, upperBound);
+	}
+
+	private List<PathMeta> scan(final String fromInclusive, final String toExclusive) {
+		final var metas = new ArrayList<PathMeta>();
+		scan(fromInclusive, toExclusive, metas::add);
+
+		return metas;
+	}
+
+	private void scan(final String fromInclusive, final String toExclusive,
+		final Consumer<PathMeta> action) {
+		lock.readLock().lock();
+		try {
+			merge(fromInclusive, toExclusive, segments, true).forEachRemaining(meta -> {
+				if (!meta.isTombstone()) {
+					action.accept(meta);
+				}
+			});
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Merges the memtable and the given segments in path order. Where more than one source holds
+	 * a path, the newest source wins.
+	 */
+	private Iterator<PathMeta> merge(final String fromInclusive, final String toExclusive,
+		final List<Segment> sources, final boolean includeMemtable) {
+		final var iterators = new ArrayList<PeekingIterator<PathMeta>>();
+		if (includeMemtable) {
+			final var table = fromInclusive == null && toExclusive == null ? memtable
+				: memtable.subMap(fromInclusive == null ? "" : fromInclusive, true,
+					toExclusive == null ? String.valueOf(Character.MAX_VALUE) : toExclusive, false);
+			iterators.add(Iterators.peekingIterator(table.values().iterator()));
+		}
+		sources.forEach(segment -> iterators.add(
+			Iterators.peekingIterator(segment.iterator(fromInclusive, toExclusive))));
+
+		final var queue = new PriorityQueue<Integer>(Math.max(1, iterators.size()),
+			Comparator.<Integer, String>comparing(i -> toKey(iterators.get(i).peek().path()))
+				.thenComparing(Comparator.naturalOrder()));
+		for (var i = 0; i < iterators.size(); i++) {
+			if (iterators.get(i).hasNext()) {
+				queue.add(i);
+			}
+		}
+
+		return new AbstractIterator<>() {
+
+			@Override
+			protected PathMeta computeNext() {
+				if (queue.isEmpty()) {
+					return endOfData();
+				}
+
+				// lower indexes are newer, so the first source polled for a key wins
+				final var newest = queue.poll();
+				final var meta = iterators.get(newest).next();
+				final var key = toKey(meta.path());
+				advance(newest);
+				while (!queue.isEmpty() && toKey(iterators.get(queue.peek()).peek().path()).equals(
+					key)) {
+					final var older = queue.poll();
+					iterators.get(older).next();
+					advance(older);
+				}
+
+				return meta;
+			}
+
+			private void advance(final int index) {
+				if (iterators.get(index).hasNext()) {
+					queue.add(index);
+				}
+			}
+
+		};
+	}
+
+	@Override
+	public void insert(final PathMeta pathMeta) {
+		lock.readLock().lock();
+		try {
+			writeAheadLog.insert(pathMeta);
+			memtable.put(toKey(pathMeta.path()), pathMeta);
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		if (memtable.size() >= memtableSize) {
+			writeMemtable(false);
+		}
+	}
+
+	/**
+	 * Flushes the write-ahead log. The memtable is only written to a segment once it is full or
+	 * the store is closed.
+	 */
+	@Override
+	public void insertAll(final Collection<PathMeta> metas) {
+		lock.readLock().lock();
+		try {
+			writeAheadLog.insertAll(metas);
+			metas.forEach(pathMeta -> memtable.put(toKey(pathMeta.path()), pathMeta));
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		if (memtable.size() >= memtableSize) {
+			writeMemtable(false);
+		}
+	}
+
+	@Override
+	public void flush() {
+		lock.readLock().lock();
+		try {
+			writeAheadLog.flush();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void sync() {
+		lock.readLock().lock();
+		try {
+			writeAheadLog.sync();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Writes the memtable to a new segment and truncates the write-ahead log.
+	 *
+	 * @param closing {@code true} to write the memtable even if it is not full and to leave the
+	 *                write-ahead log closed
+	 */
+	private void writeMemtable(final boolean closing) {
+		lock.writeLock().lock();
+		try {
+			if (memtable.isEmpty()) {
+				if (closing) {
+					writeAheadLog.close();
+					Files.deleteIfExists(writeAheadLogFile().toPath());
+				}
+
+				return;
+			} else if (!closing && memtable.size() < memtableSize) {
+				return;
+			}
+
+			writeAheadLog.flush();
+			final var nextSequence = sequence.incrementAndGet();
+			final var file = segmentFile(nextSequence);
+			Segment.write(file, memtable.values().iterator());
+			final var newSegments = new ArrayList<Segment>();
+			newSegments.add(Segment.open(nextSequence, file));
+			newSegments.addAll(segments);
+			segments = newSegments;
+
+			logger.debug("Wrote {} rows to {}", memtable.size(), file);
+
+			// the segment is durable, so the rows it holds can be dropped from the write-ahead log
+			memtable = new ConcurrentSkipListMap<>();
+			writeAheadLog.close();
+			Files.delete(writeAheadLogFile().toPath());
+			if (!closing) {
+				writeAheadLog = new CsvDao(writeAheadLogFile(), metrics);
+			}
+		} catch (final IOException e) {
+			logger.error("Failed to write memtable!", e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		if (!closing && segments.size() > maxSegments) {
+			compact();
+		}
+	}
+
+	/**
+	 * Merges every segment into one. Inserts continue while the segments are merged; only the
+	 * swap of the merged segment blocks them. The merged segment is committed once it is durable
+	 * under its name: should the merged segments not be deleted, e.g. because of a crash, they are
+	 * deleted when the store is next opened.
+	 */
+	@Override
+	public void compact() {
+		if (!compacting.compareAndSet(false, true)) {
+			return;
+		}
+
+		try {
+			final List<Segment> merged;
+			final long mergedSequence;
+			lock.readLock().lock();
+			try {
+				merged = List.copyOf(segments);
+				// segments written while merging get a higher sequence and supersede the merge
+				mergedSequence = sequence.incrementAndGet();
+			} finally {
+				lock.readLock().unlock();
+			}
+			if (merged.size() < 2) {
+				return;
+			}
+
+			// tombstones can be dropped because the merged segment supersedes every older segment
+			final var file = mergedSegmentFile(mergedSequence);
+			final var live = Iterators.filter(merge(null, null, merged, false),
+				meta -> !meta.isTombstone());
+			Segment.write(file, live);
+
+			lock.writeLock().lock();
+			try {
+				final var compacted = Segment.open(mergedSequence, file);
+				final var newSegments = new ArrayList<>(segments.subList(0,
+					segments.size() - merged.size()));
+				newSegments.add(compacted);
+				segments = newSegments;
+				for (final var segment : merged) {
+					segment.close();
+					Files.delete(segment.file());
+				}
+
+				logger.info("Compacted {} segments into {} with {} rows", merged.size(),
+					compacted.file(), compacted.recordCount());
+			} finally {
+				lock.writeLock().unlock();
+			}
+		} catch (final IOException e) {
+			logger.error("Compaction failed!", e);
+		} finally {
+			compacting.set(false);
+		}
+	}
+
+	@Override
+	public void close() {
+		writeMemtable(true);
+
+		lock.writeLock().lock();
+		try {
+			for (final var segment : segments) {
+				segment.close();
+			}
+		} catch (final IOException e) {
+			logger.error("Close failed!", e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private File writeAheadLogFile() {
+		return directory.resolve(WRITE_AHEAD_LOG).toFile();
+	}
+
+	private Path segmentFile(final long sequence) {
+		return directory.resolve(String.format("segment-%019d.dat", sequence));
+	}
+
+	private Path mergedSegmentFile(final long sequence) {
+		return directory.resolve(String.format("segment-%019d-merged.dat", sequence));
+	}
+
+	private static String toKey(final Path path) {
+		return path.toAbsolutePath().toString();
+	}
+
+}
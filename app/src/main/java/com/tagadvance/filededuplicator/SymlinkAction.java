@@ -0,0 +1,163 @@
+package com.tagadvance.filededuplicator;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Moves the prominent copy to {@link Configuration#deduplication()}, named after its hash, and
+ * replaces it with a symbolic link. Every duplicate is moved to {@link Configuration#trash()} and,
+ * if {@link Configuration#replaceWithSymlink()} is set, replaced with a symbolic link as well. The
+ * trashed copy is deleted unless {@link Configuration#safeDelete()} is set.
+ */
+public final class SymlinkAction implements DedupAction {
+
+	private static final Logger logger = LoggerFactory.getLogger(SymlinkAction.class);
+
+	private final Configuration configuration;
+	private final ActionJournal journal;
+
+	/**
+	 * @param configuration the configuration
+	 * @param journal       records every move, link and deletion before it is performed
+	 */
+	public SymlinkAction(final Configuration configuration, final ActionJournal journal) {
+		this.configuration = requireNonNull(configuration, "configuration must not be null");
+		this.journal = requireNonNull(journal, "journal must not be null");
+	}
+
+	@Override
+	public void apply(final PathMeta prominent, final List<PathMeta> duplicates) {
+		final var prominentPath = prominent.path();
+		final var deduplication = configuration.deduplication()
+			.resolve(prominent.hash().toString());
+
+		if (configuration.dryRun()) {
+			logger.info("The prominent {} will be moved to {} and a symbol link created",
+				prominentPath, deduplication);
+		} else {
+			if (Files.exists(prominentPath) && !Files.isSymbolicLink(prominentPath)
+				&& !Files.exists(deduplication)
+				&& move(prominentPath, deduplication, deduplication)) {
+				if (!createSymbolicLink(prominentPath, deduplication)) {
+					// rollback
+					if (!move(deduplication, prominentPath, null)) {
+						logger.error("Rollback failed!");
+						System.exit(1);
+					}
+				}
+			} else {
+				logger.debug("{} already moved to {}", prominentPath, deduplication);
+			}
+		}
+
+		duplicates.forEach(meta -> {
+			final var filePath = meta.path();
+			final var trashName = filePath.toAbsolutePath()
+				.toString()
+				.replaceAll(File.separator, "_");
+			final var trash = configuration.trash().resolve(trashName);
+
+			if (!Files.exists(filePath) || Files.isSymbolicLink(filePath)) {
+				logger.debug("{} already pointed at {}", filePath, deduplication);
+
+				return;
+			}
+
+			if (configuration.dryRun()) {
+				logDryRun(filePath, trash, deduplication);
+
+				return;
+			}
+
+			// soft-delete
+			final var link = configuration.replaceWithSymlink() ? deduplication : null;
+			if (!move(filePath, trash, link)) {
+				return;
+			}
+
+			if (configuration.replaceWithSymlink()) {
+				if (createSymbolicLink(filePath, deduplication)) {
+					if (!configuration.safeDelete()) {
+						rm(trash, deduplication);
+					}
+				} else {
+					// rollback soft-delete
+					move(trash, filePath, null);
+				}
+			}
+		});
+	}
+
+	private void logDryRun(final Path path, final Path trash, final Path deduplication) {
+		final var sb = new StringBuilder();
+
+		if (configuration.safeDelete()) {
+			sb.append(String.format("%s will be moved to %s", path, trash));
+		} else {
+			sb.append(String.format("%s will be permanently deleted", path));
+		}
+		if (configuration.replaceWithSymlink()) {
+			sb.append(String.format(" and symlinked to %s", deduplication));
+		}
+
+		logger.info("{}", sb);
+	}
+
+	/**
+	 * @param link where the symbolic link that is to replace {@code source} points, if any
+	 */
+	private boolean move(final Path source, final Path target, final Path link) {
+		final var id = journal.beginMove(source, target, link);
+		try {
+			Files.move(source, target);
+			journal.end(id, true);
+			logger.debug("Moved {} to {}", source, target);
+
+			return true;
+		} catch (final IOException e) {
+			journal.end(id, false);
+			logger.error(String.format("Failed to move %s to %s", source, target), e);
+		}
+
+		return false;
+	}
+
+	/**
+	 * @param copy a file with the same contents, from which {@code path} can be restored
+	 */
+	private void rm(final Path path, final Path copy) {
+		final var id = journal.begin(ActionJournal.Operation.DELETE, path, copy);
+		try {
+			Files.deleteIfExists(path);
+			journal.end(id, true);
+			logger.debug("Deleted {}", path);
+		} catch (final IOException e) {
+			journal.end(id, false);
+			logger.error(String.format("Failed to delete %s", path), e);
+		}
+	}
+
+	private boolean createSymbolicLink(final Path link, final Path target) {
+		final var id = journal.begin(ActionJournal.Operation.SYMLINK, link, target);
+		try {
+			Files.createSymbolicLink(link, target);
+			journal.end(id, true);
+			logger.debug("Created symbolic link {} to {}", link, target);
+
+			return true;
+		} catch (final IOException e) {
+			journal.end(id, false);
+			logger.error(String.format("Failed to create symbolic link %s to %s", link, target), e);
+		}
+
+		return false;
+	}
+
+}
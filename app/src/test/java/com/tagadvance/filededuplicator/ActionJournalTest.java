@@ -0,0 +1,114 @@
+package com.tagadvance.filededuplicator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Unit tests for {@link ActionJournal}.
+ */
+class ActionJournalTest {
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	void testUndo() throws IOException {
+		final var file = tempDir.resolve("journal");
+		final var original = Files.writeString(tempDir.resolve("original"), "abc");
+		final var duplicate = Files.writeString(tempDir.resolve("duplicate"), "abc");
+		final var deduplication = tempDir.resolve("deduplication");
+		final var trash = tempDir.resolve("trash");
+
+		try (final var journal = new ActionJournal(file)) {
+			move(journal, original, deduplication);
+			symlink(journal, original, deduplication);
+			move(journal, duplicate, trash);
+			symlink(journal, duplicate, deduplication);
+			final var id = journal.begin(ActionJournal.Operation.DELETE, trash, deduplication);
+			Files.delete(trash);
+			journal.end(id, true);
+		}
+
+		assertEquals(5, ActionJournal.read(file).size());
+		assertEquals(5, ActionJournal.undo(file));
+		assertFalse(Files.isSymbolicLink(original));
+		assertFalse(Files.isSymbolicLink(duplicate));
+		assertEquals("abc", Files.readString(original));
+		assertEquals("abc", Files.readString(duplicate));
+		assertFalse(Files.exists(deduplication));
+		assertFalse(Files.exists(trash));
+	}
+
+	@Test
+	void testReplay() throws IOException {
+		final var file = tempDir.resolve("journal");
+		final var original = Files.writeString(tempDir.resolve("original"), "abc");
+		final var deduplication = tempDir.resolve("deduplication");
+
+		try (final var journal = new ActionJournal(file)) {
+			move(journal, original, deduplication);
+			// interrupted before the link was created
+			journal.begin(ActionJournal.Operation.SYMLINK, original, deduplication);
+		}
+
+		assertEquals(ActionJournal.State.STARTED, ActionJournal.read(file).get(1).state());
+		assertEquals(1, ActionJournal.replay(file));
+		assertTrue(Files.isSymbolicLink(original));
+		assertEquals("abc", Files.readString(original));
+		assertEquals(0, ActionJournal.replay(file));
+	}
+
+	@Test
+	void testReplayCompletesAMoveWithItsLink() throws IOException {
+		final var file = tempDir.resolve("journal");
+		final var original = Files.writeString(tempDir.resolve("original"), "abc");
+		final var duplicate = Files.writeString(tempDir.resolve("duplicate"), "abc");
+		final var deduplication = tempDir.resolve("deduplication");
+		final var trash = tempDir.resolve("trash");
+
+		try (final var journal = new ActionJournal(file)) {
+			// interrupted after the move, before it was marked done
+			journal.beginMove(original, deduplication, deduplication);
+			Files.move(original, deduplication);
+			// interrupted after the move was marked done, before the link was begun
+			final var id = journal.beginMove(duplicate, trash, deduplication);
+			Files.move(duplicate, trash);
+			journal.end(id, true);
+		}
+
+		assertEquals(2, ActionJournal.replay(file));
+		assertEquals(deduplication, Files.readSymbolicLink(original));
+		assertEquals(deduplication, Files.readSymbolicLink(duplicate));
+		assertEquals("abc", Files.readString(original));
+		assertEquals("abc", Files.readString(duplicate));
+		assertEquals(0, ActionJournal.replay(file));
+
+		assertEquals(2, ActionJournal.undo(file));
+		assertFalse(Files.isSymbolicLink(original));
+		assertFalse(Files.isSymbolicLink(duplicate));
+		assertFalse(Files.exists(deduplication));
+		assertFalse(Files.exists(trash));
+	}
+
+	private static void move(final ActionJournal journal, final Path source, final Path target)
+		throws IOException {
+		final var id = journal.begin(ActionJournal.Operation.MOVE, source, target);
+		Files.move(source, target);
+		journal.end(id, true);
+	}
+
+	private static void symlink(final ActionJournal journal, final Path link, final Path target)
+		throws IOException {
+		final var id = journal.begin(ActionJournal.Operation.SYMLINK, link, target);
+		Files.createSymbolicLink(link, target);
+		journal.end(id, true);
+	}
+
+}
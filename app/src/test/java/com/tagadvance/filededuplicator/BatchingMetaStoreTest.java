@@ -0,0 +1,99 @@
+package com.tagadvance.filededuplicator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Unit tests for {@link BatchingMetaStore}.
+ */
+class BatchingMetaStoreTest {
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	void testConcurrentInsertsAreVisibleAfterFlush() throws IOException, InterruptedException {
+		final var file = tempDir.resolve("store.csv").toFile();
+		final var expected = IntStream.range(0, 1000)
+			.mapToObj(i -> new PathMeta(tempDir.resolve("f" + i), i, 0, null, null, null, null))
+			.collect(Collectors.toSet());
+
+		try (final var store = new BatchingMetaStore(new CsvDao(file), 64, 1, TimeUnit.HOURS)) {
+			final var executor = Executors.newFixedThreadPool(4);
+			expected.forEach(meta -> executor.execute(() -> store.insert(meta)));
+			executor.shutdown();
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+
+			store.flush();
+
+			assertEquals(expected, Set.copyOf(store.selectAll()));
+		}
+
+		// close writes everything through, so a fresh store reads the same rows
+		try (final var store = new CsvDao(file)) {
+			assertEquals(expected, Set.copyOf(store.selectAll()));
+		}
+	}
+
+	@Test
+	void testAFailedBatchFailsFlushAndSync() {
+		final var store = new BatchingMetaStore(new FailingMetaStore(), 4, 1, TimeUnit.HOURS);
+		store.insert(new PathMeta(tempDir.resolve("lost"), 1, 0, null, null, null, null));
+
+		assertThrows(IllegalStateException.class, store::flush);
+		assertThrows(IllegalStateException.class, store::sync);
+		assertEquals(0, store.pending());
+		store.close();
+	}
+
+	@Test
+	void testAtMostOneBatchIsUnwritten() throws IOException {
+		final var file = tempDir.resolve("store.csv").toFile();
+		try (final var store = new BatchingMetaStore(new CsvDao(file), 8, 1, TimeUnit.HOURS)) {
+			for (var i = 0; i < 100; i++) {
+				store.insert(new PathMeta(tempDir.resolve("f" + i), i, 0, null, null, null, null));
+
+				assertTrue(store.pending() <= 8, "pending " + store.pending());
+			}
+		}
+	}
+
+	/**
+	 * Fails every write, like a full disk.
+	 */
+	private static final class FailingMetaStore implements MetaStore {
+
+		@Override
+		public List<PathMeta> selectAll() {
+			return List.of();
+		}
+
+		@Override
+		public void insert(final PathMeta pathMeta) {
+			throw new UncheckedIOException(new IOException("No space left on device"));
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+
+	}
+
+}
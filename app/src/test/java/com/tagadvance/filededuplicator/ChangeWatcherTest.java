@@ -0,0 +1,54 @@
+package com.tagadvance.filededuplicator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Unit tests for {@link ChangeWatcher}.
+ */
+class ChangeWatcherTest {
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	void testChangesAreDebounced() throws Exception {
+		final var existing = Files.createDirectory(tempDir.resolve("existing"));
+		final var pathFilter = new PathFilter(List.of(), List.of());
+		try (final var watcher = new ChangeWatcher(List.of(tempDir), pathFilter, 200, 3600_000,
+			TimeUnit.MILLISECONDS)) {
+			assertEquals(2, watcher.watched());
+			assertTrue(watcher.poll(0, TimeUnit.MILLISECONDS).isEmpty());
+
+			final var file = existing.resolve("file");
+			Files.writeString(file, "a");
+			Files.writeString(file, "ab");
+			final var created = Files.createDirectory(tempDir.resolve("created"));
+
+			final Set<Path> paths = new HashSet<>();
+			final Set<Path> directories = new HashSet<>();
+			final var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+			while ((!paths.contains(file) || !directories.contains(created))
+				&& System.nanoTime() < deadline) {
+				final var changes = watcher.poll(1, TimeUnit.SECONDS);
+				paths.addAll(changes.paths());
+				directories.addAll(changes.directories());
+			}
+
+			// both writes are reported once, and the new directory is watched and rescanned
+			assertEquals(Set.of(file), paths);
+			assertEquals(Set.of(created), directories);
+			assertEquals(3, watcher.watched());
+		}
+	}
+
+}
@@ -0,0 +1,59 @@
+package com.tagadvance.filededuplicator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Unit tests for {@link Checkpoint}.
+ */
+class CheckpointTest {
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	void testMarkWalkedKeepsOnlyTheFrontier() throws IOException {
+		final var checkpoint = new Checkpoint(tempDir.resolve("checkpoint"));
+		final var root = tempDir.resolve("root");
+
+		checkpoint.markWalked(root.resolve("a/b"));
+		checkpoint.markWalked(root.resolve("a/c"));
+		checkpoint.markWalked(root.resolve("d"));
+		assertTrue(checkpoint.isWalked(root.resolve("a/b/e")));
+		assertFalse(checkpoint.isWalked(root.resolve("a")));
+
+		checkpoint.markWalked(root.resolve("a"));
+
+		assertEquals(2, checkpoint.walked().size());
+		assertTrue(checkpoint.walked().containsAll(List.of(root.resolve("a"), root.resolve("d"))));
+		assertTrue(checkpoint.isWalked(root.resolve("a/c")));
+		assertFalse(checkpoint.isWalked(root));
+	}
+
+	@Test
+	void testSaveLoadAndDelete() throws IOException {
+		final var file = tempDir.resolve("checkpoint");
+		final var checkpoint = new Checkpoint(file);
+		final var walked = tempDir.resolve("with, a comma\nand a newline");
+		checkpoint.markWalked(walked);
+
+		checkpoint.save(checkpoint.walked());
+
+		final var loaded = new Checkpoint(file);
+		assertEquals(List.of(walked), loaded.walked());
+
+		loaded.delete();
+
+		assertTrue(loaded.isEmpty());
+		assertFalse(Files.exists(file));
+	}
+
+}
@@ -1,8 +1,12 @@
 package com.tagadvance.filededuplicator;
 
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import org.junit.jupiter.api.Test;
 
 class ConfigurationTest {
@@ -17,4 +21,27 @@ class ConfigurationTest {
 		}
 	}
 
+	@Test
+	void testVerifyRequiresACollisionResistantHash() {
+		assertThrows(IllegalArgumentException.class, () -> parse("verify: false\n"));
+		assertThrows(IllegalArgumentException.class,
+			() -> parse("verify: false\nhashAlgorithm: MD5\n"));
+		assertFalse(parse("verify: false\nhashAlgorithm: SHA256\n").verify());
+	}
+
+	private static Configuration parse(final String settings) {
+		final var yaml = """
+			dryRun: true
+			deduplication: /tmp/deduplication
+			safeDelete: true
+			trash: /tmp/trash
+			replaceWithSymlink: true
+			roots:
+			  - '/'
+			""" + settings;
+
+		return Configuration.parseInputStream(
+			new ByteArrayInputStream(yaml.getBytes(StandardCharsets.UTF_8)));
+	}
+
 }
@@ -0,0 +1,76 @@
+package com.tagadvance.filededuplicator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Unit tests for {@link ContentVerifier}.
+ */
+class ContentVerifierTest {
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	void testVerify() throws IOException {
+		final var contents = new byte[10_000];
+		Arrays.fill(contents, (byte) 'a');
+		final var a = write("a", contents);
+		final var b = write("b", contents);
+		contents[9_999] = 'b';
+		final var collision = write("collision", contents);
+		final var c = write("c", contents);
+		contents[9_999] = 'a';
+		Files.write(c.path(), contents);
+		Files.setLastModifiedTime(c.path(), FileTime.fromMillis(c.lastModified()));
+
+		final var verifier = new ContentVerifier(1024);
+
+		assertEquals(List.of(a, b, c), verifier.verify(List.of(a, b, collision, c)));
+		assertEquals(List.of(), verifier.verify(List.of(a, collision)));
+	}
+
+	@Test
+	void testVerifySkipsChangedFiles() throws IOException {
+		final var contents = new byte[100];
+		final var a = write("a", contents);
+		final var b = write("b", contents);
+		final var stale = new PathMeta(b.path(), b.size(), b.lastModified() - 1000, b.fileKey(),
+			null, null, null);
+
+		assertEquals(List.of(), new ContentVerifier().verify(List.of(a, stale)));
+	}
+
+	@Test
+	void testVerifyLargeGroup() throws IOException {
+		final var contents = new byte[100];
+		final var group = new ArrayList<PathMeta>();
+		for (var i = 0; i < ContentVerifier.MAX_OPEN_FILES * 2 + 1; i++) {
+			group.add(write(Integer.toString(i), contents));
+		}
+
+		final var verified = new ContentVerifier().verify(group);
+
+		assertEquals(group, verified);
+		assertTrue(verified.size() > ContentVerifier.MAX_OPEN_FILES);
+	}
+
+	private PathMeta write(final String name, final byte[] contents) throws IOException {
+		final var path = Files.write(tempDir.resolve(name), contents);
+
+		return PathMeta.fromAttributes(path, Files.readAttributes(path,
+			BasicFileAttributes.class));
+	}
+
+}
@@ -0,0 +1,143 @@
+package com.tagadvance.filededuplicator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.hash.HashCode;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Unit tests for {@link CsvDao}.
+ */
+class CsvDaoTest {
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	void testCompact() throws IOException {
+		final var kept = Files.writeString(tempDir.resolve("kept"), "kept");
+		final var deleted = Files.writeString(tempDir.resolve("deleted"), "deleted");
+		final var linked = Files.writeString(tempDir.resolve("linked"), "linked");
+		final var removed = Files.writeString(tempDir.resolve("removed"), "removed");
+		final var file = tempDir.resolve("store.csv").toFile();
+
+		try (final var store = new CsvDao(file)) {
+			store.insert(createMeta(kept, 1));
+			store.insert(createMeta(deleted, 2));
+			store.insert(createMeta(linked, 3));
+			store.insert(createMeta(removed, 4));
+			store.insert(createMeta(kept, 5));
+			store.insert(PathMeta.tombstone(removed));
+			Files.delete(deleted);
+			Files.delete(linked);
+			Files.createSymbolicLink(linked, kept);
+
+			// a link is kept, as the walk catalogues it as the file it points to
+			store.compact();
+			assertEquals(2, Files.readAllLines(file.toPath()).size());
+			assertEquals(Set.of(createMeta(kept, 5), createMeta(linked, 3)),
+				new HashSet<>(store.selectAll()));
+
+			// the store is still appended to after the swap
+			store.insert(createMeta(removed, 6));
+			final var metas = new ArrayList<PathMeta>();
+			store.selectAll(metas::add);
+			assertEquals(3, metas.size());
+			assertEquals(createMeta(removed, 6), metas.get(2));
+		}
+	}
+
+	@Test
+	void testTornRowIsCutOff() throws IOException {
+		final var file = tempDir.resolve("store.csv").toFile();
+		final var expected = new ArrayList<PathMeta>();
+		try (final var store = new CsvDao(file)) {
+			for (var i = 0; i < 1000; i++) {
+				final var meta = createMeta(tempDir.resolve("file" + i), i);
+				expected.add(meta);
+				store.insert(meta);
+			}
+		}
+		// a crash while a row was appended
+		Files.writeString(file.toPath(), "/torn/file,1,2,,,,MD5,01,\"(dev=1,ino",
+			StandardOpenOption.APPEND);
+
+		try (final var store = new CsvDao(file)) {
+			assertEquals(expected, store.selectAll());
+
+			final var meta = createMeta(tempDir.resolve("after"), 1);
+			store.insert(meta);
+			expected.add(meta);
+			assertEquals(expected, store.selectAll());
+		}
+
+		// torn inside a quoted path, just after a line break in it
+		Files.writeString(file.toPath(), "\"/torn\n", StandardOpenOption.APPEND);
+		try (final var store = new CsvDao(file)) {
+			final var metas = new ArrayList<PathMeta>();
+			store.selectAll(metas::add);
+			assertEquals(expected, metas);
+
+			store.insert(createMeta(tempDir.resolve("last"), 2));
+			assertEquals(1002, store.selectAll().size());
+		}
+	}
+
+	@Test
+	void testEstimateSize() throws IOException {
+		try (final var store = new CsvDao(tempDir.resolve("store.csv").toFile())) {
+			assertEquals(0, store.estimateSize());
+			for (var i = 0; i < 10_000; i++) {
+				store.insert(createMeta(tempDir.resolve("file" + i), i));
+			}
+
+			final var estimate = store.estimateSize();
+			assertTrue(estimate > 9_000 && estimate < 11_000, "estimate " + estimate);
+		}
+	}
+
+	@Test
+	void testInsertsDuringCompactionAreKept() throws Exception {
+		final var file = tempDir.resolve("store.csv").toFile();
+		final var paths = new ArrayList<Path>();
+		for (var i = 0; i < 100; i++) {
+			paths.add(Files.writeString(tempDir.resolve("file" + i), "" + i));
+		}
+
+		try (final var store = new CsvDao(file)) {
+			paths.forEach(path -> store.insert(createMeta(path, 0)));
+			final var writer = Thread.ofPlatform().start(() -> {
+				for (var round = 1; round <= 10; round++) {
+					for (final var path : paths) {
+						store.insert(createMeta(path, round));
+					}
+				}
+			});
+			for (var i = 0; i < 5; i++) {
+				store.compact();
+			}
+			writer.join();
+			store.compact();
+
+			final var metas = store.selectAll();
+			assertEquals(100, metas.size());
+			assertEquals(new HashSet<>(paths.stream().map(path -> createMeta(path, 10)).toList()),
+				new HashSet<>(metas));
+		}
+	}
+
+	private static PathMeta createMeta(final Path path, final int hash) {
+		return new PathMeta(path.toAbsolutePath(), 1, 2, null, null, "MD5",
+			HashCode.fromInt(hash));
+	}
+
+}
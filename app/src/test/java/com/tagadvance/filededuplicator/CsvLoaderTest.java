@@ -0,0 +1,88 @@
+package com.tagadvance.filededuplicator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.google.common.hash.HashCode;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Unit tests for {@link CsvLoader}.
+ */
+class CsvLoaderTest {
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	void testRowsAreReadInOrderAcrossChunks() throws IOException {
+		final var file = tempDir.resolve("store.csv");
+		final var expected = new ArrayList<PathMeta>();
+		try (final var store = new CsvDao(file.toFile())) {
+			for (var i = 0; i < 500; i++) {
+				// quoted paths with line breaks may straddle the chunk boundaries, and what follows
+				// a line break may look like the start of a malformed row
+				final var name = switch (i % 3) {
+					case 0 -> "a, \"quoted\"\nname " + i;
+					case 1 -> "x\ny,z" + i;
+					default -> "plain" + i;
+				};
+				final var meta = new PathMeta(tempDir.resolve(name), i, -i,
+					"(dev=1,ino=" + i + ")", HashCode.fromInt(i), "MD5", HashCode.fromLong(i));
+				expected.add(meta);
+				store.insert(meta);
+			}
+			store.insert(PathMeta.tombstone(expected.get(0).path()));
+			expected.add(PathMeta.tombstone(expected.get(0).path()));
+		}
+
+		for (final var threads : List.of(1, 4)) {
+			final var metas = new ArrayList<PathMeta>();
+			new CsvLoader(file, StandardCharsets.UTF_8, threads, 64).forEach(metas::add);
+
+			assertEquals(expected, metas);
+		}
+	}
+
+	@Test
+	void testLegacyRows() throws IOException {
+		final var file = tempDir.resolve("store.csv");
+		Files.writeString(file, """
+			/a,1,2
+			/b,3,4,,ff,,\r
+
+			/c,5,6,,,0a0b
+			""");
+
+		final var metas = new ArrayList<PathMeta>();
+		new CsvLoader(file, StandardCharsets.UTF_8, 2).forEach(metas::add);
+
+		final var sha512 = new byte[64];
+		sha512[63] = (byte) 0xff;
+		assertEquals(List.of(
+			new PathMeta(Paths.get("/a"), 1, 2, null, null, null, null),
+			new PathMeta(Paths.get("/b"), 3, 4, null, null,
+				HashAlgorithm.SHA512.algorithm(), HashCode.fromBytes(sha512)),
+			new PathMeta(Paths.get("/c"), 5, 6, null, HashCode.fromString("0a0b"), null, null)),
+			metas);
+	}
+
+	@Test
+	void testMalformedRow() throws IOException {
+		final var file = tempDir.resolve("store.csv");
+		Files.writeString(file, "/a,1,x\n");
+
+		final var loader = new CsvLoader(file, StandardCharsets.UTF_8, 1);
+		assertThrows(IOException.class, () -> loader.forEach(meta -> {
+		}));
+	}
+
+}
@@ -0,0 +1,47 @@
+package com.tagadvance.filededuplicator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.file.Paths;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests for {@link DeviceScheduler}.
+ */
+class DeviceSchedulerTest {
+
+	@Test
+	void testSchedule() {
+		// 0x800 is 8:0, a spinning disk; 0xfe00 is 254:0, an SSD
+		final var scheduler = new DeviceScheduler(1, 4, device -> device == 0x800);
+		final var metas = List.of(createMeta("/hdd/c", "(dev=800,ino=30)"),
+			createMeta("/ssd/b", "(dev=fe00,ino=20)"), createMeta("/hdd/a", "(dev=800,ino=10)"),
+			createMeta("/ssd/a", "(dev=fe00,ino=10)"), createMeta("/hdd/b", "(dev=800,ino=20)"),
+			createMeta("/legacy", null));
+
+		final var lanes = scheduler.schedule(metas);
+
+		assertEquals(3, lanes.size());
+		assertEquals(new DeviceScheduler.Lane("8:0", true, 1,
+			List.of(metas.get(2), metas.get(4), metas.get(0))), lanes.get(0));
+		assertEquals(new DeviceScheduler.Lane("254:0", false, 4,
+			List.of(metas.get(1), metas.get(3))), lanes.get(1));
+		assertEquals(new DeviceScheduler.Lane("unknown", false, 4, List.of(metas.get(5))),
+			lanes.get(2));
+	}
+
+	@Test
+	void testMajorAndMinor() {
+		// makedev(259, 65536) as encoded by glibc
+		final var device = 0x10010300L;
+
+		assertEquals(259, DeviceScheduler.major(device));
+		assertEquals(65536, DeviceScheduler.minor(device));
+	}
+
+	private static PathMeta createMeta(final String path, final String fileKey) {
+		return new PathMeta(Paths.get(path), 1, 0, fileKey, null, null, null);
+	}
+
+}
@@ -0,0 +1,73 @@
+package com.tagadvance.filededuplicator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.hash.HashCode;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests for {@link DuplicateGrouper}.
+ */
+class DuplicateGrouperTest {
+
+	@Test
+	void testSpilledGroupsMatchInMemoryGroups() throws IOException {
+		final var inMemory = group(Long.MAX_VALUE);
+		final var spilled = group(1024);
+
+		assertEquals(inMemory, spilled);
+		assertEquals(3, spilled.size());
+		assertTrue(spilled.stream().allMatch(group -> group.size() > 1));
+		assertEquals(List.of(createMeta("/a/0", 0), createMeta("/b/10", 0), createMeta("/c/20", 0)),
+			spilled.get(0));
+	}
+
+	@Test
+	void testForEachPassesEveryMetaInOrder() throws IOException {
+		final var expected = new ArrayList<PathMeta>();
+		try (final var grouper = new DuplicateGrouper(1024)) {
+			add(grouper);
+			grouper.forEachGroup(expected::addAll);
+		}
+
+		final var metas = new ArrayList<PathMeta>();
+		try (final var grouper = new DuplicateGrouper(1024)) {
+			add(grouper);
+			assertTrue(grouper.runs() > 1);
+			grouper.forEach(metas::add);
+		}
+
+		assertEquals(30, metas.size());
+		// the unique hashes follow the repeated ones, which were passed on as groups
+		assertEquals(expected, metas.subList(0, expected.size()));
+		assertEquals(createMeta("/a/3", 3), metas.get(expected.size()));
+	}
+
+	private static List<List<PathMeta>> group(final long memoryBudget) throws IOException {
+		final var groups = new ArrayList<List<PathMeta>>();
+		try (final var grouper = new DuplicateGrouper(memoryBudget)) {
+			add(grouper);
+			grouper.forEachGroup(groups::add);
+		}
+
+		return groups;
+	}
+
+	private static void add(final DuplicateGrouper grouper) throws IOException {
+		for (var i = 0; i < 30; i++) {
+			// hashes 0, 1 and 2 repeat, every other hash is unique
+			final var hash = i % 10 < 3 ? i % 10 : i;
+			grouper.add(createMeta("/" + (char) ('a' + i / 10) + "/" + i, hash));
+		}
+	}
+
+	private static PathMeta createMeta(final String path, final int hash) {
+		return new PathMeta(Paths.get(path), 1, 0, null, null, "MD5", HashCode.fromInt(hash));
+	}
+
+}
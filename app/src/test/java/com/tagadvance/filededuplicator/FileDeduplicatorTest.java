@@ -0,0 +1,185 @@
+package com.tagadvance.filededuplicator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Unit tests for {@link FileDeduplicator}.
+ */
+class FileDeduplicatorTest {
+
+	@TempDir
+	Path tempDir;
+
+	/**
+	 * The groups of duplicates passed to the {@link DedupAction}, prominent file first.
+	 */
+	private final List<List<Path>> groups = new ArrayList<>();
+
+	@Test
+	void testFilesOfAUniqueSizeAreStoredWithoutAHash() throws IOException {
+		final var root = Files.createDirectory(tempDir.resolve("root"));
+		final var original = Files.writeString(root.resolve("original.txt"), "duplicate");
+		final var duplicate = Files.writeString(root.resolve("duplicate.txt"), "duplicate");
+		final var unique = Files.writeString(root.resolve("unique.txt"), "a unique size");
+
+		run(root);
+
+		final var metas = selectLatest();
+		assertNotNull(metas.get(original).hash());
+		assertNotNull(metas.get(duplicate).hash());
+		assertEquals(13, metas.get(unique).size());
+		assertNull(metas.get(unique).partialHash());
+		assertNull(metas.get(unique).hash());
+		assertEquals(1, groups.size());
+	}
+
+	@Test
+	void testOnlyFilesThatShareAFingerprintAreHashed() throws IOException {
+		final var root = Files.createDirectory(tempDir.resolve("root"));
+		// fingerprints cover the first and the last KiB of these 8 KiB files
+		final var contents = new byte[8 * 1024];
+		final var first = Files.write(root.resolve("first.txt"), contents);
+		contents[0] = 1;
+		final var head = Files.write(root.resolve("head.txt"), contents);
+		contents[0] = 0;
+		contents[4 * 1024] = 1;
+		final var middle = Files.write(root.resolve("middle.txt"), contents);
+
+		run(root);
+
+		final var metas = selectLatest();
+		assertNotNull(metas.get(head).partialHash());
+		assertNull(metas.get(head).hash());
+		assertEquals(metas.get(first).partialHash(), metas.get(middle).partialHash());
+		assertNotNull(metas.get(middle).hash());
+		assertNotEquals(metas.get(first).hash(), metas.get(middle).hash());
+		assertEquals(List.of(), groups);
+	}
+
+	@Test
+	void testRescanRehashesModifiedFilesAndTombstonesDeletedFiles() throws IOException {
+		final var root = Files.createDirectory(tempDir.resolve("root"));
+		final var unchanged = Files.writeString(root.resolve("unchanged.txt"), "duplicate");
+		final var deleted = Files.writeString(root.resolve("deleted.txt"), "duplicate");
+		final var modified = Files.writeString(root.resolve("modified.txt"), "duplicate");
+		run(root);
+		final var rows = selectAll().size();
+		final var hash = selectLatest().get(modified).hash();
+
+		Files.delete(deleted);
+		Files.writeString(modified, "different");
+		Files.setLastModifiedTime(modified, FileTime.fromMillis(
+			Files.getLastModifiedTime(modified).toMillis() + 10_000));
+		final var added = Files.writeString(root.resolve("added.txt"), "different");
+		run(root);
+
+		final var metas = selectLatest();
+		assertTrue(metas.get(deleted).isTombstone());
+		assertNotEquals(hash, metas.get(modified).hash());
+		assertEquals(metas.get(added).hash(), metas.get(modified).hash());
+		// the unchanged file is neither stored nor hashed again
+		final var all = selectAll();
+		assertTrue(all.subList(rows, all.size())
+			.stream()
+			.noneMatch(meta -> meta.path().equals(unchanged)));
+	}
+
+	@Test
+	void testExcludedDirectoriesAreNotWalked() throws IOException {
+		final var root = Files.createDirectory(tempDir.resolve("root"));
+		final var included = Files.createDirectory(root.resolve("included"));
+		final var excluded = Files.createDirectories(root.resolve("excluded/nested"));
+		Files.writeString(included.resolve("file.txt"), "duplicate");
+		Files.writeString(excluded.resolve("file.txt"), "duplicate");
+
+		final var metrics = run(root, List.of("/excluded/"));
+
+		assertEquals(2, metrics.getDirectoriesWalked());
+		assertEquals(1, metrics.getFilesWalked());
+		assertEquals(List.of(included.resolve("file.txt")),
+			selectAll().stream().map(PathMeta::path).toList());
+		assertEquals(List.of(), groups);
+	}
+
+	private ScanMetrics run(final Path root) throws IOException {
+		return run(root, List.of());
+	}
+
+	/**
+	 * Scans {@code root} incrementally into a CSV store in {@link #tempDir}.
+	 *
+	 * @return the metrics of the scan
+	 */
+	private ScanMetrics run(final Path root, final List<String> exclusions) throws IOException {
+		final var yaml = new StringBuilder("""
+			dryRun: true
+			deduplication: %s
+			safeDelete: true
+			trash: %s
+			replaceWithSymlink: true
+			partialHashSize: 1
+			roots:
+			  - '%s'
+			inclusions:
+			  - '\\.txt$'
+			exclusions:
+			""".formatted(tempDir.resolve("deduplication"), tempDir.resolve("trash"), root));
+		exclusions.forEach(exclusion -> yaml.append("  - '").append(exclusion).append("'\n"));
+		final var configuration = Configuration.parseInputStream(
+			new ByteArrayInputStream(yaml.toString().getBytes(StandardCharsets.UTF_8)));
+
+		final var metrics = new ScanMetrics();
+		final DedupAction dedupAction = (prominent, duplicates) -> {
+			final var group = new ArrayList<Path>();
+			group.add(prominent.path());
+			duplicates.forEach(meta -> group.add(meta.path()));
+			groups.add(group);
+		};
+		try (final var metaStore = new CsvDao(tempDir.resolve("store.csv").toFile())) {
+			final var hash = new Hash(new ByteBufferPool(64 * 1024, 2), 64L * 1024 * 1024);
+			final var pathFilter = new PathFilter(configuration.inclusions(),
+				configuration.exclusions());
+			final var checkpoint = new Checkpoint(tempDir.resolve("store.checkpoint"));
+			new FileDeduplicator(configuration, metaStore, hash, pathFilter, new ScanEngine(2, 2),
+				new DeviceScheduler(1, 2), checkpoint, metrics, dedupAction).run();
+		}
+
+		return metrics;
+	}
+
+	/**
+	 * @return every row of the store in the order it was written
+	 */
+	private List<PathMeta> selectAll() throws IOException {
+		try (final var metaStore = new CsvDao(tempDir.resolve("store.csv").toFile())) {
+			return metaStore.selectAll();
+		}
+	}
+
+	/**
+	 * @return the newest row of every path, including tombstones
+	 */
+	private Map<Path, PathMeta> selectLatest() throws IOException {
+		return selectAll().stream()
+			.collect(Collectors.toMap(PathMeta::path, Function.identity(), (older, newer) -> newer));
+	}
+
+}
@@ -0,0 +1,78 @@
+package com.tagadvance.filededuplicator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.hash.HashCode;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Unit tests for {@link FilteredMetaStore}.
+ */
+class FilteredMetaStoreTest {
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	void testFiltersPersistAcrossRuns() throws IOException {
+		final var file = tempDir.resolve("store.csv").toFile();
+		final var base = tempDir.resolve("store");
+		final var unique = createMeta("unique", 1);
+		final var duplicate = createMeta("duplicate", 2);
+		final var copy = createMeta("copy", 2);
+
+		try (final var store = new FilteredMetaStore(new CsvDao(file), base)) {
+			store.insert(unique);
+			store.insert(duplicate);
+			store.insert(copy);
+		}
+
+		final var filter = MappedBloomFilter.open(tempDir.resolve("store.hashes.bloom"));
+		assertTrue(filter.isClean());
+		assertEquals(3, filter.insertions());
+		filter.close();
+
+		try (final var store = new FilteredMetaStore(new CsvDao(file), base)) {
+			assertEquals(List.of(), store.selectByHash(createMeta("missing", 3).contentHash()));
+			assertEquals(List.of(copy, duplicate),
+				store.selectByHash(duplicate.contentHash()).stream()
+					.sorted(Comparator.comparing(PathMeta::path))
+					.toList());
+			assertFalse(store.mightHaveDuplicates(unique.contentHash()));
+			assertTrue(store.mightHaveDuplicates(duplicate.contentHash()));
+		}
+	}
+
+	@Test
+	void testDirtyFiltersAreRebuilt() throws IOException {
+		final var file = tempDir.resolve("store.csv").toFile();
+		final var meta = createMeta("a", 1);
+		try (final var store = new CsvDao(file)) {
+			store.insert(meta);
+			store.insert(createMeta("b", 1));
+		}
+		// a filter that was never closed, e.g. because the process crashed
+		MappedBloomFilter.create(tempDir.resolve("store.hashes.bloom"), 10, 0.01);
+		// a filter of the stored paths, which is no longer kept
+		Files.writeString(tempDir.resolve("store.paths.bloom"), "");
+
+		try (final var store = new FilteredMetaStore(new CsvDao(file), tempDir.resolve("store"))) {
+			assertTrue(store.mightHaveDuplicates(meta.contentHash()));
+			assertFalse(Files.exists(tempDir.resolve("store.paths.bloom")));
+		}
+	}
+
+	private PathMeta createMeta(final String name, final int hash) {
+		return new PathMeta(tempDir.resolve(name), 1, 0, null, null, "MD5",
+			HashCode.fromInt(hash));
+	}
+
+}
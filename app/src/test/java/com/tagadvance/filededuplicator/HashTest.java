@@ -0,0 +1,82 @@
+package com.tagadvance.filededuplicator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.google.common.hash.HashCode;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Unit tests for {@link Hash}.
+ */
+class HashTest {
+
+	/**
+	 * Official BLAKE3 test vectors keyed by input length. Inputs repeat the bytes 0 to 250.
+	 */
+	private static final Map<Integer, String> BLAKE3_VECTORS = Map.of(
+		0, "af1349b9f5f9a1a6a0404dea36dcc9499bcb25c9adc112b7cc9a93cae41f3262",
+		1, "2d3adedff11b61f14c886e35afa036736dcd87a74d27b5c1510225d0f592e213",
+		1023, "10108970eeda3eb932baac1428c7a2163b0e924c9a9e25b35bba72b28f70bd11",
+		1024, "42214739f095a406f3fc83deb889744ac00df831c10daa55189b5d121c855af7",
+		1025, "d00278ae47eb27b34faecf67b4fe263f82d5412916c1ffd97c8cb7fb814b8444",
+		2048, "e776b6028c7cd22a4d0ba182a8bf62205d2ef576467e838ed6f2529b85fba24a",
+		3073, "7124b49501012f81cc7f11ca069ec9226cecb8a2c850cfe644e327d22d3e1cd3",
+		8192, "aae792484c8efe4f19e2ca7d371d8c467ffb10748d8a5a1ae579948f718a2a63",
+		102400, "bc3e3d41a1146b069abffad3c0d44860cf664390afce4d9661f7902e7943e085");
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	void testBlake3() {
+		BLAKE3_VECTORS.forEach((length, expected) -> {
+			final var digester = HashAlgorithm.BLAKE3.newDigester();
+			final var input = createInput(length);
+			digester.update(input, 0, input.length);
+			assertEquals(expected, HashCode.fromBytes(digester.digest()).toString(),
+				"BLAKE3 of " + length + " bytes");
+		});
+	}
+
+	@Test
+	void testCalculateHash() throws IOException {
+		final var path = tempDir.resolve("abc");
+		Files.writeString(path, "abc", StandardCharsets.US_ASCII);
+		final var hash = new Hash(new ByteBufferPool(1024, 1), Long.MAX_VALUE);
+
+		assertEquals(
+			HashCode.fromString("6437b3ac38465133ffb63b75273a8db548c558465d79db03fd359c6cd5bd9d85"),
+			hash.calculateHash(path, HashAlgorithm.BLAKE3));
+		assertEquals(HashCode.fromString("900150983cd24fb0d6963f7d28e17f72"),
+			hash.calculateHash(path, HashAlgorithm.MD5));
+	}
+
+	@Test
+	void testMappedAndBufferedHashesMatch() throws IOException {
+		final var path = tempDir.resolve("input");
+		Files.write(path, createInput(100_000));
+		final var buffered = new Hash(new ByteBufferPool(4096, 1), Long.MAX_VALUE);
+		final var mapped = new Hash(new ByteBufferPool(4096, 1), 0);
+
+		for (final var algorithm : HashAlgorithm.values()) {
+			assertEquals(buffered.calculateHash(path, algorithm),
+				mapped.calculateHash(path, algorithm), algorithm.name());
+		}
+	}
+
+	private static byte[] createInput(final int length) {
+		final var input = new byte[length];
+		for (var i = 0; i < length; i++) {
+			input[i] = (byte) (i % 251);
+		}
+
+		return input;
+	}
+
+}
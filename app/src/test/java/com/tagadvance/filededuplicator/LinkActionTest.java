@@ -0,0 +1,61 @@
+package com.tagadvance.filededuplicator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Unit tests for {@link LinkAction}.
+ */
+class LinkActionTest {
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	void testHardLink() throws IOException {
+		final var original = Files.writeString(tempDir.resolve("original"), "abc");
+		final var duplicate = Files.writeString(tempDir.resolve("duplicate"), "abc");
+		final var fallbacks = new ArrayList<PathMeta>();
+		final var journalFile = tempDir.resolve("journal");
+		final var action = new LinkAction(false, false, new ActionJournal(journalFile),
+			(prominent, duplicates) -> fallbacks.addAll(duplicates));
+
+		action.apply(createMeta(original), List.of(createMeta(duplicate)));
+
+		assertTrue(Files.isSameFile(original, duplicate));
+		assertEquals("abc", Files.readString(duplicate));
+		assertTrue(fallbacks.isEmpty());
+		try (final var files = Files.list(tempDir)) {
+			assertEquals(3, files.count());
+		}
+	}
+
+	@Test
+	void testDryRun() throws IOException {
+		final var original = Files.writeString(tempDir.resolve("original"), "abc");
+		final var duplicate = Files.writeString(tempDir.resolve("duplicate"), "abc");
+		final var journal = new ActionJournal(tempDir.resolve("journal"));
+		final var action = new LinkAction(false, true, journal, (prominent, duplicates) -> {
+			throw new AssertionError("a dry run must not fall back");
+		});
+
+		action.apply(createMeta(original), List.of(createMeta(duplicate)));
+
+		assertFalse(Files.isSameFile(original, duplicate));
+		assertFalse(Files.exists(tempDir.resolve("journal")), "a dry run wrote a journal");
+	}
+
+	private static PathMeta createMeta(final Path path) {
+		return new PathMeta(path, 3, 0, null, null, null, null);
+	}
+
+}
@@ -0,0 +1,146 @@
+package com.tagadvance.filededuplicator;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.hash.HashCode;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests for {@link PathCatalogue}.
+ */
+class PathCatalogueTest {
+
+	@Test
+	void testPutAndGet() {
+		final var catalogue = new PathCatalogue();
+		final var meta = createMeta("/a/b/c.jpg");
+		catalogue.put(meta);
+		catalogue.put(createMeta("relative/d.jpg"));
+
+		assertEquals(meta, catalogue.get(Paths.get("/a/b/c.jpg")));
+		assertEquals(createMeta("relative/d.jpg"), catalogue.get(Paths.get("relative/d.jpg")));
+		// a directory is not a file
+		assertNull(catalogue.get(Paths.get("/a/b")));
+		assertNull(catalogue.get(Paths.get("/a/b/d.jpg")));
+		assertEquals(2, catalogue.size());
+
+		final var id = catalogue.id(Paths.get("/a/b/c.jpg"));
+		assertEquals(Paths.get("/a/b/c.jpg"), catalogue.path(id));
+		assertEquals(id, catalogue.intern(Paths.get("/a/b/c.jpg")));
+		assertEquals(-1, catalogue.id(Paths.get("/a/x")));
+	}
+
+	@Test
+	void testPutIfAbsentReplaceAndRemove() {
+		final var catalogue = new PathCatalogue();
+		final var meta = createMeta("/a/c.jpg");
+		final var hashed = meta.withHash("MD5", HashCode.fromInt(1));
+
+		assertTrue(catalogue.putIfAbsent(meta));
+		assertFalse(catalogue.putIfAbsent(hashed));
+		assertFalse(catalogue.replace(hashed, meta));
+		assertTrue(catalogue.replace(meta, hashed));
+		assertEquals(hashed, catalogue.get(meta.path()));
+
+		assertTrue(catalogue.remove(meta.path()));
+		assertFalse(catalogue.remove(meta.path()));
+		assertFalse(catalogue.contains(meta.path()));
+		assertEquals(0, catalogue.size());
+		assertTrue(catalogue.putIfAbsent(meta));
+	}
+
+	@Test
+	void testFileKeysAndDigestsRoundTrip() {
+		final var catalogue = new PathCatalogue();
+		final var sha512 = HashCode.fromBytes(new byte[64]);
+		final var metas = new PathMeta[] {
+			new PathMeta(Paths.get("/unix"), 1, 2, "(dev=fd01,ino=18446744073709551615)",
+				HashCode.fromInt(-1), "SHA512", sha512),
+			new PathMeta(Paths.get("/zeros"), 1, 2, "(dev=0fd01,ino=7)", null, null, null),
+			new PathMeta(Paths.get("/other"), 1, 2, "other", HashCode.fromLong(-2), "MD5",
+				HashCode.fromString("00112233445566778899aabbccddeeff")),
+			new PathMeta(Paths.get("/none"), 1, 2, null, null, null, null)};
+		for (final var meta : metas) {
+			catalogue.put(meta);
+		}
+
+		for (final var meta : metas) {
+			assertEquals(meta, catalogue.get(meta.path()));
+		}
+		catalogue.put(metas[0].withPartialHash(null));
+		assertEquals(metas[0].withPartialHash(null), catalogue.get(metas[0].path()));
+		catalogue.put(metas[1]);
+		assertEquals(metas[1], catalogue.get(metas[1].path()));
+	}
+
+	@Test
+	void testForEach() {
+		final var catalogue = new PathCatalogue();
+		for (var i = 0; i < 2000; i++) {
+			catalogue.put(createMeta("/root/" + i % 7 + "/" + i + ".jpg"));
+		}
+		catalogue.put(createMeta("/other/1.jpg"));
+
+		final Set<Path> all = new HashSet<>();
+		catalogue.forEach((meta, id) -> {
+			assertEquals(meta.path(), catalogue.path(id));
+			all.add(meta.path());
+		});
+		final Set<Path> subtree = new HashSet<>();
+		catalogue.forEach(Paths.get("/root/3"), (meta, id) -> subtree.add(meta.path()));
+
+		assertEquals(2001, all.size());
+		assertEquals(286, subtree.size());
+		assertTrue(subtree.stream().allMatch(path -> path.startsWith("/root/3")));
+		assertEquals(2001, catalogue.values().size());
+	}
+
+	@Test
+	void testForEachOfSize() {
+		final var catalogue = new PathCatalogue();
+		for (var i = 0; i < 2000; i++) {
+			catalogue.put(createMeta("/root/" + i % 7 + "/" + i + ".jpg", i % 3));
+		}
+		catalogue.remove(Paths.get("/root/0/0.jpg"));
+		catalogue.put(createMeta("/root/1/1.jpg", 2));
+
+		final Set<Path> paths = new HashSet<>();
+		catalogue.forEachOfSize(2, (meta, id) -> {
+			assertEquals(2, meta.size());
+			assertEquals(meta.path(), catalogue.path(id));
+			paths.add(meta.path());
+		});
+		final Set<Path> empty = new HashSet<>();
+		catalogue.forEachOfSize(0, (meta, id) -> empty.add(meta.path()));
+		final Set<Path> none = new HashSet<>();
+		catalogue.forEachOfSize(3, (meta, id) -> none.add(meta.path()));
+
+		assertEquals(667, paths.size());
+		assertTrue(paths.contains(Paths.get("/root/1/1.jpg")));
+		assertEquals(666, empty.size());
+		assertTrue(none.isEmpty());
+
+		catalogue.put(createMeta("/unique.jpg", 4));
+		final var shared = catalogue.sharedSizes();
+		Arrays.sort(shared);
+		assertArrayEquals(new long[] {0, 1, 2}, shared);
+	}
+
+	private static PathMeta createMeta(final String path, final long size) {
+		return new PathMeta(Paths.get(path), size, 20, "(dev=1,ino=2)", null, null, null);
+	}
+
+	private static PathMeta createMeta(final String path) {
+		return new PathMeta(Paths.get(path), 10, 20, "(dev=1,ino=2)", null, null, null);
+	}
+
+}
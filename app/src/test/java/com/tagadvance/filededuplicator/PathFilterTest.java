@@ -0,0 +1,67 @@
+package com.tagadvance.filededuplicator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests for {@link PathFilter}.
+ */
+class PathFilterTest {
+
+	private static final List<String> INCLUSIONS = List.of("\\.(bmp|gif|jpg|jpeg)$", "\\.png$",
+		"/Photos/", "^/home/.*\\.raw$");
+
+	private static final List<String> EXCLUSIONS = List.of("/boot", "^/proc", "node_modules/",
+		"\\.tmp$", "/cache\\d+/", "(a)\\1");
+
+	private static final List<String> PATHS = List.of("/home/user/a.jpg", "/home/user/A.JPEG",
+		"/home/user/a.jpg.txt", "/home/user/photos/a.txt", "/home/user/a.RAW", "/srv/a.raw",
+		"/boot/a.gif", "/home/bootstrap.png", "/home/proc/a.png", "/proc/a.png",
+		"/home/node_modules/a.png", "/home/a.png.tmp", "/home/cache12/a.png", "/home/aa.png",
+		"/home/a.png");
+
+	@Test
+	void testMatchesLikeRegularExpressions() {
+		final var filter = new PathFilter(INCLUSIONS, EXCLUSIONS);
+
+		for (final var path : PATHS) {
+			final var included = INCLUSIONS.stream()
+				.anyMatch(regex -> Pattern.compile(regex, Pattern.CASE_INSENSITIVE)
+					.matcher(path)
+					.find());
+			final var excluded = EXCLUSIONS.stream()
+				.anyMatch(regex -> Pattern.compile(regex).matcher(path).find());
+
+			assertEquals(included, filter.isIncluded(Paths.get(path)), path);
+			assertEquals(excluded, filter.isExcluded(Paths.get(path)), path);
+		}
+	}
+
+	@Test
+	void testExcludedDirectory() {
+		final var filter = new PathFilter(List.of(), EXCLUSIONS);
+
+		assertTrue(filter.isExcludedDirectory(Paths.get("/boot")));
+		assertTrue(filter.isExcludedDirectory(Paths.get("/proc")));
+		assertTrue(filter.isExcludedDirectory(Paths.get("/home/node_modules")));
+		assertTrue(filter.isExcludedDirectory(Paths.get("/home/cache1")));
+		assertFalse(filter.isExcludedDirectory(Paths.get("/home")));
+		assertFalse(filter.isExcludedDirectory(Paths.get("/home/proc")));
+		assertFalse(filter.isExcludedDirectory(Paths.get("/home/a.tmp")));
+	}
+
+	@Test
+	void testEmptyFilterAcceptsEverything() {
+		final var filter = new PathFilter(null, null);
+
+		assertTrue(filter.accepts(Paths.get("/home/a.txt")));
+		assertFalse(filter.isExcludedDirectory(Paths.get("/")));
+	}
+
+}
@@ -0,0 +1,153 @@
+package com.tagadvance.filededuplicator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Unit tests for {@link ScanEngine}.
+ */
+class ScanEngineTest {
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	void testWalkSkipsSubtrees() throws IOException {
+		try (final var scanEngine = new ScanEngine(3, 1)) {
+			assertWalkSkipsSubtrees(scanEngine);
+		}
+	}
+
+	@Test
+	void testVirtualWalkSkipsSubtrees() throws IOException {
+		try (final var scanEngine = ScanEngine.ofVirtualThreads(2)) {
+			assertWalkSkipsSubtrees(scanEngine);
+		}
+	}
+
+	private void assertWalkSkipsSubtrees(final ScanEngine scanEngine) throws IOException {
+		final var expected = ConcurrentHashMap.<Path>newKeySet();
+		for (var i = 0; i < 20; i++) {
+			final var directory = tempDir.resolve("d" + i % 4).resolve("e" + i % 3);
+			Files.createDirectories(directory);
+			final var file = Files.createFile(directory.resolve("f" + i));
+			if (i % 4 != 0) {
+				expected.add(file);
+			}
+		}
+		Files.createDirectories(tempDir.resolve("d0/empty"));
+
+		final Set<Path> visited = ConcurrentHashMap.newKeySet();
+		final Set<Path> postVisited = ConcurrentHashMap.newKeySet();
+		scanEngine.walk(tempDir, new SimpleFileVisitor<>() {
+
+			@Override
+			public FileVisitResult preVisitDirectory(final Path dir,
+				final BasicFileAttributes attrs) {
+				return dir.endsWith("d0") ? FileVisitResult.SKIP_SUBTREE
+					: FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+				visited.add(file);
+
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(final Path dir, final IOException exc) {
+				// every file under a directory is visited before the directory is post-visited
+				assertTrue(expected.stream()
+					.filter(file -> file.startsWith(dir))
+					.allMatch(visited::contains), dir.toString());
+				postVisited.add(dir);
+
+				return FileVisitResult.CONTINUE;
+			}
+
+		});
+
+		assertEquals(expected, visited);
+		assertTrue(postVisited.contains(tempDir));
+	}
+
+	@Test
+	void testForEachLaneProcessesEveryFile() throws InterruptedException {
+		try (final var scanEngine = new ScanEngine(1, 2)) {
+			assertForEachLaneProcessesEveryFile(scanEngine);
+		}
+	}
+
+	@Test
+	void testVirtualForEachLaneProcessesEveryFile() throws InterruptedException {
+		try (final var scanEngine = ScanEngine.ofVirtualThreads(3)) {
+			assertForEachLaneProcessesEveryFile(scanEngine);
+		}
+	}
+
+	@Test
+	void testLanesTakeTurnsOnTheHashingThreads() throws InterruptedException {
+		final var lanes = List.of(createLane("hdd", true, 0, 3), createLane("ssd", false, 3, 3));
+		final var order = Collections.synchronizedList(new ArrayList<Long>());
+
+		try (final var scanEngine = new ScanEngine(1, 1)) {
+			scanEngine.forEachLane(lanes, meta -> order.add(meta.size()));
+		}
+
+		assertEquals(List.of(0L, 3L, 1L, 4L, 2L, 5L), order);
+	}
+
+	private static void assertForEachLaneProcessesEveryFile(final ScanEngine scanEngine)
+		throws InterruptedException {
+		final var lanes = List.of(createLane("hdd", true, 0, 500),
+			createLane("ssd", false, 500, 500));
+		final var sum = new AtomicInteger();
+		final var open = new AtomicInteger();
+		final var maxOpen = new AtomicInteger();
+
+		scanEngine.forEachLane(lanes, meta -> {
+			maxOpen.accumulateAndGet(open.incrementAndGet(), Math::max);
+			try {
+				final var item = (int) meta.size();
+				if (item % 100 == 0) {
+					throw new IllegalStateException("failures must not stop the remaining files");
+				}
+				sum.addAndGet(item);
+			} finally {
+				open.decrementAndGet();
+			}
+		});
+
+		assertEquals(499500 - 4500, sum.get());
+		assertTrue(maxOpen.get() <= 3, "at most three files are open at once");
+	}
+
+	private static DeviceScheduler.Lane createLane(final String device, final boolean rotational,
+		final int first, final int count) {
+		final var metas = IntStream.range(first, first + count)
+			.mapToObj(i -> new PathMeta(Paths.get("/" + device, "" + i), i, 0, null, null, null,
+				null))
+			.toList();
+
+		return new DeviceScheduler.Lane(device, rotational, 1, metas);
+	}
+
+}
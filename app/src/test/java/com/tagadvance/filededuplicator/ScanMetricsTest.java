@@ -0,0 +1,50 @@
+package com.tagadvance.filededuplicator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.file.Paths;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests for {@link ScanMetrics}.
+ */
+class ScanMetricsTest {
+
+	@Test
+	void testHistogram() {
+		final var histogram = new ScanMetrics().hashLatency();
+		for (var i = 0; i < 99; i++) {
+			histogram.record(1000);
+		}
+		histogram.record(1_000_000);
+
+		assertEquals(100, histogram.count());
+		assertEquals(99 * 1000 + 1_000_000, histogram.sum());
+		// 1000 ns falls into the bucket below 1024 ns, 1 ms into the bucket below 2^20 ns
+		assertEquals(1024, histogram.quantile(0.5));
+		assertEquals(1024, histogram.quantile(0.99));
+		assertEquals(1 << 20, histogram.quantile(1));
+		assertEquals(0, ScanMetrics.Histogram.bucket(0));
+		assertEquals(ScanMetrics.Histogram.BUCKETS - 1, ScanMetrics.Histogram.bucket(Long.MAX_VALUE));
+	}
+
+	@Test
+	void testRootsAndQueues() {
+		final var metrics = new ScanMetrics();
+		final var root = metrics.root(Paths.get("/a"));
+		root.fileWalked(10);
+		root.fileWalked(20);
+		metrics.root(Paths.get("/b")).fileWalked(5);
+		metrics.queued(3, 300);
+		metrics.dequeued(100);
+
+		assertEquals(3, metrics.getFilesWalked());
+		assertEquals(35, metrics.getBytesWalked());
+		assertEquals(2, root.files());
+		assertEquals(30, root.bytes());
+		assertEquals(2, metrics.getReadQueueDepth());
+		assertEquals(200, metrics.getReadQueueBytes());
+		assertEquals(-1, metrics.getEstimatedSecondsRemaining());
+	}
+
+}
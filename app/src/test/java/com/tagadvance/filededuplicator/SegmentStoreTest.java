@@ -0,0 +1,133 @@
+package com.tagadvance.filededuplicator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.hash.HashCode;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Unit tests for {@link SegmentStore}.
+ */
+class SegmentStoreTest {
+
+	private static final int MEMTABLE_SIZE = 3;
+	private static final int MAX_SEGMENTS = 2;
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	void testLookups() throws IOException {
+		try (final var store = new SegmentStore(tempDir, MEMTABLE_SIZE, MAX_SEGMENTS)) {
+			for (var i = 0; i < 20; i++) {
+				store.insert(createMeta("/root/" + (char) ('a' + i % 10) + "/" + i, i % 4));
+			}
+			store.insert(PathMeta.tombstone(Paths.get("/root/a/0")));
+			store.insert(createMeta("/root/b/1", 99));
+
+			assertEquals(Optional.empty(), store.selectByPath(Paths.get("/root/a/0")));
+			assertEquals(createMeta("/root/b/1", 99), store.selectByPath(Paths.get("/root/b/1"))
+				.orElseThrow());
+			assertEquals(List.of(createMeta("/root/a/10", 2)),
+				store.selectUnder(Paths.get("/root/a")));
+			assertEquals(4, store.selectByHash(contentHash(1)).size());
+			assertEquals(19, store.selectAll().size());
+
+			// streamed from the memtable and the segments in the same order
+			final var metas = new ArrayList<PathMeta>();
+			store.selectAll(metas::add);
+			assertEquals(store.selectAll(), metas);
+		}
+	}
+
+	@Test
+	void testReopen() throws IOException {
+		try (final var store = new SegmentStore(tempDir, MEMTABLE_SIZE, MAX_SEGMENTS)) {
+			for (var i = 0; i < 10; i++) {
+				store.insert(createMeta("/root/" + i, i));
+			}
+			store.insert(PathMeta.tombstone(Paths.get("/root/3")));
+			store.compact();
+		}
+
+		try (final var store = new SegmentStore(tempDir, MEMTABLE_SIZE, MAX_SEGMENTS)) {
+			final var metas = store.selectAll();
+			assertEquals(9, metas.size());
+			assertTrue(metas.stream().noneMatch(meta -> meta.path().endsWith("3")));
+			assertEquals(List.of(createMeta("/root/7", 7)), store.selectByHash(contentHash(7)));
+		}
+	}
+
+	@Test
+	void testIncompleteSegmentIsDeleted() throws IOException {
+		try (final var store = new SegmentStore(tempDir, MEMTABLE_SIZE, MAX_SEGMENTS)) {
+			for (var i = 0; i < MEMTABLE_SIZE; i++) {
+				store.insert(createMeta("/root/" + i, i));
+			}
+		}
+		// a crash while a segment was written
+		final var incomplete = Files.writeString(
+			tempDir.resolve("segment-0000000000000000009.dat.tmp"), "torn");
+
+		try (final var store = new SegmentStore(tempDir, MEMTABLE_SIZE, MAX_SEGMENTS)) {
+			assertFalse(Files.exists(incomplete));
+			assertEquals(MEMTABLE_SIZE, store.selectAll().size());
+		}
+		try (final var files = Files.list(tempDir)) {
+			assertTrue(files.noneMatch(file -> file.toString().endsWith(".tmp")));
+		}
+	}
+
+	@Test
+	void testInterruptedCompaction() throws IOException {
+		final var unmerged = tempDir.resolve("unmerged");
+		Files.createDirectory(unmerged);
+		try (final var store = new SegmentStore(tempDir, MEMTABLE_SIZE, Integer.MAX_VALUE)) {
+			for (var i = 0; i < 6; i++) {
+				store.insert(createMeta("/root/" + i, i));
+			}
+			store.insert(PathMeta.tombstone(Paths.get("/root/0")));
+			store.insert(createMeta("/root/6", 6));
+			store.insert(createMeta("/root/7", 7));
+			try (final var files = Files.list(tempDir)) {
+				for (final var file : files.filter(Files::isRegularFile).toList()) {
+					Files.copy(file, unmerged.resolve(file.getFileName()));
+				}
+			}
+			store.compact();
+		}
+
+		// a crash after the merged segment was written but before the oldest merged segment, which
+		// holds the tombstoned path, was deleted
+		final var oldest = "segment-0000000000000000001.dat";
+		Files.copy(unmerged.resolve(oldest), tempDir.resolve(oldest));
+
+		try (final var store = new SegmentStore(tempDir, MEMTABLE_SIZE, Integer.MAX_VALUE)) {
+			assertEquals(Optional.empty(), store.selectByPath(Paths.get("/root/0")));
+			assertEquals(7, store.selectAll().size());
+		}
+		try (final var files = Files.list(tempDir)) {
+			assertEquals(1, files.filter(file -> file.toString().endsWith(".dat")).count());
+		}
+	}
+
+	private static PathMeta createMeta(final String path, final int hash) {
+		return new PathMeta(Paths.get(path), hash, -hash, "(ino=" + hash + ")",
+			HashCode.fromInt(hash), "MD5", contentHash(hash).hash());
+	}
+
+	private static ContentHash contentHash(final int hash) {
+		return new ContentHash("MD5", HashCode.fromInt(hash));
+	}
+
+}